@@ -1,78 +1,172 @@
 package cs321.btree;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.RandomAccessFile;
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
 
 import cs321.common.Cache;
 
 /**
  * Disk-backed B-Tree implementation with optional caching.
  */
-public class BTree implements BTreeInterface {
+public class BTree implements BTreeInterface, Iterable<TreeObject> {
 
     // Constants
-    private final int METADATA_SIZE = Long.BYTES;
+    private static final int METADATA_SIZE = 256;        // reserved header region, unused bytes stay zero
+    private static final int MAGIC = 0x42545245;         // "BTRE"
+    private static final int FORMAT_VERSION = 1;
+    private static final double DEFAULT_FILL_FACTOR = 1.0;
+    private static final int DB_PAGE_SIZE = 8192;
+    private static final int DB_BATCH_SIZE = 10_000;
+    private static final int DB_ROWS_PER_TRANSACTION = 1_000_000;
+    private static final int FREE_PAGE = -1;             // key count stored in a page on the free list
+    static final String COUNT_INDEX_SUFFIX = ".count";
+    private static final int BULK_COMMIT_NODES = 1024;        // nodes bulk loaded per log commit
+    private static final int COUNT_PREFIX_LENGTH = 10;        // base-94 digits, enough for any long
+    private static final int COUNT_INDEX_KEY_BYTES = TreeObject.BYTES - Long.BYTES - COUNT_PREFIX_LENGTH;
 
     // Metadata
     private long nextDiskAddress = METADATA_SIZE;
+    private long freeListHead;                           // first page of the free list, 0 if empty
+    private int flags;                                   // node layout flags, see BTreeNode
+    private BTreeOptions options;
+    private long logOffset;                              // bytes of the source log already ingested
+
+    // Pending inserts held by internal nodes in buffered mode, by node address; null when off
+    private HashMap<Long, TreeMap<String, Long>> messageBuffers;
+
+    // Group commit state when writes go through a write-ahead log
+    private boolean writeAheadLog;
+    private int uncommittedOperations;
+    private long lastCommitMillis;
+    private long commits;
     private int nodeSize;
     private long size;
     private int degree;
     private int nodes;
     private int height;
     private String filename;
+    private boolean readOnly;
 
     // Core structures
     private BTreeNode root;
     private Cache<Long, BTreeNode> BTreeCache;
-    private FileChannel fileChannel;
-    private ByteBuffer buffer;
+    private NodeStorage storage;
+    private final ThreadLocal<BTreeNodeView> searchViews = ThreadLocal.withInitial(() -> new BTreeNodeView(degree));
+
+    // Dirty nodes held outside the cache until the current operation ends
+    private final LinkedHashMap<Long, BTreeNode> pendingWrites = new LinkedHashMap<>();
+
+    // Dirty nodes the cache policy declined to admit, held until the next flush
+    private final LinkedHashMap<Long, BTreeNode> rejectedWrites = new LinkedHashMap<>();
 
-    // Used for dumping sorted data
-    private String[] sortedStringValues;
-    private TreeObject[] sortedTreeObjects;
+    // Write-back statistics
+    private long writeRequests;
+    private long diskWrites;
+    private final LongAdder nodeReads = new LongAdder();
 
     // === Constructors ===
 
-    public BTree(int degree, String filename, boolean usingCache, int cacheSize) {
+    public BTree(int degree, String filename, BTreeOptions options) {
+        checkOptions(options);
         this.filename = filename;
-        this.degree = degree <= 0 ? BTreeNode.getOptimalDegree() : degree;
+        this.options = options;
+        this.flags = (options.isCountSummaries() ? BTreeNode.COUNT_SUMMARY : 0)
+                | (options.isKeyCounts() ? BTreeNode.KEY_COUNTS : 0);
+        this.degree = degree <= 0 ? BTreeNode.getOptimalDegree(flags) : degree;
         this.size = 0;
         this.nodes = 1;
         this.height = 0;
-        this.root = new BTreeNode(this.degree);
+        this.root = new BTreeNode(this.degree, flags);
         this.root.diskAddress = nextDiskAddress;
 
-        if (usingCache) {
-            BTreeCache = new Cache<>(cacheSize);
-        }
+        BTreeCache = createCache(options);
+        writeAheadLog = options.isWriteAheadLog();
+        messageBuffers = options.getInsertBuffer() > 0 ? new HashMap<>() : null;
 
         nodeSize = estimateNodeDiskSize();
         nextDiskAddress += nodeSize;
-        buffer = ByteBuffer.allocateDirect(nodeSize);
 
         try {
-            // [Change 0: always truncate file on open, removed if-exists/new-file branching]
-            RandomAccessFile dataFile = new RandomAccessFile(filename, "rw");
-            fileChannel = dataFile.getChannel();
-            fileChannel.truncate(0);                       // [Change 1: truncate file on open]
-            writeMetaData();                              // [Change 2: write only root pointer metadata]
-            writeNode(root);                              // [Change 3: use writeNode helper for consistency]
+            // a new tree replaces any file of the same name
+            storage = NodeStorage.open(filename, options.getStorageType(), false, true, writeAheadLog);
+            writeMetaData();
+            writeNode(root);
+            if (writeAheadLog) {
+                flush();                                  // a crash from here on leaves at least the empty tree
+            }
         } catch (IOException e) {
             System.err.println(e.getMessage());
             System.exit(1);
         }
     }
 
+    public BTree(int degree, String filename, boolean usingCache, int cacheSize) {
+        this(degree, filename, new BTreeOptions().setCache(usingCache, cacheSize));
+    }
+
+    /**
+     * Opens an existing tree file and restores degree, sizes and root from its header
+     * instead of truncating it. See {@link #open(String, boolean, BTreeOptions)}.
+     */
+    private BTree(String filename, boolean readOnly, BTreeOptions options) throws IOException {
+        this.filename = filename;
+        this.readOnly = readOnly;
+        this.options = options;
+        if (!readOnly) {
+            checkOptions(options);
+        }
+
+        BTreeCache = createCache(options);
+        writeAheadLog = options.isWriteAheadLog() && !readOnly;
+        messageBuffers = options.getInsertBuffer() > 0 && !readOnly ? new HashMap<>() : null;
+        lastCommitMillis = System.currentTimeMillis();
+
+        storage = NodeStorage.open(filename, options.getStorageType(), readOnly, false, writeAheadLog);
+        try {
+            readMetaData();
+        } catch (IOException e) {
+            storage.close(0);
+            throw e;
+        }
+    }
+
     public BTree(String filename) {
         this(0, filename, false, -1);
     }
 
+    /**
+     * Rejects insert buffers under a write-ahead log: buffers are held in memory, so
+     * every commit would have to apply them all and nothing would stay buffered.
+     */
+    private static void checkOptions(BTreeOptions options) {
+        if (options.isWriteAheadLog() && options.getInsertBuffer() > 0) {
+            throw new IllegalArgumentException("insert buffers cannot be used with a write-ahead log");
+        }
+    }
+
     public BTree(int degree, String filename) {
         this(degree, filename, false, -1);
     }
@@ -81,10 +175,40 @@ public class BTree implements BTreeInterface {
         this(0, filename, usingCache, cacheSize);
     }
 
+    /**
+     * Opens a B-Tree file previously written by this class without rebuilding it.
+     *
+     * @param filename the tree file created by an earlier run
+     * @param readOnly open the file read-only; inserts are rejected
+     * @param options  cache and storage backend settings
+     * @return the reopened tree
+     * @throws IOException if the file cannot be read or is not a B-Tree file
+     */
+    public static BTree open(String filename, boolean readOnly, BTreeOptions options) throws IOException {
+        return new BTree(filename, readOnly, options);
+    }
+
+    /**
+     * Opens a B-Tree file with the default storage backend.
+     *
+     * @see #open(String, boolean, BTreeOptions)
+     */
+    public static BTree open(String filename, boolean readOnly, boolean usingCache, int cacheSize) throws IOException {
+        return open(filename, readOnly, new BTreeOptions().setCache(usingCache, cacheSize));
+    }
+
     // === Accessors ===
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * With insert buffers a new key is counted once its message reaches a leaf, so
+     * while messages are pending this is a lower bound; it is exact after a flush.
+     */
     @Override
-    public long getSize() { return size; }
+    public long getSize() {
+        return size;
+    }
 
     @Override
     public int getDegree() { return degree; }
@@ -97,23 +221,72 @@ public class BTree implements BTreeInterface {
 
     public Cache<Long, BTreeNode> getCache() { return BTreeCache; }
 
+    public boolean isReadOnly() { return readOnly; }
+
+    /** @return true if nodes store per-subtree count summaries, so {@link #topK} can prune */
+    public boolean hasCountSummaries() { return (flags & BTreeNode.COUNT_SUMMARY) != 0; }
+
+    /** @return how many bytes of the source log this tree already holds, as recorded by {@link #setLogOffset} */
+    public long getLogOffset() { return logOffset; }
+
+    /**
+     * Records how far into the source log the tree's contents reach, so a later run
+     * can ingest only what was appended. Saved in the header by {@link #finishUp}.
+     *
+     * @param logOffset byte offset just past the last log line ingested
+     */
+    public void setLogOffset(long logOffset) { this.logOffset = logOffset; }
+
+    /** @return true if nodes store per-subtree key counts, so {@link #rank} and {@link #select} follow one path */
+    public boolean hasKeyCounts() { return (flags & BTreeNode.KEY_COUNTS) != 0; }
+
+    /** @return true if child pointers carry any subtree summary that must be kept current */
+    private boolean hasSummaries() { return (flags & (BTreeNode.COUNT_SUMMARY | BTreeNode.KEY_COUNTS)) != 0; }
+
+    /** @return number of times a node was modified and handed to the write path */
+    public long getWriteRequests() { return writeRequests; }
+
+    /** @return number of node pages actually written to storage */
+    public long getDiskWrites() { return diskWrites; }
+
+    /** @return node writes absorbed by write-back, i.e. requests that never reached storage */
+    public long getWritesSaved() { return Math.max(0, writeRequests - diskWrites); }
+
+    /** @return number of node pages read from storage (cache hits are not counted) */
+    public long getNodeReads() { return nodeReads.sum(); }
+
     // === Insertion ===
 
     @Override
     public void insert(TreeObject obj) throws IOException {
+        if (readOnly) {
+            throw new IOException("BTree " + filename + " is open read-only");
+        }
+        splitRootIfFull();
+        if (messageBuffers != null && !root.isLeaf) {
+            insertBuffered(obj);
+        } else {
+            insertNonFull(root, obj);
+        }
+        writePending();
+        commitIfDue();
+    }
+
+    private void splitRootIfFull() {
         if (root.keys.size() == 2 * degree - 1) {
-            BTreeNode newRoot = new BTreeNode(degree);
+            BTreeNode oldRoot = root;
+            BTreeNode newRoot = new BTreeNode(degree, flags);
             newRoot.isLeaf = false;
-            newRoot.children.add(root.diskAddress);
-            newRoot.diskAddress = nextDiskAddress;
-            nextDiskAddress += nodeSize;
-            nodes++;
+            newRoot.addChild(root.diskAddress);
+            newRoot.diskAddress = allocatePage();
             height++;
             splitChild(newRoot, 0);
             root = newRoot;
             writeNode(root);
+            if (BTreeCache == null) {
+                pendingWrites.put(oldRoot.diskAddress, oldRoot);   // no longer pinned as the root
+            }
         }
-        insertNonFull(root, obj);
     }
 
     private void insertNonFull(BTreeNode node, TreeObject obj) {
@@ -122,7 +295,7 @@ public class BTree implements BTreeInterface {
             while (i >= 0 && obj.compareTo(node.keys.get(i)) < 0) {
                 i--; }
             if (i >= 0 && obj.compareTo(node.keys.get(i)) == 0) {
-                node.keys.get(i).setCount(node.keys.get(i).getCount() + 1);
+                node.keys.get(i).setCount(node.keys.get(i).getCount() + obj.getCount());
             } else {
                 node.keys.add(i + 1, obj);
                 size++;
@@ -132,7 +305,7 @@ public class BTree implements BTreeInterface {
             while (i >= 0 && obj.compareTo(node.keys.get(i)) < 0) {
                 i--; }
             if (i >= 0 && obj.compareTo(node.keys.get(i)) == 0) {
-                node.keys.get(i).setCount(node.keys.get(i).getCount() + 1);
+                node.keys.get(i).setCount(node.keys.get(i).getCount() + obj.getCount());
                 writeNode(node);
                 return;
             }
@@ -142,7 +315,7 @@ public class BTree implements BTreeInterface {
             if (child.keys.size() == 2 * degree - 1) {
                 splitChild(node, i);
                 if (obj.compareTo(node.keys.get(i)) == 0) {
-                    node.keys.get(i).setCount(node.keys.get(i).getCount() + 1);
+                    node.keys.get(i).setCount(node.keys.get(i).getCount() + obj.getCount());
                     writeNode(node);
                     return;
                 }
@@ -150,152 +323,1577 @@ public class BTree implements BTreeInterface {
                 child = readNode(node.children.get(i));
             }
             insertNonFull(child, obj);
+            if (hasSummaries()) {
+                node.setSummary(i, child);
+                writeNode(node);
+            }
         }
     }
 
     private void splitChild(BTreeNode parent, int index) {
         BTreeNode fullChild = readNode(parent.children.get(index));
-        BTreeNode newChild = new BTreeNode(degree);
+        BTreeNode newChild = new BTreeNode(degree, flags);
         newChild.isLeaf = fullChild.isLeaf;
-        newChild.diskAddress = nextDiskAddress;
-        nextDiskAddress += nodeSize;
-        nodes++;
+        newChild.diskAddress = allocatePage();
         TreeObject middleKey = fullChild.keys.get(degree - 1);
         for (int j = degree; j < 2 * degree - 1; j++) {
             newChild.keys.add(fullChild.keys.get(j));
         }
         if (!fullChild.isLeaf) {
-            for (int j = degree; j <= 2 * degree - 1; j++) {
-                newChild.children.add(fullChild.children.get(j));
+            // the upper t children move over together with their summaries
+            while (fullChild.children.size() > degree) {
+                fullChild.moveChild(degree, newChild, newChild.children.size());
             }
         }
         while (fullChild.keys.size() > degree - 1) {
             fullChild.keys.remove(fullChild.keys.size() - 1);
         }
-        if (!fullChild.isLeaf) {
-            while (fullChild.children.size() > degree) {
-                fullChild.children.remove(fullChild.children.size() - 1);
-            }
+        if (messageBuffers != null && !fullChild.isLeaf) {
+            splitBuffer(fullChild, newChild, middleKey);
         }
         parent.keys.add(index, middleKey);
-        parent.children.add(index + 1, newChild.diskAddress);
+        parent.addChild(index + 1, newChild.diskAddress);
+        parent.setSummary(index, fullChild);
+        parent.setSummary(index + 1, newChild);
         writeNode(fullChild);
         writeNode(newChild);
         writeNode(parent);
     }
 
+    // === Buffered inserts ===
+
+    /**
+     * Inserts through the message buffers. The root takes the key as a pending
+     * message, merged with any message already pending for it; when its buffer is
+     * full, the messages for one child are pushed down a level in a batch. A key
+     * that is already in the root is simply incremented.
+     */
+    private void insertBuffered(TreeObject obj) {
+        int i = findKey(root, obj.getKey());
+        if (i >= 0) {
+            TreeObject key = root.keys.get(i);
+            key.setCount(key.getCount() + obj.getCount());
+            writeNode(root);
+            return;
+        }
+        TreeMap<String, Long> buffer = messageBuffers.computeIfAbsent(root.diskAddress, a -> new TreeMap<>());
+        buffer.merge(obj.getKey(), obj.getCount(), Long::sum);
+        if (buffer.size() >= options.getInsertBuffer()) {
+            flushBuffer(root);
+        }
+    }
+
+    /**
+     * Pushes the pending messages for the child with the most of them down into that
+     * child, splitting it first if it is full. The node must not be full.
+     */
+    private void flushBuffer(BTreeNode node) {
+        TreeMap<String, Long> buffer = messageBuffers.get(node.diskAddress);
+        int best = 0;
+        int most = -1;
+        for (int c = 0; c <= node.keys.size(); c++) {
+            int messages = childMessages(node, buffer, c).size();
+            if (messages > most) {
+                best = c;
+                most = messages;
+            }
+        }
+        if (readNode(node.children.get(best)).isFull()) {
+            splitChild(node, best);
+            TreeObject separator = node.keys.get(best);
+            Long pending = buffer.remove(separator.getKey());
+            if (pending != null) {
+                separator.setCount(separator.getCount() + pending);
+            }
+            pushDown(node, best + 1);                    // first, as splits below child best shift it
+        }
+        pushDown(node, best);
+        if (buffer.isEmpty()) {
+            messageBuffers.remove(node.diskAddress);
+        }
+        writeNode(node);
+    }
+
+    /**
+     * Moves the node's pending messages for child c into that child, which must not
+     * be full. An internal child buffers them, flushing in turn if its buffer fills;
+     * a leaf applies them, splitting while the node has room for another separator.
+     * Messages a full node cannot take stay in its buffer.
+     */
+    private void pushDown(BTreeNode node, int c) {
+        TreeMap<String, Long> buffer = messageBuffers.get(node.diskAddress);
+        SortedMap<String, Long> range = childMessages(node, buffer, c);
+        if (range.isEmpty()) {
+            return;
+        }
+        TreeMap<String, Long> batch = new TreeMap<>(range);
+        range.clear();
+        BTreeNode child = readNode(node.children.get(c));
+
+        if (!child.isLeaf) {
+            TreeMap<String, Long> childBuffer = messageBuffers.computeIfAbsent(child.diskAddress, a -> new TreeMap<>());
+            for (Map.Entry<String, Long> message : batch.entrySet()) {
+                int i = findKey(child, message.getKey());
+                if (i >= 0) {
+                    TreeObject key = child.keys.get(i);
+                    key.setCount(key.getCount() + message.getValue());
+                    writeNode(child);
+                } else {
+                    childBuffer.merge(message.getKey(), message.getValue(), Long::sum);
+                }
+            }
+            if (childBuffer.size() >= options.getInsertBuffer()) {
+                flushBuffer(child);
+            } else if (childBuffer.isEmpty()) {
+                messageBuffers.remove(child.diskAddress);
+            }
+            node.setSummary(c, child);
+            return;
+        }
+
+        // children c .. c + splits now cover the batch, separated by node keys c .. c + splits - 1
+        int splits = 0;
+        int ci = c;
+        BTreeNode leaf = child;
+        for (Map.Entry<String, Long> message : batch.entrySet()) {
+            String k = message.getKey();
+            while (true) {
+                while (ci < c + splits && k.compareTo(node.keys.get(ci).getKey()) > 0) {
+                    ci++;
+                    leaf = readNode(node.children.get(ci));
+                }
+                if (ci < c + splits && k.equals(node.keys.get(ci).getKey())) {
+                    TreeObject separator = node.keys.get(ci);
+                    separator.setCount(separator.getCount() + message.getValue());
+                    break;
+                }
+                int i = findKey(leaf, k);
+                if (i >= 0) {
+                    TreeObject key = leaf.keys.get(i);
+                    key.setCount(key.getCount() + message.getValue());
+                } else if (!leaf.isFull()) {
+                    leaf.keys.add(-i - 1, new TreeObject(k, message.getValue()));
+                    size++;                              // a new key is counted once it reaches a leaf
+                } else if (!node.isFull()) {
+                    splitChild(node, ci);
+                    splits++;
+                    leaf = readNode(node.children.get(ci));
+                    continue;
+                } else {
+                    buffer.merge(k, message.getValue(), Long::sum);
+                    break;
+                }
+                writeNode(leaf);
+                break;
+            }
+        }
+        for (int j = c; j <= c + splits; j++) {
+            node.setSummary(j, readNode(node.children.get(j)));
+        }
+    }
+
+    /**
+     * @return a view of the messages in the buffer that belong to child c of the node
+     */
+    private static SortedMap<String, Long> childMessages(BTreeNode node, TreeMap<String, Long> buffer, int c) {
+        if (c > 0 && c < node.keys.size()) {
+            return buffer.subMap(node.keys.get(c - 1).getKey(), false, node.keys.get(c).getKey(), false);
+        } else if (c > 0) {
+            return buffer.tailMap(node.keys.get(c - 1).getKey(), false);
+        } else if (c < node.keys.size()) {
+            return buffer.headMap(node.keys.get(c).getKey(), false);
+        }
+        return buffer;
+    }
+
+    /**
+     * Divides the buffer of a node being split: messages above the middle key go
+     * with the upper half, and a message for the middle key is applied to it.
+     */
+    private void splitBuffer(BTreeNode fullChild, BTreeNode newChild, TreeObject middleKey) {
+        TreeMap<String, Long> buffer = messageBuffers.get(fullChild.diskAddress);
+        if (buffer == null) {
+            return;
+        }
+        Long pending = buffer.remove(middleKey.getKey());
+        if (pending != null) {
+            middleKey.setCount(middleKey.getCount() + pending);
+        }
+        SortedMap<String, Long> upper = buffer.tailMap(middleKey.getKey(), false);
+        if (!upper.isEmpty()) {
+            messageBuffers.put(newChild.diskAddress, new TreeMap<>(upper));
+            upper.clear();
+        }
+        if (buffer.isEmpty()) {
+            messageBuffers.remove(fullChild.diskAddress);
+        }
+    }
+
+    /**
+     * Looks a key up in buffered mode, adding the messages pending for it in the
+     * buffers on its path to the count stored in the tree.
+     */
+    private TreeObject searchBuffered(String key) {
+        long pending = 0;
+        BTreeNode node = root;
+        while (true) {
+            int i = findKey(node, key);
+            if (i >= 0) {
+                TreeObject found = node.keys.get(i);
+                return pending == 0 ? found : new TreeObject(key, found.getCount() + pending);
+            }
+            if (node.isLeaf) {
+                return pending > 0 ? new TreeObject(key, pending) : null;
+            }
+            TreeMap<String, Long> buffer = messageBuffers.get(node.diskAddress);
+            if (buffer != null) {
+                pending += buffer.getOrDefault(key, 0L);
+            }
+            node = readNode(node.children.get(-i - 1));
+        }
+    }
+
+    /**
+     * Applies every pending message to the tree, in key order, so the pages hold the
+     * whole tree. Called before anything that reads past the search path, and before
+     * the tree is flushed or closed, so buffers never reach the file.
+     */
+    private void drainBuffers() {
+        if (messageBuffers == null || messageBuffers.isEmpty()) {
+            return;
+        }
+        TreeMap<String, Long> pending = new TreeMap<>();
+        for (TreeMap<String, Long> buffer : messageBuffers.values()) {
+            for (Map.Entry<String, Long> message : buffer.entrySet()) {
+                pending.merge(message.getKey(), message.getValue(), Long::sum);
+            }
+        }
+        messageBuffers.clear();
+        for (Map.Entry<String, Long> message : pending.entrySet()) {
+            splitRootIfFull();
+            insertNonFull(root, new TreeObject(message.getKey(), message.getValue()));
+        }
+        writePending();
+    }
+
+    /**
+     * @return the index of the key in the node, or (-(insertion point) - 1) if absent
+     */
+    private static int findKey(BTreeNode node, String key) {
+        int low = 0;
+        int high = node.keys.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = node.keys.get(mid).getKey().compareTo(key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    // === Bulk loading ===
+
+    /**
+     * Builds the tree bottom-up from a set of entries, filling nodes completely.
+     *
+     * @see #bulkLoad(Iterator, double)
+     */
+    public void bulkLoad(Iterator<TreeObject> entries) throws IOException {
+        bulkLoad(entries, DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * Builds the tree bottom-up from a set of entries instead of inserting them one
+     * at a time. The entries are sorted and entries with equal keys are merged by
+     * adding their counts. Leaves are written first, then each internal level, so
+     * every node is written exactly once at increasing disk addresses.
+     *
+     * @param entries    the keys and counts to load, in any order
+     * @param fillFactor fraction of the 2t-1 key slots to fill in each node, in (0, 1];
+     *                   nodes never drop below the t-1 keys a B-Tree requires
+     * @throws IOException if the tree is not empty or a node cannot be written
+     */
+    public void bulkLoad(Iterator<TreeObject> entries, double fillFactor) throws IOException {
+        checkBulkLoad(fillFactor);
+
+        ArrayList<TreeObject> level = new ArrayList<>();
+        while (entries.hasNext()) {
+            TreeObject obj = entries.next();
+            level.add(new TreeObject(obj.getKey(), obj.getCount()));
+        }
+        level.sort(null);
+        int unique = 0;
+        for (TreeObject obj : level) {
+            if (unique > 0 && level.get(unique - 1).compareTo(obj) == 0) {
+                TreeObject previous = level.get(unique - 1);
+                previous.setCount(previous.getCount() + obj.getCount());
+            } else {
+                level.set(unique++, obj);
+            }
+        }
+        level.subList(unique, level.size()).clear();
+        if (level.isEmpty()) {
+            return;
+        }
+
+        long emptyRoot = clearForBulkLoad();
+        size = level.size();
+
+        int targetKeys = Math.max(1, (int) Math.round(fillFactor * (2 * degree - 1)));
+        ArrayList<Long> children = null;
+        ArrayList<long[]> childSummaries = null;
+        while (true) {
+            int groups = bulkLoadGroupCount(level.size(), targetKeys);
+            ArrayList<TreeObject> separators = new ArrayList<>(groups - 1);
+            ArrayList<Long> addresses = new ArrayList<>(groups);
+            ArrayList<long[]> summaries = new ArrayList<>(groups);
+            int keyIndex = 0;
+            int childIndex = 0;
+            int slots = level.size() + 1;
+            for (int g = 0; g < groups; g++) {
+                int keysInNode = slots / groups + (g < slots % groups ? 1 : 0) - 1;
+                BTreeNode node = new BTreeNode(degree, flags);
+                node.isLeaf = (children == null);
+                node.diskAddress = nextDiskAddress;
+                nextDiskAddress += nodeSize;
+                nodes++;
+                for (int k = 0; k < keysInNode; k++) {
+                    node.keys.add(level.get(keyIndex++));
+                }
+                if (children != null) {
+                    for (int c = 0; c <= keysInNode; c++) {
+                        node.addChild(children.get(childIndex));
+                        if (node.summaries != null) {
+                            node.summaries.set(c, childSummaries.get(childIndex));
+                        }
+                        childIndex++;
+                    }
+                }
+                if (g < groups - 1) {
+                    separators.add(level.get(keyIndex++));
+                }
+                writeRequests++;
+                diskWrite(node);
+                if (writeAheadLog && nodes % BULK_COMMIT_NODES == 0) {
+                    storage.force();
+                }
+                addresses.add(node.diskAddress);
+                if (hasSummaries()) {
+                    summaries.add(node.summarize());
+                }
+                if (groups == 1) {
+                    root = node;
+                }
+            }
+            if (groups == 1) {
+                break;
+            }
+            level = separators;
+            children = addresses;
+            childSummaries = summaries;
+            height++;
+        }
+        if (writeAheadLog) {
+            pushFreePage(emptyRoot);
+        }
+        writeMetaData();
+    }
+
+    /**
+     * Builds the tree bottom-up from entries already in ascending key order, such as
+     * a merge of sorted runs, without holding them in memory. Each level has one open
+     * node, filled as entries arrive and written once full; the entry after a full
+     * node moves up a level, between it and the next node. Memory thus depends on
+     * the tree height only. At the end the open nodes form the right edge of the
+     * tree, and any of them short of keys is topped up from its left sibling.
+     *
+     * @param entries    the keys and counts to load, in strictly ascending key order
+     * @param fillFactor fraction of the 2t-1 key slots to fill in each node, in (0, 1];
+     *                   nodes never drop below the t-1 keys a B-Tree requires
+     * @throws IOException if the tree is not empty or a node cannot be written
+     * @throws IllegalArgumentException if the entries are not in strictly ascending order
+     */
+    public void bulkLoadSorted(Iterator<TreeObject> entries, double fillFactor) throws IOException {
+        checkBulkLoad(fillFactor);
+        if (!entries.hasNext()) {
+            return;
+        }
+        long emptyRoot = clearForBulkLoad();
+        int targetKeys = Math.max(degree - 1, (int) Math.round(fillFactor * (2 * degree - 1)));
+
+        ArrayList<BTreeNode> open = new ArrayList<>();      // the node being filled on each level, leaves first
+        open.add(newBulkNode(true));
+        TreeObject previous = null;
+        while (entries.hasNext()) {
+            TreeObject obj = entries.next();
+            if (previous != null && previous.compareTo(obj) >= 0) {
+                throw new IllegalArgumentException("bulkLoadSorted needs ascending keys: "
+                        + obj.getKey() + " after " + previous.getKey());
+            }
+            previous = obj;
+            size++;
+            addBulkKey(open, 0, new TreeObject(obj.getKey(), obj.getCount()), targetKeys);
+        }
+
+        int top = open.size() - 1;
+        root = open.get(top);
+        height = top;
+        for (int level = 0; level <= top; level++) {
+            if (level < top) {
+                open.get(level + 1).addChild(open.get(level).diskAddress);
+            }
+            writeNode(open.get(level));                     // held in memory while the edge is fixed
+        }
+        fixRightEdge();
+        writeDirtyNodes();
+        if (writeAheadLog) {
+            pushFreePage(emptyRoot);
+        }
+        writeMetaData();
+    }
+
+    /**
+     * Appends a key to the open node of a level. If that node is full, it is written
+     * and becomes a child of the level above, the key goes up a level to separate it
+     * from the next node, and a new open node is started.
+     */
+    private void addBulkKey(ArrayList<BTreeNode> open, int level, TreeObject key, int targetKeys) {
+        BTreeNode node = open.get(level);
+        if (node.keys.size() < targetKeys) {
+            node.keys.add(key);
+            return;
+        }
+        writeRequests++;
+        diskWrite(node);
+        if (writeAheadLog && nodes % BULK_COMMIT_NODES == 0) {
+            try {
+                storage.force();
+            } catch (IOException e) {
+                throw new RuntimeException("Error committing bulk load: " + e.getMessage());
+            }
+        }
+        if (level + 1 == open.size()) {
+            open.add(newBulkNode(false));
+        }
+        BTreeNode parent = open.get(level + 1);
+        parent.addChild(node.diskAddress);
+        parent.setSummary(parent.children.size() - 1, node);
+        open.set(level, newBulkNode(node.isLeaf));
+        addBulkKey(open, level + 1, key, targetKeys);
+    }
+
+    private BTreeNode newBulkNode(boolean isLeaf) {
+        BTreeNode node = new BTreeNode(degree, flags);
+        node.isLeaf = isLeaf;
+        node.diskAddress = nextDiskAddress;
+        nextDiskAddress += nodeSize;
+        nodes++;
+        return node;
+    }
+
+    /**
+     * Tops up the nodes on the right edge of a tree loaded by {@link #bulkLoadSorted},
+     * the only nodes that can be short of keys, from the root down. A node short of
+     * keys merges with its left sibling if both fit in one node and otherwise takes
+     * keys from it. An internal node is brought up to t keys, so that a merge below it
+     * still leaves t-1. The summaries along the edge are then refreshed bottom-up.
+     */
+    private void fixRightEdge() {
+        BTreeNode node = root;
+        while (!node.isLeaf) {
+            int last = node.keys.size();
+            BTreeNode child = readNode(node.children.get(last));
+            int needed = child.isLeaf ? degree - 1 : degree;
+            if (child.keys.size() < needed) {
+                BTreeNode left = readNode(node.children.get(last - 1));
+                if (left.keys.size() + 1 + child.keys.size() <= 2 * degree - 1) {
+                    merge(node, last - 1, left, child);
+                    child = left;
+                } else {
+                    while (child.keys.size() < needed) {
+                        borrowFromLeft(node, last, child, left);
+                    }
+                }
+            }
+            if (node == root && node.keys.isEmpty()) {
+                root = child;
+                pendingWrites.remove(root.diskAddress);  // pinned as the root from now on
+                rejectedWrites.remove(root.diskAddress);
+                freePage(node);
+                height--;
+            }
+            node = child;
+        }
+
+        ArrayList<BTreeNode> edge = new ArrayList<>();
+        for (node = root; !node.isLeaf; node = readNode(node.children.get(node.keys.size()))) {
+            edge.add(node);
+        }
+        for (int k = edge.size() - 1; k >= 0; k--) {
+            BTreeNode parent = edge.get(k);
+            parent.setSummary(parent.keys.size(), node);
+            writeNode(parent);
+            node = parent;
+        }
+    }
+
+    /**
+     * Checks that the tree can be bulk loaded: it is writable and empty, with any
+     * buffered inserts applied first.
+     */
+    private void checkBulkLoad(double fillFactor) throws IOException {
+        if (readOnly) {
+            throw new IOException("BTree " + filename + " is open read-only");
+        }
+        drainBuffers();
+        if (size != 0) {
+            throw new IOException("bulkLoad requires an empty tree");
+        }
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+        }
+    }
+
+    /**
+     * Drops the empty root ahead of a bulk load.
+     *
+     * @return the empty root's page, to be freed once the load is done under a write-ahead log
+     */
+    private long clearForBulkLoad() {
+        // The empty root's page is reused by the first leaf. Under a write-ahead log the
+        // load is committed in steps, so it only takes new pages and the last commit
+        // stays a valid empty tree; the old root's page is freed at the end instead.
+        if (BTreeCache != null) {
+            BTreeCache.remove(root.diskAddress);
+        }
+        pendingWrites.clear();
+        rejectedWrites.clear();
+        long emptyRoot = root.diskAddress;
+        if (!writeAheadLog) {
+            nextDiskAddress = METADATA_SIZE;
+            freeListHead = 0;
+        }
+        nodes = 0;
+        height = 0;
+        return emptyRoot;
+    }
+
+    /**
+     * Chooses how many nodes a level of n keys is split into, with one key between
+     * neighbouring nodes moving up a level. Each node then holds between t-1 and
+     * 2t-1 keys, as close to the target as possible. A single node is the root.
+     */
+    private int bulkLoadGroupCount(int n, int targetKeys) {
+        int slots = n + 1;
+        int groups = (slots + targetKeys) / (targetKeys + 1);
+        int fewest = (slots + 2 * degree - 1) / (2 * degree);
+        int most = slots / degree;
+        return Math.max(fewest, Math.min(most, groups));
+    }
+
+    /**
+     * Searches for a key. Cached nodes are probed as objects; nodes read from disk
+     * are probed in place through a {@link BTreeNodeView}, so a lookup only
+     * allocates the probe bytes and, on a hit, the returned TreeObject. With a cache,
+     * internal nodes read from disk are decoded and offered to it.
+     * <p>
+     * Any number of threads may search at once as long as no thread is modifying
+     * the tree, e.g. when it was opened read-only. Each thread probes pages through
+     * its own view; set {@link BTreeOptions#setConcurrency(int)} to stripe the cache.
+     */
     @Override
     public TreeObject search(String key) throws IOException {
-        return search(root, key);
+        if (messageBuffers != null && !messageBuffers.isEmpty()) {
+            return searchBuffered(key);
+        }
+        BTreeNodeView searchView = searchViews.get();
+        BTreeNode node = root;
+        byte[] probe = null;
+        while (true) {
+            long childAddress;
+            if (node != null) {
+                int i = 0;
+                while (i < node.keys.size() && key.compareTo(node.keys.get(i).getKey()) > 0) { i++; }
+                if (i < node.keys.size() && key.compareTo(node.keys.get(i).getKey()) == 0) {
+                    return node.keys.get(i);
+                } else if (node.isLeaf) {
+                    return null;
+                }
+                childAddress = node.children.get(i);
+            } else {
+                int i = searchView.find(probe);
+                if (i >= 0) {
+                    return searchView.toTreeObject(i);
+                } else if (searchView.isLeaf()) {
+                    return null;
+                }
+                childAddress = searchView.getChild(-i - 1);
+            }
+
+            node = (BTreeCache != null) ? BTreeCache.get(childAddress) : null;
+            if (node == null && !rejectedWrites.isEmpty()) {
+                node = rejectedWrites.get(childAddress);
+            }
+            if (node == null) {
+                if (probe == null) {
+                    probe = key.getBytes(StandardCharsets.UTF_8);
+                }
+                ByteBuffer page = storage.read(childAddress, nodeSize);
+                nodeReads.increment();
+                searchView.wrap(page);
+                if (BTreeCache != null && !searchView.isLeaf()) {
+                    // internal nodes are few and hot, so they are worth decoding and caching;
+                    // leaves are probed in place
+                    node = BTreeNode.fromByteBuffer(page, degree, flags, childAddress);
+                    cacheReadNode(node);
+                }
+            }
+        }
     }
 
-    private TreeObject search(BTreeNode node, String key) {
-        int i = 0;
-        while (i < node.keys.size() && key.compareTo(node.keys.get(i).getKey()) > 0) { i++; }
-        if (i < node.keys.size() && key.compareTo(node.keys.get(i).getKey()) == 0) {
-            return node.keys.get(i);
-        } else if (node.isLeaf) {
+    /**
+     * Looks up a batch of keys in one walk of the tree. The probes are sorted and
+     * de-duplicated, then pushed down the tree merge-style: at each node, the probes
+     * that fall between two adjacent keys are handed to the child between them
+     * together, so every node on the way is read at most once per batch, however
+     * many probes pass through it.
+     * <p>
+     * Like {@link #search(String)}, batches may run concurrently on a tree that is
+     * not being modified.
+     *
+     * @param keys the keys to look up, in any order, duplicates allowed
+     * @return the found keys mapped to their tree objects; keys not in the tree are absent
+     * @throws IOException if a node cannot be read
+     */
+    public Map<String, TreeObject> searchAll(Collection<String> keys) throws IOException {
+        drainBuffers();
+        String[] probes = new TreeSet<>(keys).toArray(new String[0]);
+        Map<String, TreeObject> found = new HashMap<>();
+        if (probes.length > 0) {
+            searchAll(root, probes, 0, probes.length, found);
+        }
+        return found;
+    }
+
+    private void searchAll(BTreeNode node, String[] probes, int from, int to, Map<String, TreeObject> found)
+            throws IOException {
+        int j = from;
+        int count = node.keys.size();
+        for (int i = 0; i <= count && j < to; i++) {
+            TreeObject key = i < count ? node.keys.get(i) : null;
+            int end = j;
+            while (end < to && (key == null || probes[end].compareTo(key.getKey()) < 0)) {
+                end++;
+            }
+            if (end > j && !node.isLeaf) {
+                searchAll(loadNode(node.children.get(i)), probes, j, end, found);
+            }
+            j = end;
+            if (key != null && j < to && probes[j].equals(key.getKey())) {
+                found.put(key.getKey(), key);
+                j++;
+            }
+        }
+    }
+
+    /**
+     * Fetches a node for a read-only walk. A tree open for writing goes through
+     * {@link #readNode(long)} so unwritten changes are seen; otherwise internal
+     * nodes are cached as in {@link #search(String)} and leaves are decoded without
+     * displacing them.
+     */
+    BTreeNode loadNode(long diskAddress) throws IOException {
+        if (!readOnly) {
+            return readNode(diskAddress);
+        }
+        BTreeNode node = (BTreeCache != null) ? BTreeCache.get(diskAddress) : null;
+        if (node == null) {
+            node = BTreeNode.fromByteBuffer(storage.read(diskAddress, nodeSize), degree, flags, diskAddress);
+            nodeReads.increment();
+            if (BTreeCache != null && !node.isLeaf) {
+                cacheReadNode(node);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Returns a lazy cursor over the keys between two bounds, in ascending order.
+     *
+     * @param from smallest key to return (inclusive), or null for no lower bound
+     * @param to   largest key to return (inclusive), or null for no upper bound
+     * @return a cursor that reads nodes as it reaches them
+     */
+    public BTreeCursor range(String from, String to) {
+        drainBuffers();
+        return new BTreeCursor(this, root, from, to, null);
+    }
+
+    /**
+     * Returns a lazy cursor over the keys that start with a prefix, in ascending order.
+     *
+     * @param prefix the prefix every returned key starts with
+     * @return a cursor that reads nodes as it reaches them
+     */
+    public BTreeCursor prefix(String prefix) {
+        drainBuffers();
+        return new BTreeCursor(this, root, prefix, null, prefix);
+    }
+
+    // === Order statistics ===
+
+    /**
+     * Returns the number of keys in the tree that sort before the given key, which
+     * is the key's zero-based position if it is present. With key counts this reads
+     * one root-to-leaf path; otherwise the keys before it are scanned.
+     *
+     * @param key the key to place
+     * @return number of keys less than key
+     * @throws IOException if a node cannot be read
+     */
+    public long rank(String key) throws IOException {
+        drainBuffers();
+        if (!hasKeyCounts()) {
+            long rank = 0;
+            for (Iterator<TreeObject> cursor = range(null, key); cursor.hasNext(); ) {
+                if (cursor.next().getKey().compareTo(key) < 0) {
+                    rank++;
+                }
+            }
+            return rank;
+        }
+        long rank = 0;
+        BTreeNode node = root;
+        while (true) {
+            int i = 0;
+            while (i < node.keys.size() && node.keys.get(i).getKey().compareTo(key) < 0) {
+                if (!node.isLeaf) {
+                    rank += node.summaries.get(i)[BTreeNode.KEY_COUNT];
+                }
+                rank++;
+                i++;
+            }
+            if (node.isLeaf) {
+                return rank;
+            }
+            if (i < node.keys.size() && node.keys.get(i).getKey().equals(key)) {
+                return rank + node.summaries.get(i)[BTreeNode.KEY_COUNT];
+            }
+            node = loadNode(node.children.get(i));
+        }
+    }
+
+    /**
+     * Returns the key at a zero-based position in key order. With key counts this
+     * reads one root-to-leaf path; otherwise the keys before it are scanned.
+     *
+     * @param k position of the key, from 0 to {@link #getSize()} - 1
+     * @return the key at position k, or null if k is out of range
+     * @throws IOException if a node cannot be read
+     */
+    public TreeObject select(long k) throws IOException {
+        drainBuffers();
+        if (k < 0 || k >= size) {
             return null;
-        } else {
-            BTreeNode child = readNode(node.children.get(i));
-            return search(child, key);
         }
+        if (!hasKeyCounts()) {
+            Iterator<TreeObject> cursor = iterator();
+            for (long skipped = 0; skipped < k; skipped++) {
+                cursor.next();
+            }
+            return cursor.next();
+        }
+        BTreeNode node = root;
+        while (!node.isLeaf) {
+            int i = 0;
+            while (true) {
+                long below = node.summaries.get(i)[BTreeNode.KEY_COUNT];
+                if (k < below) {
+                    break;
+                }
+                if (k == below) {
+                    return node.keys.get(i);
+                }
+                k -= below + 1;
+                i++;
+            }
+            node = loadNode(node.children.get(i));
+        }
+        return node.keys.get((int) k);
     }
 
+    /**
+     * Returns the keys that split the tree into n parts of equal size: the key at
+     * position {@code i * size / n} for each i from 1 to n - 1. These are shard
+     * boundaries, and for n = 2 the single entry is the median.
+     *
+     * @param n number of parts
+     * @return n - 1 boundary keys in ascending order, fewer if the tree is smaller
+     * @throws IOException if a node cannot be read
+     */
+    public List<TreeObject> quantiles(int n) throws IOException {
+        drainBuffers();
+        List<TreeObject> bounds = new ArrayList<>(Math.max(0, n - 1));
+        // without key counts one scan visits every boundary in turn
+        Iterator<TreeObject> cursor = hasKeyCounts() ? null : iterator();
+        long scanned = 0;
+        long previous = 0;
+        for (int i = 1; i < n; i++) {
+            long position = i * size / n;
+            if (position == previous) {
+                continue;
+            }
+            previous = position;
+            if (cursor == null) {
+                bounds.add(select(position));
+                continue;
+            }
+            TreeObject key = null;
+            while (scanned <= position) {
+                key = cursor.next();
+                scanned++;
+            }
+            bounds.add(key);
+        }
+        return bounds;
+    }
+
+    // === Top-K ===
+
+    /**
+     * Returns the keys with the highest counts between two bounds, highest count
+     * first and ties in key order.
+     * <p>
+     * With count summaries this is a best-first search: a priority queue holds keys
+     * and unexplored subtrees, each subtree ranked by the largest count in it, so a
+     * subtree is only read once its best possible count could still make the list.
+     * Without summaries the range is scanned, keeping the best k in a heap.
+     *
+     * @param k    number of keys to return
+     * @param from smallest key to consider (inclusive), or null for no lower bound
+     * @param to   largest key to consider (inclusive), or null for no upper bound
+     * @return up to k keys in descending count order
+     * @throws IOException if a node cannot be read
+     */
+    public List<TreeObject> topK(int k, String from, String to) throws IOException {
+        drainBuffers();
+        List<TreeObject> result = new ArrayList<>(Math.max(0, k));
+        if (k <= 0 || root.keys.isEmpty()) {
+            return result;
+        }
+        if (!hasCountSummaries()) {
+            PriorityQueue<TreeObject> best = new PriorityQueue<>(k + 1, TOP_K_ORDER.reversed());
+            Iterator<TreeObject> cursor = range(from, to);
+            while (cursor.hasNext()) {
+                best.add(cursor.next());
+                if (best.size() > k) {
+                    best.poll();
+                }
+            }
+            result.addAll(best);
+            result.sort(TOP_K_ORDER);
+            return result;
+        }
+
+        PriorityQueue<TopKEntry> queue = new PriorityQueue<>();
+        expandTopK(root, null, null, from, to, queue);
+        while (result.size() < k && !queue.isEmpty()) {
+            TopKEntry entry = queue.poll();
+            if (entry.key != null) {
+                result.add(entry.key);
+            } else {
+                expandTopK(loadNode(entry.address), entry.low, entry.high, from, to, queue);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Queues the keys of a node that are in range and the children whose key
+     * interval overlaps the range. {@code low} and {@code high} bound the node's
+     * own keys (exclusive); null means unbounded.
+     */
+    private void expandTopK(BTreeNode node, String low, String high, String from, String to,
+            PriorityQueue<TopKEntry> queue) {
+        int count = node.keys.size();
+        for (int i = 0; i < count; i++) {
+            TreeObject key = node.keys.get(i);
+            if ((from == null || key.getKey().compareTo(from) >= 0) && (to == null || key.getKey().compareTo(to) <= 0)) {
+                queue.add(new TopKEntry(key));
+            }
+        }
+        if (node.isLeaf) {
+            return;
+        }
+        for (int i = 0; i <= count; i++) {
+            String childLow = i > 0 ? node.keys.get(i - 1).getKey() : low;
+            String childHigh = i < count ? node.keys.get(i).getKey() : high;
+            // every key in the child lies strictly between childLow and childHigh
+            if ((to != null && childLow != null && childLow.compareTo(to) >= 0)
+                    || (from != null && childHigh != null && childHigh.compareTo(from) <= 0)) {
+                continue;
+            }
+            long best = node.summaries.get(i)[BTreeNode.MAX_COUNT];
+            queue.add(new TopKEntry(node.children.get(i), best, childLow, childHigh));
+        }
+    }
+
+    /** Highest count first, then key order. */
+    private static final Comparator<TreeObject> TOP_K_ORDER =
+            Comparator.comparingLong(TreeObject::getCount).reversed().thenComparing(TreeObject::getKey);
+
+    /**
+     * A key, or a subtree ranked by the largest count it contains. Equal counts are
+     * ordered by position: a key by itself, a subtree by the key just below all of
+     * its keys. A key is thus only returned once no unexplored subtree could hold a
+     * key that should precede it, and ties are resolved in key order without
+     * opening subtrees that lie entirely after the key.
+     */
+    private static final class TopKEntry implements Comparable<TopKEntry> {
+        final TreeObject key;
+        final long address;
+        final long count;
+        final String low;
+        final String high;
+
+        TopKEntry(TreeObject key) {
+            this(key, 0, key.getCount(), null, null);
+        }
+
+        TopKEntry(long address, long maxCount, String low, String high) {
+            this(null, address, maxCount, low, high);
+        }
+
+        private TopKEntry(TreeObject key, long address, long count, String low, String high) {
+            this.key = key;
+            this.address = address;
+            this.count = count;
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        public int compareTo(TopKEntry other) {
+            if (count != other.count) {
+                return count > other.count ? -1 : 1;
+            }
+            String position = key != null ? key.getKey() : low;
+            String otherPosition = other.key != null ? other.key.getKey() : other.low;
+            if (position == null || otherPosition == null) {
+                // an unbounded subtree starts before everything
+                return position == null ? (otherPosition == null ? 0 : -1) : 1;
+            }
+            int order = position.compareTo(otherPosition);
+            if (order != 0) {
+                return order;
+            }
+            // a subtree above a key holds only larger keys, so the key goes first
+            return (key == null ? 1 : 0) - (other.key == null ? 1 : 0);
+        }
+    }
+
+    // === Deletion ===
+
+    /**
+     * Removes a key and its count from the tree (CLRS B-TREE-DELETE). The descent
+     * makes sure every node it enters has at least t keys, borrowing a key from a
+     * sibling or merging with one, so the key can be removed in a single pass.
+     * Pages of merged-away nodes and of a collapsed root go on the free list.
+     * Subtree summaries of the nodes on the path are refreshed on the way back up.
+     *
+     * @param key the key to remove; nothing happens if it is not in the tree
+     * @throws IOException if the tree is read-only
+     */
     @Override
-    public void delete(String key) {
-        // Optional
+    public void delete(String key) throws IOException {
+        if (readOnly) {
+            throw new IOException("BTree " + filename + " is open read-only");
+        }
+        drainBuffers();                                  // merges and borrows would move buffered keys
+        if (deleteFrom(root, key)) {
+            size--;
+        }
+        if (root.keys.isEmpty() && !root.isLeaf) {
+            BTreeNode oldRoot = root;
+            root = readNode(oldRoot.children.get(0));
+            pendingWrites.remove(root.diskAddress);      // pinned as the root from now on
+            rejectedWrites.remove(root.diskAddress);
+            freePage(oldRoot);
+            height--;
+        }
+        writePending();
+        commitIfDue();
+    }
+
+    private boolean deleteFrom(BTreeNode node, String key) {
+        int t = degree;
+        // the path taken, so subtree summaries can be refreshed bottom-up afterwards
+        ArrayList<BTreeNode> parents = new ArrayList<>();
+        ArrayList<Integer> childIndexes = new ArrayList<>();
+        boolean found;
+        while (true) {
+            int i = 0;
+            while (i < node.keys.size() && key.compareTo(node.keys.get(i).getKey()) > 0) { i++; }
+            boolean here = i < node.keys.size() && key.equals(node.keys.get(i).getKey());
+
+            if (here && node.isLeaf) {
+                node.keys.remove(i);
+                writeNode(node);
+                found = true;
+                break;
+            }
+            int next;
+            if (here) {
+                BTreeNode left = readNode(node.children.get(i));
+                BTreeNode right;
+                if (left.keys.size() >= t) {
+                    // replace with the predecessor, then delete the predecessor below
+                    TreeObject predecessor = lastKey(left);
+                    node.keys.set(i, predecessor);
+                    writeNode(node);
+                    key = predecessor.getKey();
+                    next = i;
+                } else if ((right = readNode(node.children.get(i + 1))).keys.size() >= t) {
+                    TreeObject successor = firstKey(right);
+                    node.keys.set(i, successor);
+                    writeNode(node);
+                    key = successor.getKey();
+                    next = i + 1;
+                } else {
+                    merge(node, i, left, right);
+                    next = i;
+                }
+            } else if (node.isLeaf) {
+                found = false;
+                break;
+            } else {
+                next = i;
+                BTreeNode child = readNode(node.children.get(i));
+                if (child.keys.size() < t) {
+                    BTreeNode leftSibling = i > 0 ? readNode(node.children.get(i - 1)) : null;
+                    BTreeNode rightSibling = i < node.keys.size() ? readNode(node.children.get(i + 1)) : null;
+                    if (leftSibling != null && leftSibling.keys.size() >= t) {
+                        borrowFromLeft(node, i, child, leftSibling);
+                    } else if (rightSibling != null && rightSibling.keys.size() >= t) {
+                        borrowFromRight(node, i, child, rightSibling);
+                    } else if (rightSibling != null) {
+                        merge(node, i, child, rightSibling);
+                    } else {
+                        merge(node, i - 1, leftSibling, child);
+                        next = i - 1;
+                    }
+                }
+            }
+            parents.add(node);
+            childIndexes.add(next);
+            node = readNode(node.children.get(next));
+        }
+
+        if (hasSummaries()) {
+            for (int k = parents.size() - 1; k >= 0; k--) {
+                BTreeNode parent = parents.get(k);
+                parent.setSummary(childIndexes.get(k), node);
+                writeNode(parent);
+                node = parent;
+            }
+        }
+        return found;
+    }
+
+    private TreeObject lastKey(BTreeNode node) {
+        while (!node.isLeaf) {
+            node = readNode(node.children.get(node.children.size() - 1));
+        }
+        return node.keys.get(node.keys.size() - 1);
+    }
+
+    private TreeObject firstKey(BTreeNode node) {
+        while (!node.isLeaf) {
+            node = readNode(node.children.get(0));
+        }
+        return node.keys.get(0);
+    }
+
+    /**
+     * Moves the separator at {@code index} down into {@code child} and the last key
+     * of its left sibling up into the parent.
+     */
+    private void borrowFromLeft(BTreeNode parent, int index, BTreeNode child, BTreeNode sibling) {
+        child.keys.add(0, parent.keys.get(index - 1));
+        parent.keys.set(index - 1, sibling.keys.remove(sibling.keys.size() - 1));
+        if (!sibling.isLeaf) {
+            sibling.moveChild(sibling.children.size() - 1, child, 0);
+        }
+        parent.setSummary(index - 1, sibling);
+        writeNode(sibling);
+        writeNode(child);
+        writeNode(parent);
+    }
+
+    /**
+     * Moves the separator at {@code index} down into {@code child} and the first key
+     * of its right sibling up into the parent.
+     */
+    private void borrowFromRight(BTreeNode parent, int index, BTreeNode child, BTreeNode sibling) {
+        child.keys.add(parent.keys.get(index));
+        parent.keys.set(index, sibling.keys.remove(0));
+        if (!sibling.isLeaf) {
+            sibling.moveChild(0, child, child.children.size());
+        }
+        parent.setSummary(index + 1, sibling);
+        writeNode(sibling);
+        writeNode(child);
+        writeNode(parent);
+    }
+
+    /**
+     * Merges child {@code index + 1} and the separator between them into child
+     * {@code index}, and frees the right node's page.
+     */
+    private void merge(BTreeNode parent, int index, BTreeNode left, BTreeNode right) {
+        left.keys.add(parent.keys.remove(index));
+        left.keys.addAll(right.keys);
+        while (!right.children.isEmpty()) {
+            right.moveChild(0, left, left.children.size());
+        }
+        parent.removeChild(index + 1);
+        freePage(right);
+        writeNode(left);
+        writeNode(parent);
+    }
+
+    // === Page allocation ===
+
+    /**
+     * @return the address for a new node: a page from the free list if there is
+     *         one, otherwise a new page at the end of the file
+     */
+    private long allocatePage() {
+        nodes++;
+        if (freeListHead == 0) {
+            long address = nextDiskAddress;
+            nextDiskAddress += nodeSize;
+            return address;
+        }
+        long address = freeListHead;
+        try {
+            ByteBuffer page = storage.read(address, nodeSize);
+            if (page.getInt() != FREE_PAGE) {
+                throw new IllegalStateException("free list entry " + address + " is not a free page");
+            }
+            page.get();
+            freeListHead = page.getLong();
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading free list: " + e.getMessage());
+        }
+        return address;
+    }
+
+    /**
+     * Puts a node's page at the head of the free list. The page is overwritten with
+     * a marker and the address of the next free page; the node must no longer be
+     * referenced by the tree.
+     */
+    private void freePage(BTreeNode node) {
+        if (BTreeCache != null) {
+            BTreeCache.remove(node.diskAddress);
+        }
+        pendingWrites.remove(node.diskAddress);
+        rejectedWrites.remove(node.diskAddress);
+        node.markClean();
+        pushFreePage(node.diskAddress);
+        nodes--;
+    }
+
+    private void pushFreePage(long address) {
+        try {
+            ByteBuffer page = storage.writeBuffer(address, nodeSize);
+            page.putInt(FREE_PAGE);
+            page.put((byte) 0);
+            page.putLong(freeListHead);
+            while (page.hasRemaining()) {
+                page.put((byte) 0);
+            }
+            storage.write(address, page);
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing free list: " + e.getMessage());
+        }
+        freeListHead = address;
     }
 
     @Override
     public void dumpToFile(PrintWriter out) throws IOException {
-        TreeObject[] sorted = getSortedTreeObjects();
-        for (TreeObject obj : sorted) {
-            out.println(obj.getKey() + " " + obj.getCount());
+        for (TreeObject obj : this) {
+            out.print(obj.getKey());
+            out.print(' ');
+            out.println(obj.getCount());
         }
         out.close();
     }
 
+    /**
+     * Exports the tree in key order to a SQLite table with columns key and frequency.
+     * The table is dropped and recreated. Rows are streamed through one prepared
+     * statement in JDBC batches inside large transactions, with journaling relaxed
+     * for the load; the indexes are built once all rows are in.
+     *
+     * @param dbName    path of the SQLite database file, created if missing
+     * @param tableName name of the table to (re)create
+     * @throws IOException if the database cannot be written
+     */
     @Override
     public void dumpToDatabase(String dbName, String tableName) throws IOException {
-        // Optional
+        String table = "\"" + tableName + "\"";
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbName)) {
+            try (Statement stmt = conn.createStatement()) {
+                // page size only takes effect on a new database, so it is set before anything else
+                stmt.execute("PRAGMA page_size = " + DB_PAGE_SIZE);
+                stmt.execute("PRAGMA journal_mode = WAL");
+                stmt.execute("PRAGMA synchronous = NORMAL");
+                stmt.execute("PRAGMA cache_size = -65536");
+                stmt.execute("DROP TABLE IF EXISTS " + table);
+                stmt.execute("CREATE TABLE " + table + " (key TEXT NOT NULL, frequency INTEGER NOT NULL)");
+            }
+
+            conn.setAutoCommit(false);
+            long rows = 0;
+            try (PreparedStatement insert = conn.prepareStatement(
+                    "INSERT INTO " + table + " (key, frequency) VALUES (?, ?)")) {
+                for (TreeObject obj : this) {
+                    insert.setString(1, obj.getKey());
+                    insert.setLong(2, obj.getCount());
+                    insert.addBatch();
+                    if (++rows % DB_BATCH_SIZE == 0) {
+                        insert.executeBatch();
+                        if (rows % DB_ROWS_PER_TRANSACTION == 0) {
+                            conn.commit();
+                        }
+                    }
+                }
+                insert.executeBatch();
+            }
+            conn.commit();
+
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE UNIQUE INDEX \"" + tableName + "_key\" ON " + table + " (key)");
+                stmt.execute("CREATE INDEX \"" + tableName + "_frequency\" ON " + table + " (frequency DESC, key)");
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            throw new IOException("Error writing table " + tableName + " to " + dbName + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns a cursor over every key in ascending order. Nodes are read as the
+     * cursor reaches them, so memory use depends on the tree height only.
+     *
+     * @return an in-order iterator over the tree
+     */
+    @Override
+    public Iterator<TreeObject> iterator() {
+        return range(null, null);
     }
 
     public String[] getSortedKeyArray() {
-        sortedStringValues = new String[(int) size];
-        sortedTreeObjects = new TreeObject[(int) size];
-        inorderTraversal(root, sortedStringValues, sortedTreeObjects, 0);
-        return sortedStringValues;
+        drainBuffers();
+        String[] keys = new String[(int) size];
+        int i = 0;
+        for (TreeObject obj : this) {
+            keys[i++] = obj.getKey();
+        }
+        return keys;
     }
 
     public TreeObject[] getSortedTreeObjects() {
-        sortedStringValues = new String[(int) size];
-        sortedTreeObjects = new TreeObject[(int) size];
-        inorderTraversal(root, sortedStringValues, sortedTreeObjects, 0);
-        return sortedTreeObjects;
+        drainBuffers();
+        TreeObject[] objects = new TreeObject[(int) size];
+        int i = 0;
+        for (TreeObject obj : this) {
+            objects[i++] = obj;
+        }
+        return objects;
     }
 
-    private int inorderTraversal(BTreeNode node, String[] values, TreeObject[] objects, int index) {
-        if (node.isLeaf) {
-            for (TreeObject key : node.keys) {
-                values[index] = key.getKey();
-                objects[index++] = key;
+    public void finishUp() throws IOException {
+        if (readOnly) {
+            storage.close(0);
+            return;
+        }
+        drainBuffers();
+        writeDirtyNodes();
+        writeMetaData();
+        storage.close(nextDiskAddress);
+
+        // the count index only describes the tree as it is now
+        if (writeRequests > 0) {
+            File countIndex = new File(filename + COUNT_INDEX_SUFFIX);
+            if (options.isCountIndex()) {
+                buildCountIndex();
+            } else if (countIndex.exists() && !countIndex.delete()) {
+                throw new IOException("Cannot remove stale count index " + countIndex);
             }
-            return index;
-        } else {
-            int i = 0;
-            for (; i < node.keys.size(); i++) {
-                BTreeNode child = readNode(node.children.get(i));
-                index = inorderTraversal(child, values, objects, index);
-                values[index] = node.keys.get(i).getKey();
-                objects[index++] = node.keys.get(i);
+        }
+    }
+
+    // === Count-ordered index ===
+
+    /**
+     * Writes a second tree, {@code <file>.count}, holding every key ordered by
+     * descending count and then by key. Its keys are the count, encoded so that
+     * string order is descending count order, followed by the original key, so a key
+     * must leave room for the count in the key slot.
+     *
+     * @throws IOException if a key is longer than {@value #COUNT_INDEX_KEY_BYTES}
+     *         bytes; no index is left behind
+     */
+    private void buildCountIndex() throws IOException {
+        BTreeOptions indexOptions = new BTreeOptions().setStorageType(options.getStorageType());
+        File indexFile = new File(filename + COUNT_INDEX_SUFFIX);
+        BTree index = new BTree(degree, indexFile.getPath(), indexOptions);
+        BTree source = open(filename, true, new BTreeOptions().setStorageType(options.getStorageType()));
+        boolean built = false;
+        try {
+            Iterator<TreeObject> keys = source.iterator();
+            index.bulkLoad(new Iterator<TreeObject>() {
+                @Override
+                public boolean hasNext() {
+                    return keys.hasNext();
+                }
+
+                @Override
+                public TreeObject next() {
+                    TreeObject obj = keys.next();
+                    if (obj.getKey().getBytes(StandardCharsets.UTF_8).length > COUNT_INDEX_KEY_BYTES) {
+                        throw new IllegalArgumentException("key " + obj.getKey() + " is longer than the "
+                                + COUNT_INDEX_KEY_BYTES + " bytes a count index can hold");
+                    }
+                    return new TreeObject(countIndexKey(obj.getCount()) + obj.getKey(), obj.getCount());
+                }
+            });
+            built = true;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Cannot build count index for " + filename + ": " + e.getMessage(), e);
+        } finally {
+            source.finishUp();
+            index.finishUp();
+            if (!built) {
+                Files.deleteIfExists(indexFile.toPath());
             }
-            BTreeNode child = readNode(node.children.get(i));
-            return inorderTraversal(child, values, objects, index);
         }
     }
 
-    public void finishUp() throws IOException {
+    /**
+     * Encodes a count as 10 printable characters whose string order is the reverse
+     * of the numeric order of the counts.
+     */
+    private static String countIndexKey(long count) {
+        long value = Long.MAX_VALUE - count;
+        char[] digits = new char[COUNT_PREFIX_LENGTH];
+        for (int i = COUNT_PREFIX_LENGTH - 1; i >= 0; i--) {
+            digits[i] = (char) ('!' + value % 94);
+            value /= 94;
+        }
+        return new String(digits);
+    }
+
+    /**
+     * Returns the keys with the highest counts in the whole tree, highest first and
+     * ties in key order. If the count index was built, the answer is its first n
+     * entries, read in O(log n + n) pages; otherwise {@link #topK} is used.
+     *
+     * @param n number of keys to return
+     * @return up to n keys in descending count order
+     * @throws IOException if a node cannot be read
+     */
+    public List<TreeObject> topByCount(int n) throws IOException {
+        File countIndex = new File(filename + COUNT_INDEX_SUFFIX);
+        if (!countIndex.exists() || !readOnly) {
+            return topK(n, null, null);
+        }
+        List<TreeObject> result = new ArrayList<>(Math.max(0, n));
+        BTree index = open(countIndex.getPath(), true, new BTreeOptions().setStorageType(options.getStorageType()));
+        try {
+            Iterator<TreeObject> entries = index.iterator();
+            while (result.size() < n && entries.hasNext()) {
+                TreeObject entry = entries.next();
+                result.add(new TreeObject(entry.getKey().substring(COUNT_PREFIX_LENGTH), entry.getCount()));
+            }
+        } finally {
+            nodeReads.add(index.getNodeReads());
+            index.finishUp();
+        }
+        return result;
+    }
+
+    /** @return true if a count index from {@link BTreeOptions#setCountIndex} exists for this file */
+    public boolean hasCountIndex() {
+        return new File(filename + COUNT_INDEX_SUFFIX).exists();
+    }
+
+    // === Group commit ===
+
+    /**
+     * Counts a finished insert or delete and commits once the configured number of
+     * operations or the commit window has been reached, so one log sync covers a
+     * whole group of operations. Does nothing without a write-ahead log.
+     */
+    private void commitIfDue() throws IOException {
+        if (!writeAheadLog) {
+            return;
+        }
+        uncommittedOperations++;
+        if (uncommittedOperations >= options.getCommitOperations()
+                || System.currentTimeMillis() - lastCommitMillis >= options.getCommitMillis()) {
+            flush();
+        }
+    }
+
+    /** @return number of group commits made through the write-ahead log */
+    public long getCommits() { return commits; }
+
+    /**
+     * Writes every modified node and the header to storage and forces them to disk.
+     * Clean nodes stay cached and are not rewritten. Does nothing on a read-only tree.
+     * With a write-ahead log this is a commit: a crash after it returns is recovered
+     * to exactly this state, so callers can commit at points of their own choosing.
+     *
+     * @throws IOException if a page cannot be written
+     */
+    public void flush() throws IOException {
+        if (readOnly) {
+            return;
+        }
+        drainBuffers();
+        writeDirtyNodes();
         writeMetaData();
+        storage.force();
+        if (writeAheadLog) {
+            uncommittedOperations = 0;
+            lastCommitMillis = System.currentTimeMillis();
+            commits++;
+        }
+    }
+
+    private void writeDirtyNodes() {
         if (BTreeCache != null) {
             for (Entry<Long, BTreeNode> entry : BTreeCache.getCachedNodes().entrySet()) {
-                diskWrite(entry.getValue());
+                writeBack(entry.getValue());
             }
         }
-        fileChannel.close();
+        for (BTreeNode node : rejectedWrites.values()) {
+            writeBack(node);
+        }
+        rejectedWrites.clear();
+        writePending();
+        writeBack(root);
     }
 
+    /**
+     * Marks a node as modified. With a cache the node stays there until it is
+     * evicted or flushed; a node the policy declines to admit is held aside until
+     * the next flush instead, so a node modified often but rarely read is not
+     * written on every change. Without a cache a node is held until the current
+     * operation ends, so a node changed several times by one insert is written
+     * once. The root is always in memory and is written on flush.
+     */
     private void writeNode(BTreeNode node) {
+        writeRequests++;
+        node.markDirty();
         if (BTreeCache != null) {
             BTreeNode evicted = BTreeCache.add(node);
-            if (evicted != null) {
-                diskWrite(evicted);
+            if (evicted == node) {
+                holdRejected(node);                     // may be a root being split
+            } else {
+                rejectedWrites.remove(node.diskAddress);
+                if (evicted != null) {
+                    writeBack(evicted);
+                }
             }
-        } else {
+        } else if (node != root) {
+            pendingWrites.put(node.diskAddress, node);
+        }
+    }
+
+    /**
+     * Holds a modified node the cache did not admit. The held nodes are bounded by
+     * the cache size; beyond it the one held longest is written back.
+     */
+    private void holdRejected(BTreeNode node) {
+        rejectedWrites.remove(node.diskAddress);
+        rejectedWrites.put(node.diskAddress, node);
+        if (rejectedWrites.size() > options.getCacheSize()) {
+            Iterator<BTreeNode> oldest = rejectedWrites.values().iterator();
+            writeBack(oldest.next());
+            oldest.remove();
+        }
+    }
+
+    private void writePending() {
+        for (BTreeNode node : pendingWrites.values()) {
+            writeBack(node);
+        }
+        pendingWrites.clear();
+    }
+
+    /**
+     * Writes a node that is leaving memory, but only if it changed since it was
+     * last read or written; clean nodes are dropped without I/O.
+     */
+    private void writeBack(BTreeNode node) {
+        if (node.isDirty()) {
             diskWrite(node);
         }
     }
 
+    private static Cache<Long, BTreeNode> createCache(BTreeOptions options) {
+        if (!options.isUsingCache()) {
+            return null;
+        }
+        // a few stripes per reader keeps the chance of two threads meeting on a lock low
+        int stripes = options.getConcurrency() > 1 ? Integer.highestOneBit(options.getConcurrency() * 4) : 1;
+        return new Cache<>(options.getCacheSize(), options.getCachePolicy(), stripes);
+    }
+
     private BTreeNode readNode(long diskAddress) {
         if (diskAddress == 0) return null;
+        if (diskAddress == root.diskAddress) return root;
+        BTreeNode pending = pendingWrites.get(diskAddress);
+        if (pending != null) return pending;
         if (BTreeCache != null) {
-            BTreeNode cached = BTreeCache.get(diskAddress);
+            BTreeNode cached = BTreeCache.get(diskAddress);  // counts the access even for a held node
             if (cached != null) return cached;
+            BTreeNode rejected = rejectedWrites.get(diskAddress);
+            if (rejected != null) return rejected;
+            BTreeNode node = diskRead(diskAddress);
+            cacheReadNode(node);
+            return node;
         }
         return diskRead(diskAddress);
     }
 
+    /**
+     * Offers a node just read from disk to the cache. A victim it displaces is
+     * written back if dirty; a node the policy declines to admit is clean and is
+     * simply dropped.
+     */
+    private void cacheReadNode(BTreeNode node) {
+        BTreeNode evicted = BTreeCache.add(node);
+        if (evicted != null) {
+            writeBack(evicted);
+        }
+    }
+
     private BTreeNode diskRead(long diskAddress) {
+        nodeReads.increment();
         try {
-            fileChannel.position(diskAddress);
-            buffer.clear();
-            // [Change 4: full-buffer read loop to avoid partial I/O]
-            while (buffer.hasRemaining()) {
-                int r = fileChannel.read(buffer);
-                if (r < 0) throw new IOException("EOF at " + diskAddress);
-            }
-            ((Buffer)buffer).flip();             // [Change 5: cast to Buffer before flip]
-            return BTreeNode.fromByteBuffer(buffer, degree, diskAddress);
+            ByteBuffer page = storage.read(diskAddress, nodeSize);
+            return BTreeNode.fromByteBuffer(page, degree, flags, diskAddress);
         } catch (IOException e) {
             throw new RuntimeException("Error reading node from disk: " + e.getMessage());
         }
@@ -303,44 +1901,76 @@ public class BTree implements BTreeInterface {
 
     private void diskWrite(BTreeNode node) {
         try {
-            fileChannel.position(node.diskAddress);
-            buffer.clear();
-            node.toByteBuffer(buffer);
-            ((Buffer)buffer).flip();           // [Change 6: cast to Buffer before flip]
-            // [Change 7: full-buffer write loop to avoid partial I/O]
-            while (buffer.hasRemaining()) {
-                fileChannel.write(buffer);
-            }
+            ByteBuffer page = storage.writeBuffer(node.diskAddress, nodeSize);
+            node.toByteBuffer(page);
+            storage.write(node.diskAddress, page);
+            node.markClean();
+            diskWrites++;
         } catch (IOException e) {
             throw new RuntimeException("Error writing node to disk: " + e.getMessage());
         }
     }
 
+    /**
+     * Restores the tree state from the header at the start of the file.
+     * Header layout: magic, version, degree, node size, key count, node count,
+     * height, next free address, root address, free list head, node layout flags,
+     * log offset.
+     */
     private void readMetaData() throws IOException {
-        fileChannel.position(0);
-        ByteBuffer tmp = ByteBuffer.allocateDirect(METADATA_SIZE);
-        // [Change 8: full-buffer read loop for metadata]
-        while (tmp.hasRemaining()) {
-            if (fileChannel.read(tmp) < 0) break;
+        ByteBuffer tmp;
+        try {
+            tmp = storage.read(0, METADATA_SIZE);
+        } catch (IOException e) {
+            throw new IOException(filename + " is not a B-Tree file");
+        }
+        if (tmp.getInt() != MAGIC) {
+            throw new IOException(filename + " is not a B-Tree file");
+        }
+        int version = tmp.getInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException(filename + " has unsupported format version " + version);
+        }
+        degree = tmp.getInt();
+        nodeSize = tmp.getInt();
+        size = tmp.getLong();
+        nodes = (int) tmp.getLong();
+        height = tmp.getInt();
+        nextDiskAddress = tmp.getLong();
+        long rootAddress = tmp.getLong();
+        freeListHead = tmp.getLong();                // zero in files written before deletion existed
+        flags = tmp.getInt();                        // zero in files written before summaries existed
+        logOffset = tmp.getLong();                   // zero in files written before appends existed
+
+        if (degree < 2 || nodeSize != estimateNodeDiskSize()) {
+            throw new IOException(filename + " has a corrupt header (degree " + degree + ", node size " + nodeSize + ")");
         }
-        ((Buffer)tmp).flip();                  // [Change 9: cast before flip]
-        root.diskAddress = tmp.getLong();
+        root = diskRead(rootAddress);
     }
 
     private void writeMetaData() throws IOException {
-        fileChannel.position(0);
-        ByteBuffer tmp = ByteBuffer.allocateDirect(METADATA_SIZE);
+        ByteBuffer tmp = storage.writeBuffer(0, METADATA_SIZE);
+        tmp.putInt(MAGIC);
+        tmp.putInt(FORMAT_VERSION);
+        tmp.putInt(degree);
+        tmp.putInt(nodeSize);
+        tmp.putLong(size);
+        tmp.putLong(nodes);
+        tmp.putInt(height);
+        tmp.putLong(nextDiskAddress);
         tmp.putLong(root.diskAddress);
-        ((Buffer)tmp).flip();                 // [Change 10: cast before flip]
-        // [Change 11: full-buffer write loop for metadata]
+        tmp.putLong(freeListHead);
+        tmp.putInt(flags);
+        tmp.putLong(logOffset);
         while (tmp.hasRemaining()) {
-            fileChannel.write(tmp);
+            tmp.put((byte) 0);
         }
+        storage.write(0, tmp);
     }
 
     private int estimateNodeDiskSize() {
         return (2 * degree - 1) * TreeObject.getDiskSize()
-             + (2 * degree) * Long.BYTES
+             + (2 * degree) * (Long.BYTES + BTreeNode.summaryBytes(flags))
              + Long.BYTES + Integer.BYTES + 1;
     }
 }
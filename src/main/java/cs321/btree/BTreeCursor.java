@@ -0,0 +1,130 @@
+package cs321.btree;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy forward cursor over the keys of a {@link BTree} in ascending order.
+ *
+ * The cursor descends once from the root to the first key at or after its start
+ * key, then walks the tree in order, reading each node when it is first reached.
+ * It holds one frame per level of the tree, so its memory does not depend on how
+ * many keys it returns. The tree must not be modified while a cursor is open.
+ */
+public class BTreeCursor implements Iterator<TreeObject> {
+
+    /**
+     * A node on the path from the root and the index of the next key to return
+     * from it. For an internal node, child {@code index} has already been entered.
+     */
+    private static final class Frame {
+        final BTreeNode node;
+        int index;
+
+        Frame(BTreeNode node, int index) {
+            this.node = node;
+            this.index = index;
+        }
+    }
+
+    private final BTree tree;
+    private final String to;
+    private final String prefix;
+    private final ArrayDeque<Frame> stack = new ArrayDeque<>();
+    private TreeObject next;
+
+    /**
+     * @param tree   the tree to walk
+     * @param root   its root node
+     * @param from   first key to return (inclusive), or null to start at the smallest key
+     * @param to     last key to return (inclusive), or null for no upper bound
+     * @param prefix stop at the first key not starting with this, or null
+     */
+    BTreeCursor(BTree tree, BTreeNode root, String from, String to, String prefix) {
+        this.tree = tree;
+        this.to = to;
+        this.prefix = prefix;
+        if (root.getCount() > 0) {
+            descend(root, from);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !stack.isEmpty()) {
+            next = advance();
+            if (next != null && !inBounds(next.getKey())) {
+                next = null;
+                stack.clear();
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public TreeObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        TreeObject result = next;
+        next = null;
+        return result;
+    }
+
+    private boolean inBounds(String key) {
+        if (to != null && key.compareTo(to) > 0) {
+            return false;
+        }
+        return prefix == null || key.startsWith(prefix);
+    }
+
+    /**
+     * Pushes the path from {@code node} down to the first key not less than
+     * {@code from}.
+     */
+    private void descend(BTreeNode node, String from) {
+        while (true) {
+            int i = 0;
+            int count = node.keys.size();
+            if (from != null) {
+                while (i < count && node.keys.get(i).getKey().compareTo(from) < 0) {
+                    i++;
+                }
+            }
+            stack.push(new Frame(node, i));
+            // keys in child i are all below key i, so an exact match needs no descent
+            if (node.isLeaf || (from != null && i < count && node.keys.get(i).getKey().equals(from))) {
+                return;
+            }
+            node = load(node.children.get(i));
+        }
+    }
+
+    /**
+     * @return the next key in order, or null when the tree is exhausted
+     */
+    private TreeObject advance() {
+        while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+            if (frame.index < frame.node.keys.size()) {
+                TreeObject key = frame.node.keys.get(frame.index++);
+                if (!frame.node.isLeaf) {
+                    descend(load(frame.node.children.get(frame.index)), null);
+                }
+                return key;
+            }
+            stack.pop();
+        }
+        return null;
+    }
+
+    private BTreeNode load(long diskAddress) {
+        try {
+            return tree.loadNode(diskAddress);
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading node from disk: " + e.getMessage());
+        }
+    }
+}
@@ -33,8 +33,8 @@ public interface BTreeInterface {
     /**
      *
      * Insert a given SSH key into the B-Tree. If the key already exists in the B-Tree,
-     * the frequency count is incremented. Otherwise, a new node is inserted
-     * following the B-Tree insertion algorithm.
+     * the object's count is added to its frequency count. Otherwise, a new node is
+     * inserted following the B-Tree insertion algorithm.
      *
      * @param obj
      *            A TreeObject representing an SSH key.
@@ -75,10 +75,11 @@ public interface BTreeInterface {
 
 
 	/**
-     * Deletes a key from the BTree. Not Implemented.
+     * Deletes a key and its frequency count from the BTree. Nodes emptied by the
+     * deletion are released for reuse by later insertions.
      *
      * @param key the key to be deleted
      */
-    void delete(String key);
+    void delete(String key) throws IOException;
 
 }
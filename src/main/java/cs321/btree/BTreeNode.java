@@ -1,5 +1,6 @@
 package cs321.btree;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -8,16 +9,55 @@ import cs321.common.KeyInterface;
 
 public class BTreeNode implements KeyInterface<Long> {
 
+    /**
+     * Layout flag: every child pointer carries the largest count and the total of
+     * all counts in that child's subtree.
+     */
+    public static final int COUNT_SUMMARY = 1;
+    /**
+     * Layout flag: every child pointer carries the number of keys in that child's
+     * subtree, so a key's position in the tree can be found along a single path.
+     */
+    public static final int KEY_COUNTS = 2;
+
+    /** Index of the subtree's largest count in a child summary. */
+    public static final int MAX_COUNT = 0;
+    /** Index of the subtree's total count in a child summary. */
+    public static final int TOTAL_COUNT = 1;
+    /** Index of the subtree's number of keys in a child summary. */
+    public static final int KEY_COUNT = 2;
+    /** Fields of a summary in memory; only those selected by the layout flags are stored. */
+    private static final int SUMMARY_FIELDS = 3;
+    /** Stored summary fields for each combination of the two summary flags. */
+    private static final int[][] STORED_FIELDS = {
+            {}, {MAX_COUNT, TOTAL_COUNT}, {KEY_COUNT}, {MAX_COUNT, TOTAL_COUNT, KEY_COUNT}};
+
     public ArrayList<TreeObject> keys;
     public ArrayList<Long> children;
+    /** Per-child subtree summaries, parallel to children; null unless the layout has them. */
+    public ArrayList<long[]> summaries;
     public boolean isLeaf;
     public long diskAddress;
     private final int maxKeys;
+    private final int flags;
+    private boolean dirty;
 
     public BTreeNode(int degree) {
+        this(degree, 0);
+    }
+
+    /**
+     * @param degree the tree degree
+     * @param flags  layout flags of the tree, e.g. {@link #COUNT_SUMMARY}
+     */
+    public BTreeNode(int degree, int flags) {
         this.maxKeys = (2 * degree) - 1;
+        this.flags = flags;
         this.keys = new ArrayList<>(maxKeys);
         this.children = new ArrayList<>(maxKeys + 1);
+        if (summaryFields(flags).length > 0) {
+            this.summaries = new ArrayList<>(maxKeys + 1);
+        }
         this.isLeaf = true;
         this.diskAddress = 0;
     }
@@ -39,20 +79,156 @@ public class BTreeNode implements KeyInterface<Long> {
         return keys.size();
     }
 
+    /**
+     * @return true if the node changed since it was last read from or written to disk
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    public void markDirty() {
+        this.dirty = true;
+    }
+
+    public void markClean() {
+        this.dirty = false;
+    }
+
     public int getDiskSize() {
         return Integer.BYTES + 1 + Long.BYTES +
                 (maxKeys * TreeObject.getDiskSize()) +
-                ((maxKeys + 1) * Long.BYTES);
+                ((maxKeys + 1) * (Long.BYTES + summaryBytes(flags)));
     }
 
     public static int getOptimalDegree() {
+        return getOptimalDegree(0);
+    }
+
+    /**
+     * @param flags layout flags of the tree
+     * @return the largest degree whose nodes fit in a 4096-byte block
+     */
+    public static int getOptimalDegree(int flags) {
         int blockSize = 4096;
         int overhead = Integer.BYTES + 1 + Long.BYTES;
         int treeObjectSize = TreeObject.getDiskSize();
-        int pointerSize = Long.BYTES;
+        int pointerSize = Long.BYTES + summaryBytes(flags);
         return (blockSize - overhead) / (2 * (treeObjectSize + pointerSize));
     }
 
+    /**
+     * @return bytes of summary stored next to each child pointer
+     */
+    static int summaryBytes(int flags) {
+        return summaryFields(flags).length * Long.BYTES;
+    }
+
+    /**
+     * @return the summary fields stored on disk for a layout, in file order
+     */
+    private static int[] summaryFields(int flags) {
+        return STORED_FIELDS[flags & (COUNT_SUMMARY | KEY_COUNTS)];
+    }
+
+    // === Child pointers and their summaries ===
+
+    /**
+     * Inserts a child pointer with an empty summary; the caller fills it in with
+     * {@link #setSummary(int, BTreeNode)}.
+     */
+    public void addChild(int index, long address) {
+        children.add(index, address);
+        if (summaries != null) {
+            summaries.add(index, new long[SUMMARY_FIELDS]);
+        }
+    }
+
+    public void addChild(long address) {
+        addChild(children.size(), address);
+    }
+
+    public void removeChild(int index) {
+        children.remove(index);
+        if (summaries != null) {
+            summaries.remove(index);
+        }
+    }
+
+    /**
+     * Moves a child pointer together with its summary to another node.
+     */
+    public void moveChild(int index, BTreeNode target, int targetIndex) {
+        target.children.add(targetIndex, children.remove(index));
+        if (summaries != null) {
+            target.summaries.add(targetIndex, summaries.remove(index));
+        }
+    }
+
+    /**
+     * Records the current totals of a child's subtree in this node.
+     */
+    public void setSummary(int index, BTreeNode child) {
+        if (summaries != null) {
+            summaries.set(index, child.summarize());
+        }
+    }
+
+    /**
+     * @return this node's subtree summary, as its parent stores it
+     */
+    public long[] summarize() {
+        long[] summary = new long[SUMMARY_FIELDS];
+        summary[MAX_COUNT] = subtreeMaxCount();
+        summary[TOTAL_COUNT] = subtreeTotalCount();
+        summary[KEY_COUNT] = subtreeKeyCount();
+        return summary;
+    }
+
+    /**
+     * @return the largest count in this node's subtree, from its keys and child summaries
+     */
+    public long subtreeMaxCount() {
+        long max = 0;
+        for (TreeObject key : keys) {
+            max = Math.max(max, key.getCount());
+        }
+        if ((flags & COUNT_SUMMARY) != 0 && !isLeaf) {
+            for (long[] summary : summaries) {
+                max = Math.max(max, summary[MAX_COUNT]);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return the sum of all counts in this node's subtree, from its keys and child summaries
+     */
+    public long subtreeTotalCount() {
+        long total = 0;
+        for (TreeObject key : keys) {
+            total += key.getCount();
+        }
+        if ((flags & COUNT_SUMMARY) != 0 && !isLeaf) {
+            for (long[] summary : summaries) {
+                total += summary[TOTAL_COUNT];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of keys in this node's subtree, from its keys and child summaries
+     */
+    public long subtreeKeyCount() {
+        long total = keys.size();
+        if ((flags & KEY_COUNTS) != 0 && !isLeaf) {
+            for (long[] summary : summaries) {
+                total += summary[KEY_COUNT];
+            }
+        }
+        return total;
+    }
+
     public void toByteBuffer(ByteBuffer buffer) {
         buffer.putInt(keys.size()); // number of keys
         buffer.put((byte) (isLeaf ? 1 : 0)); // 1 if leaf else 0
@@ -75,35 +251,57 @@ public class BTreeNode implements KeyInterface<Long> {
                 buffer.putLong(0L); // 0 means null pointer
             }
         }
+
+        // Write the child summaries after all the pointers
+        if (summaries != null) {
+            int[] fields = summaryFields(flags);
+            for (int i = 0; i < maxKeys + 1; i++) {
+                long[] summary = i < summaries.size() ? summaries.get(i) : null;
+                for (int f : fields) {
+                    buffer.putLong(summary != null ? summary[f] : 0L);
+                }
+            }
+        }
     }
 
     public static BTreeNode fromByteBuffer(ByteBuffer buffer, int degree, long diskAddress) {
-        BTreeNode node = new BTreeNode(degree);
+        return fromByteBuffer(buffer, degree, 0, diskAddress);
+    }
+
+    public static BTreeNode fromByteBuffer(ByteBuffer buffer, int degree, int flags, long diskAddress) {
+        BTreeNode node = new BTreeNode(degree, flags);
         node.diskAddress = diskAddress;
     
         int count = buffer.getInt();
         node.isLeaf = (buffer.get() == 1);
         node.diskAddress = buffer.getLong(); // disk address
     
-        // Read all TreeObjects
-        for (int i = 0; i < (2 * degree - 1); i++) {
-            byte[] keyBytes = new byte[64];
-            buffer.get(keyBytes);
-            String keyString = new String(keyBytes, StandardCharsets.UTF_8).trim();
-            long countValue = buffer.getLong();
-            if (i < count) {
-                node.keys.add(new TreeObject(keyString, countValue));
+        // Read the used TreeObjects; empty slots are skipped without decoding
+        for (int i = 0; i < count; i++) {
+            node.keys.add(readTreeObject(buffer));
+        }
+        int emptySlots = (2 * degree - 1) - count;
+        ((Buffer) buffer).position(buffer.position() + emptySlots * TreeObject.getDiskSize());
+
+        // Read the used child pointers; leaves have none
+        if (!node.isLeaf) {
+            for (int i = 0; i <= count; i++) {
+                node.children.add(buffer.getLong());
             }
-            // otherwise skip the empty ones
         }
-    
-        // Read all child pointers
-        for (int i = 0; i < (2 * degree); i++) {
-            long childAddr = buffer.getLong();
-            if (!node.isLeaf && i <= count) {
-                node.children.add(childAddr);
+        ((Buffer) buffer).position(buffer.position() + (2 * degree - node.children.size()) * Long.BYTES);
+
+        if (node.summaries != null) {
+            int[] fields = summaryFields(flags);
+            for (int i = 0; i < node.children.size(); i++) {
+                long[] summary = new long[SUMMARY_FIELDS];
+                for (int f : fields) {
+                    summary[f] = buffer.getLong();
+                }
+                node.summaries.add(summary);
             }
-            // otherwise skip or just read to maintain correct positioning
+            ((Buffer) buffer).position(buffer.position()
+                    + (2 * degree - node.children.size()) * fields.length * Long.BYTES);
         }
     
         return node;
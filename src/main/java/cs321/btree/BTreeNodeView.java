@@ -0,0 +1,125 @@
+package cs321.btree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only view of an encoded {@link BTreeNode} page. Fields are read straight
+ * from the page buffer on demand, so probing a node for one key allocates nothing;
+ * only a matching key is turned into a {@link TreeObject}.
+ *
+ * Keys are compared as unsigned UTF-8 bytes, which orders them by code point. For
+ * the ASCII keys produced from SSH logs this is the same order as String.compareTo.
+ * A view is reused across pages with {@link #wrap(ByteBuffer)} and is not thread-safe.
+ */
+class BTreeNodeView {
+
+    private static final int KEY_BYTES = 64;
+    private static final int HEADER_BYTES = Integer.BYTES + 1 + Long.BYTES;
+
+    private final int maxKeys;
+    private final int childrenOffset;
+    private ByteBuffer page;
+    private int base;
+
+    BTreeNodeView(int degree) {
+        this.maxKeys = 2 * degree - 1;
+        this.childrenOffset = HEADER_BYTES + maxKeys * TreeObject.getDiskSize();
+    }
+
+    /**
+     * Points this view at an encoded node.
+     *
+     * @param page buffer positioned at the start of the node
+     * @return this view
+     */
+    BTreeNodeView wrap(ByteBuffer page) {
+        this.page = page;
+        this.base = page.position();
+        return this;
+    }
+
+    int getCount() {
+        return page.getInt(base);
+    }
+
+    boolean isLeaf() {
+        return page.get(base + Integer.BYTES) == 1;
+    }
+
+    long getChild(int index) {
+        return page.getLong(base + childrenOffset + index * Long.BYTES);
+    }
+
+    long getKeyCount(int index) {
+        return page.getLong(keyOffset(index) + KEY_BYTES);
+    }
+
+    /**
+     * Binary searches the node's keys for a probe.
+     *
+     * @param probe the UTF-8 bytes of the key to find
+     * @return the key index if found, otherwise (-(child index) - 1) for the
+     *         subtree that would contain the probe
+     */
+    int find(byte[] probe) {
+        int low = 0;
+        int high = getCount() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareKey(mid, probe);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Compares a stored key with a probe.
+     *
+     * @return negative, zero or positive as the stored key is less than, equal to
+     *         or greater than the probe
+     */
+    int compareKey(int index, byte[] probe) {
+        int offset = keyOffset(index);
+        int length = Math.min(probe.length, KEY_BYTES);
+        for (int i = 0; i < length; i++) {
+            int stored = page.get(offset + i) & 0xff;
+            int wanted = probe[i] & 0xff;
+            if (stored != wanted) {
+                // a zero byte ends the stored key, so a shorter key sorts first
+                return stored - wanted;
+            }
+        }
+        if (probe.length > KEY_BYTES) {
+            return -1;
+        }
+        return (length < KEY_BYTES && page.get(offset + length) != 0) ? 1 : 0;
+    }
+
+    /**
+     * Decodes one key of the node.
+     */
+    TreeObject toTreeObject(int index) {
+        int offset = keyOffset(index);
+        int length = 0;
+        while (length < KEY_BYTES && page.get(offset + length) != 0) {
+            length++;
+        }
+        byte[] keyBytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            keyBytes[i] = page.get(offset + i);
+        }
+        String key = new String(keyBytes, StandardCharsets.UTF_8).trim();
+        return new TreeObject(key, getKeyCount(index));
+    }
+
+    private int keyOffset(int index) {
+        return base + HEADER_BYTES + index * TreeObject.getDiskSize();
+    }
+}
@@ -0,0 +1,221 @@
+package cs321.btree;
+
+import cs321.common.Cache;
+
+/**
+ * Runtime options for creating or opening a {@link BTree}. Setters return this
+ * object so options can be chained.
+ */
+public class BTreeOptions {
+
+    private boolean usingCache = false;
+    private int cacheSize = -1;
+    private Cache.Policy cachePolicy = Cache.Policy.LRU;
+    private NodeStorage.Type storageType = NodeStorage.Type.CHANNEL;
+    private int concurrency = 1;
+    private boolean countSummaries = false;
+    private boolean countIndex = false;
+    private boolean keyCounts = false;
+    private boolean writeAheadLog = false;
+    private int commitOperations = 1000;
+    private long commitMillis = 1000;
+    private int insertBuffer = 0;
+
+    public boolean isUsingCache() {
+        return usingCache;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public Cache.Policy getCachePolicy() {
+        return cachePolicy;
+    }
+
+    public NodeStorage.Type getStorageType() {
+        return storageType;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public boolean isCountSummaries() {
+        return countSummaries;
+    }
+
+    public boolean isCountIndex() {
+        return countIndex;
+    }
+
+    public boolean isKeyCounts() {
+        return keyCounts;
+    }
+
+    public boolean isWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    public int getCommitOperations() {
+        return commitOperations;
+    }
+
+    public long getCommitMillis() {
+        return commitMillis;
+    }
+
+    public int getInsertBuffer() {
+        return insertBuffer;
+    }
+
+    /**
+     * Enables or disables the node cache.
+     *
+     * @param usingCache whether to cache nodes in memory
+     * @param cacheSize  the number of nodes to cache
+     * @return this object
+     */
+    public BTreeOptions setCache(boolean usingCache, int cacheSize) {
+        this.usingCache = usingCache;
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    /**
+     * Selects how the node cache chooses what to evict.
+     *
+     * @param cachePolicy the eviction policy
+     * @return this object
+     */
+    public BTreeOptions setCachePolicy(Cache.Policy cachePolicy) {
+        this.cachePolicy = cachePolicy;
+        return this;
+    }
+
+    /**
+     * Selects the backend used to read and write pages.
+     *
+     * @param storageType the storage backend
+     * @return this object
+     */
+    public BTreeOptions setStorageType(NodeStorage.Type storageType) {
+        this.storageType = storageType;
+        return this;
+    }
+
+    /**
+     * Sets how many threads are expected to search the tree at once. Above one,
+     * the node cache is split into lock stripes so readers rarely contend.
+     *
+     * @param concurrency the number of concurrent readers, at least 1
+     * @return this object
+     */
+    public BTreeOptions setConcurrency(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+        return this;
+    }
+
+    /**
+     * Stores the largest and the total count of each subtree next to its child
+     * pointer, so {@link BTree#topK} can skip subtrees that cannot contribute.
+     * Only used when a new tree is created; an existing file keeps its layout.
+     *
+     * @param countSummaries whether nodes carry subtree count summaries
+     * @return this object
+     */
+    public BTreeOptions setCountSummaries(boolean countSummaries) {
+        this.countSummaries = countSummaries;
+        return this;
+    }
+
+    /**
+     * Stores the number of keys in each subtree next to its child pointer, so
+     * {@link BTree#rank}, {@link BTree#select} and {@link BTree#quantiles} read
+     * one root-to-leaf path. Only used when a new tree is created.
+     *
+     * @param keyCounts whether nodes carry subtree key counts
+     * @return this object
+     */
+    public BTreeOptions setKeyCounts(boolean keyCounts) {
+        this.keyCounts = keyCounts;
+        return this;
+    }
+
+    /**
+     * Sends page writes through a write-ahead log next to the tree file, so a crash
+     * loses at most the operations since the last group commit instead of the file.
+     *
+     * @param writeAheadLog whether to log writes
+     * @return this object
+     * @see #setGroupCommit(int, long)
+     */
+    public BTreeOptions setWriteAheadLog(boolean writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+        return this;
+    }
+
+    /**
+     * Sets how often the write-ahead log is committed: after the given number of
+     * inserts and deletes, or at the first operation once the given time has passed
+     * since the last commit, whichever comes first. Each commit costs one sync.
+     *
+     * @param operations operations per commit, at least 1
+     * @param millis     longest time between commits while operations arrive
+     * @return this object
+     */
+    public BTreeOptions setGroupCommit(int operations, long millis) {
+        this.commitOperations = Math.max(1, operations);
+        this.commitMillis = Math.max(0, millis);
+        return this;
+    }
+
+    /**
+     * Buffers inserts in the internal nodes, B-epsilon style: each internal node
+     * holds up to the given number of pending inserts, and a full buffer is pushed
+     * one level down in a batch, so a leaf page is written once for many keys.
+     * Lookups add the pending counts on their path. Buffers are kept in memory and
+     * applied to the tree before it is flushed, closed or read in key order, so they
+     * cannot be combined with {@link #setWriteAheadLog}, where every commit flushes.
+     *
+     * @param messages pending inserts per internal node, or 0 to insert directly
+     * @return this object
+     */
+    public BTreeOptions setInsertBuffer(int messages) {
+        this.insertBuffer = Math.max(0, messages);
+        return this;
+    }
+
+    /**
+     * Builds a second, count-ordered tree next to the tree file when the tree is
+     * closed, so {@link BTree#topByCount(int)} reads the top entries directly.
+     * Without this option, closing a modified tree removes an old count index.
+     * The index shares the key slot with a count prefix, so closing fails if a key
+     * is longer than 54 bytes.
+     *
+     * @param countIndex whether to build the count index on finishUp
+     * @return this object
+     */
+    public BTreeOptions setCountIndex(boolean countIndex) {
+        this.countIndex = countIndex;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "BTreeOptions{" +
+                "usingCache=" + usingCache +
+                ", cacheSize=" + cacheSize +
+                ", cachePolicy=" + cachePolicy +
+                ", storageType=" + storageType +
+                ", concurrency=" + concurrency +
+                ", countSummaries=" + countSummaries +
+                ", countIndex=" + countIndex +
+                ", keyCounts=" + keyCounts +
+                ", writeAheadLog=" + writeAheadLog +
+                ", commitOperations=" + commitOperations +
+                ", commitMillis=" + commitMillis +
+                ", insertBuffer=" + insertBuffer +
+                '}';
+    }
+}
@@ -0,0 +1,72 @@
+package cs321.btree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Page storage that moves every page through a FileChannel and a reusable direct buffer.
+ * Reads and writes are positional and each thread has its own buffer, so any number
+ * of threads may read pages at once.
+ */
+class ChannelNodeStorage implements NodeStorage {
+
+    private final FileChannel fileChannel;
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<>();
+
+    ChannelNodeStorage(String filename, boolean readOnly, boolean truncate) throws IOException {
+        RandomAccessFile dataFile = new RandomAccessFile(filename, readOnly ? "r" : "rw");
+        fileChannel = dataFile.getChannel();
+        if (truncate) {
+            fileChannel.truncate(0);
+        }
+    }
+
+    @Override
+    public ByteBuffer read(long address, int length) throws IOException {
+        ByteBuffer page = scratch(length);
+        while (page.hasRemaining()) {
+            if (fileChannel.read(page, address + page.position()) < 0) {
+                throw new IOException("EOF at " + address);
+            }
+        }
+        ((Buffer) page).flip();
+        return page;
+    }
+
+    @Override
+    public ByteBuffer writeBuffer(long address, int length) {
+        return scratch(length);
+    }
+
+    @Override
+    public void write(long address, ByteBuffer page) throws IOException {
+        ((Buffer) page).flip();
+        while (page.hasRemaining()) {
+            fileChannel.write(page, address + page.position());
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        fileChannel.force(false);
+    }
+
+    @Override
+    public void close(long length) throws IOException {
+        fileChannel.close();
+    }
+
+    private ByteBuffer scratch(int length) {
+        ByteBuffer buffer = buffers.get();
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = ByteBuffer.allocateDirect(length);
+            buffers.set(buffer);
+        }
+        ((Buffer) buffer).clear();
+        ((Buffer) buffer).limit(length);
+        return buffer;
+    }
+}
@@ -0,0 +1,278 @@
+package cs321.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Page storage that puts a write-ahead log in front of another backend, so a tree
+ * file survives a crash in the middle of an update.
+ * <p>
+ * Written pages never go straight to the tree file. Each page image is appended to
+ * {@code <file>.wal} and kept in memory, where reads find it. {@link #force()} is the
+ * commit: it appends a commit record and syncs the log once, however many pages were
+ * written since the last commit. Once the log has grown past a limit, a commit is
+ * followed by a checkpoint that copies the pages into the tree file, syncs it and
+ * empties the log.
+ * <p>
+ * When a file is opened, the pages of every complete commit in its log are replayed.
+ * Pages after the last commit record, or in a torn record, are discarded, so the
+ * file is restored to its state at the last commit.
+ */
+class LoggedNodeStorage implements NodeStorage {
+
+    /** Suffix of the log file next to the tree file. */
+    static final String LOG_SUFFIX = ".wal";
+
+    private static final int PAGE_RECORD = 1;
+    private static final int COMMIT_RECORD = 2;
+    private static final int RECORD_HEADER = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int LOG_BUFFER_SIZE = 1 << 20;
+    private static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
+
+    private final NodeStorage data;
+    private final File logFile;
+    private final FileChannel log;
+    private final boolean readOnly;
+    private final ByteBuffer logBuffer;
+    private final CRC32 crc = new CRC32();
+    private final Map<Long, byte[]> pages = new ConcurrentHashMap<>();
+    private long logSize;
+    private boolean uncommitted;
+
+    /**
+     * @param data     the backend holding the tree file
+     * @param filename the tree file; the log is next to it
+     * @param readOnly replay the log into memory only, leaving both files untouched
+     * @param truncate start with an empty log, for a tree file that was just truncated
+     */
+    LoggedNodeStorage(NodeStorage data, String filename, boolean readOnly, boolean truncate) throws IOException {
+        this.data = data;
+        this.readOnly = readOnly;
+        this.logFile = new File(filename + LOG_SUFFIX);
+        if (readOnly) {
+            this.log = null;
+            this.logBuffer = null;
+            replay();
+            return;
+        }
+        this.log = new RandomAccessFile(logFile, "rw").getChannel();
+        this.logBuffer = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE);
+        if (truncate) {
+            log.truncate(0);
+        } else {
+            replay();
+            checkpoint();
+        }
+    }
+
+    /**
+     * @return true if a log was left next to the tree file by a run that did not finish
+     */
+    static boolean hasLog(String filename) {
+        return new File(filename + LOG_SUFFIX).exists();
+    }
+
+    /**
+     * Applies the committed pages of a leftover log to the tree file and removes the
+     * log. For a read-only file the pages are only kept in memory, so the returned
+     * storage wraps the backend instead.
+     *
+     * @return the storage to use for the tree from now on
+     */
+    static NodeStorage recover(NodeStorage data, String filename, boolean readOnly) throws IOException {
+        LoggedNodeStorage logged = new LoggedNodeStorage(data, filename, readOnly, false);
+        if (readOnly) {
+            return logged;
+        }
+        logged.log.close();
+        if (!logged.logFile.delete()) {
+            throw new IOException("Cannot remove write-ahead log " + logged.logFile);
+        }
+        return data;
+    }
+
+    @Override
+    public ByteBuffer read(long address, int length) throws IOException {
+        byte[] page = pages.get(address);
+        if (page != null) {
+            return ByteBuffer.wrap(page, 0, length);
+        }
+        return data.read(address, length);
+    }
+
+    @Override
+    public ByteBuffer writeBuffer(long address, int length) throws IOException {
+        if (readOnly) {
+            throw new IOException("Tree file is open read-only");
+        }
+        return ByteBuffer.allocate(length);
+    }
+
+    @Override
+    public void write(long address, ByteBuffer page) throws IOException {
+        ((Buffer) page).flip();
+        byte[] image = new byte[page.remaining()];
+        page.get(image);
+        pages.put(address, image);
+
+        crc.reset();
+        crc.update(image);
+        appendRecord(PAGE_RECORD, address, image.length);
+        appendBytes(image);
+        appendLong(crc.getValue());
+        uncommitted = true;
+    }
+
+    /**
+     * Commits every page written so far: one log sync covers all of them. May be
+     * followed by a checkpoint into the tree file.
+     */
+    @Override
+    public void force() throws IOException {
+        if (readOnly || !uncommitted) {
+            return;
+        }
+        // a commit record holds its own log position, so a torn one cannot pass as valid
+        if (logBuffer.remaining() < RECORD_HEADER) {
+            flushLog();
+        }
+        appendRecord(COMMIT_RECORD, logSize + logBuffer.position(), 0);
+        flushLog();
+        log.force(false);
+        uncommitted = false;
+        if (logSize >= CHECKPOINT_BYTES) {
+            checkpoint();
+        }
+    }
+
+    @Override
+    public void close(long length) throws IOException {
+        if (!readOnly) {
+            force();
+            checkpoint();
+            log.close();
+            if (!logFile.delete()) {
+                throw new IOException("Cannot remove write-ahead log " + logFile);
+            }
+        }
+        data.close(length);
+    }
+
+    /**
+     * Copies every committed page into the tree file, syncs it and empties the log.
+     * A crash part way through leaves the log intact, and replaying it again is harmless.
+     */
+    private void checkpoint() throws IOException {
+        if (!pages.isEmpty()) {
+            for (Map.Entry<Long, byte[]> entry : pages.entrySet()) {
+                byte[] image = entry.getValue();
+                ByteBuffer page = data.writeBuffer(entry.getKey(), image.length);
+                page.put(image);
+                data.write(entry.getKey(), page);
+            }
+            data.force();
+            pages.clear();
+        }
+        log.truncate(0);
+        log.force(false);
+        logSize = 0;
+    }
+
+    /**
+     * Loads the pages of every complete commit in the log. Reading stops at the end
+     * of the log or at the first record that is incomplete or fails its checksum.
+     */
+    private void replay() throws IOException {
+        if (!logFile.exists()) {
+            return;
+        }
+        Map<Long, byte[]> batch = new HashMap<>();
+        try (FileChannel in = new RandomAccessFile(logFile, "r").getChannel()) {
+            long position = 0;
+            long end = in.size();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            while (position + RECORD_HEADER <= end) {
+                ((Buffer) header).clear();
+                readFully(in, header, position);
+                ((Buffer) header).flip();
+                int type = header.getInt();
+                long value = header.getLong();
+                int length = header.getInt();
+                if (type == COMMIT_RECORD && (value != position || length != 0)) {
+                    break;
+                }
+                position += RECORD_HEADER;
+                if (type == COMMIT_RECORD) {
+                    pages.putAll(batch);
+                    batch.clear();
+                    continue;
+                }
+                if (type != PAGE_RECORD || length < 0 || position + length + Long.BYTES > end) {
+                    break;
+                }
+                ByteBuffer body = ByteBuffer.allocate(length + Long.BYTES);
+                readFully(in, body, position);
+                position += length + Long.BYTES;
+                byte[] image = new byte[length];
+                ((Buffer) body).flip();
+                body.get(image);
+                crc.reset();
+                crc.update(image);
+                if (body.getLong() != crc.getValue()) {
+                    break;
+                }
+                batch.put(value, image);
+            }
+        }
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of write-ahead log");
+            }
+        }
+    }
+
+    private void appendRecord(int type, long value, int length) throws IOException {
+        if (logBuffer.remaining() < RECORD_HEADER) {
+            flushLog();
+        }
+        logBuffer.putInt(type).putLong(value).putInt(length);
+    }
+
+    private void appendLong(long value) throws IOException {
+        if (logBuffer.remaining() < Long.BYTES) {
+            flushLog();
+        }
+        logBuffer.putLong(value);
+    }
+
+    private void appendBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!logBuffer.hasRemaining()) {
+                flushLog();
+            }
+            int n = Math.min(logBuffer.remaining(), bytes.length - offset);
+            logBuffer.put(bytes, offset, n);
+            offset += n;
+        }
+    }
+
+    private void flushLog() throws IOException {
+        ((Buffer) logBuffer).flip();
+        while (logBuffer.hasRemaining()) {
+            logSize += log.write(logBuffer, logSize);
+        }
+        ((Buffer) logBuffer).clear();
+    }
+}
@@ -0,0 +1,127 @@
+package cs321.btree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Page storage that maps the tree file into memory. The file is mapped in fixed
+ * segments that overlap by {@link #MAX_PAGE_SIZE} bytes, so a page never straddles
+ * two mappings, and new segments are mapped (growing the file) as the tree grows.
+ * Pages are decoded from and encoded into slices of the mapping, so a node access
+ * that hits the OS page cache costs no system call. Every access works on its own
+ * duplicate of a segment, so concurrent readers need no locking once a segment is mapped.
+ */
+class MappedNodeStorage implements NodeStorage {
+
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    static final int MAX_PAGE_SIZE = 1024 * 1024;
+
+    private final FileChannel fileChannel;
+    private final boolean readOnly;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    MappedNodeStorage(String filename, boolean readOnly, boolean truncate) throws IOException {
+        this.readOnly = readOnly;
+        RandomAccessFile dataFile = new RandomAccessFile(filename, readOnly ? "r" : "rw");
+        fileChannel = dataFile.getChannel();
+        if (truncate) {
+            fileChannel.truncate(0);
+        }
+    }
+
+    @Override
+    public ByteBuffer read(long address, int length) throws IOException {
+        return slice(address, length);
+    }
+
+    @Override
+    public ByteBuffer writeBuffer(long address, int length) throws IOException {
+        if (readOnly) {
+            throw new IOException("Tree file is mapped read-only");
+        }
+        return slice(address, length);
+    }
+
+    @Override
+    public void write(long address, ByteBuffer page) {
+        // the page was encoded directly into the mapping
+    }
+
+    @Override
+    public synchronized void force() {
+        for (MappedByteBuffer segment : segments) {
+            if (segment != null) {
+                segment.force();
+            }
+        }
+    }
+
+    @Override
+    public void close(long length) throws IOException {
+        force();
+        segments = new MappedByteBuffer[0];
+        if (!readOnly && length > 0 && length < fileChannel.size()) {
+            try {
+                fileChannel.truncate(length);
+            } catch (IOException e) {
+                // some platforms refuse to shrink a file that is still mapped; the padding is harmless
+            }
+        }
+        fileChannel.close();
+    }
+
+    private ByteBuffer slice(long address, int length) throws IOException {
+        if (length > MAX_PAGE_SIZE) {
+            throw new IOException("Page of " + length + " bytes is larger than the mapping overlap");
+        }
+        int index = (int) (address / SEGMENT_SIZE);
+        int offset = (int) (address % SEGMENT_SIZE);
+        MappedByteBuffer segment = segment(index);
+        if (offset + length > segment.capacity()) {
+            throw new IOException("EOF at " + address);
+        }
+        // a positioned duplicate rather than a slice: one small object per page access
+        ByteBuffer page = segment.duplicate();
+        ((Buffer) page).limit(offset + length);
+        ((Buffer) page).position(offset);
+        return page;
+    }
+
+    private MappedByteBuffer segment(int index) throws IOException {
+        MappedByteBuffer[] mapped = segments;
+        if (index < mapped.length && mapped[index] != null) {
+            return mapped[index];
+        }
+        return mapSegment(index);
+    }
+
+    /**
+     * Maps a segment on first use. Publishes a new array so that readers on the
+     * fast path never see a partially updated one.
+     */
+    private synchronized MappedByteBuffer mapSegment(int index) throws IOException {
+        MappedByteBuffer[] mapped = segments;
+        if (index >= mapped.length) {
+            mapped = Arrays.copyOf(mapped, index + 1);
+        }
+        MappedByteBuffer segment = mapped[index];
+        if (segment == null) {
+            long start = (long) index * SEGMENT_SIZE;
+            long length = (long) SEGMENT_SIZE + MAX_PAGE_SIZE;
+            if (readOnly) {
+                length = Math.max(0, Math.min(length, fileChannel.size() - start));
+            }
+            segment = fileChannel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                    start, length);
+            mapped = mapped.clone();
+            mapped[index] = segment;
+            segments = mapped;
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,137 @@
+package cs321.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Storage backend for the pages of a B-Tree file. The header and every node are
+ * fixed-size pages addressed by their byte offset in the file.
+ */
+public interface NodeStorage {
+
+    /**
+     * Available storage backends.
+     */
+    enum Type {
+        /** Reads and writes pages through a FileChannel. */
+        CHANNEL,
+        /** Maps the file into memory in segments and decodes pages in place. */
+        MAPPED;
+
+        /**
+         * Looks up a backend by its command line name.
+         *
+         * @param name "channel" or "mmap"
+         * @return the backend, or null if the name is unknown
+         */
+        public static Type fromName(String name) {
+            if ("channel".equalsIgnoreCase(name)) {
+                return CHANNEL;
+            }
+            if ("mmap".equalsIgnoreCase(name) || "mapped".equalsIgnoreCase(name)) {
+                return MAPPED;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns a buffer holding the page at the given address, positioned at the
+     * start of the page with its limit at the end of the page.
+     *
+     * @param address the byte offset of the page
+     * @param length  the page length in bytes
+     * @return the page contents
+     * @throws IOException if the page cannot be read
+     */
+    ByteBuffer read(long address, int length) throws IOException;
+
+    /**
+     * Returns an empty buffer of the given length to encode a page into. The page
+     * is stored once it is passed to {@link #write(long, ByteBuffer)}.
+     *
+     * @param address the byte offset of the page
+     * @param length  the page length in bytes
+     * @return a buffer positioned at zero
+     * @throws IOException if the page cannot be mapped
+     */
+    ByteBuffer writeBuffer(long address, int length) throws IOException;
+
+    /**
+     * Stores a page previously obtained from {@link #writeBuffer(long, int)}.
+     *
+     * @param address the byte offset of the page
+     * @param page    the encoded page, filled from position zero
+     * @throws IOException if the page cannot be written
+     */
+    void write(long address, ByteBuffer page) throws IOException;
+
+    /**
+     * Forces written pages to the storage device.
+     *
+     * @throws IOException if the pages cannot be forced
+     */
+    void force() throws IOException;
+
+    /**
+     * Closes the backend.
+     *
+     * @param length the number of bytes in use, so a backend that over-allocated
+     *               the file can trim it
+     * @throws IOException if the file cannot be closed
+     */
+    void close(long length) throws IOException;
+
+    /**
+     * Opens a storage backend over a tree file.
+     *
+     * @param filename the tree file
+     * @param type     which backend to use
+     * @param readOnly open the file read-only
+     * @param truncate discard any existing contents
+     * @return the opened backend
+     * @throws IOException if the file cannot be opened
+     */
+    static NodeStorage open(String filename, Type type, boolean readOnly, boolean truncate) throws IOException {
+        if (type == Type.MAPPED) {
+            return new MappedNodeStorage(filename, readOnly, truncate);
+        }
+        return new ChannelNodeStorage(filename, readOnly, truncate);
+    }
+
+    /**
+     * Opens a storage backend, optionally behind a write-ahead log. A log left by a
+     * run that did not finish is always replayed first, so the file is returned to
+     * its state at that run's last commit.
+     *
+     * @param filename      the tree file
+     * @param type          which backend to use
+     * @param readOnly      open the file read-only
+     * @param truncate      discard any existing contents, including a leftover log
+     * @param writeAheadLog log writes, committing them on {@link #force()}
+     * @return the opened backend
+     * @throws IOException if the file or its log cannot be opened
+     */
+    static NodeStorage open(String filename, Type type, boolean readOnly, boolean truncate, boolean writeAheadLog)
+            throws IOException {
+        NodeStorage data = open(filename, type, readOnly, truncate);
+        try {
+            if (writeAheadLog && !readOnly) {
+                return new LoggedNodeStorage(data, filename, false, truncate);
+            }
+            if (LoggedNodeStorage.hasLog(filename)) {
+                if (truncate) {
+                    Files.delete(Paths.get(filename + LoggedNodeStorage.LOG_SUFFIX));
+                    return data;
+                }
+                return LoggedNodeStorage.recover(data, filename, readOnly);
+            }
+            return data;
+        } catch (IOException e) {
+            data.close(0);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package cs321.btree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable file of keys and counts in ascending key order, written once in a
+ * single sequential pass.
+ * <p>
+ * Entries are grouped in blocks of {@value #BLOCK_ENTRIES}. A footer holds the first
+ * key and file offset of every block, so a lookup reads the footer's index once
+ * when the run is opened and then one block per probe.
+ */
+class SortedRun {
+
+    private static final int MAGIC = 0x52554E31;                  // "RUN1"
+    private static final int BLOCK_ENTRIES = 128;
+    private static final int FOOTER_BYTES = Long.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+
+    private final File file;
+    private final int level;
+    private final long entries;
+    private final String[] blockKeys;
+    private final long[] blockOffsets;                            // one past the last block: the index offset
+    private final FileChannel channel;
+
+    private SortedRun(File file, int level) throws IOException {
+        this.file = file;
+        this.level = level;
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        long length = channel.size();
+        if (length < FOOTER_BYTES) {
+            channel.close();
+            throw new IOException("Sorted run " + file + " is truncated");
+        }
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+        read(footer, length - FOOTER_BYTES);
+        long indexOffset = footer.getLong();
+        this.entries = footer.getLong();
+        int blocks = footer.getInt();
+        if (footer.getInt() != MAGIC || indexOffset < 0 || indexOffset > length - FOOTER_BYTES) {
+            channel.close();
+            throw new IOException("Sorted run " + file + " has no valid footer");
+        }
+        ByteBuffer index = ByteBuffer.allocate((int) (length - FOOTER_BYTES - indexOffset));
+        read(index, indexOffset);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.array()));
+        this.blockKeys = new String[blocks];
+        this.blockOffsets = new long[blocks + 1];
+        for (int b = 0; b < blocks; b++) {
+            blockKeys[b] = in.readUTF();
+            blockOffsets[b] = in.readLong();
+        }
+        blockOffsets[blocks] = indexOffset;
+    }
+
+    /**
+     * Opens a run written by {@link #write}.
+     *
+     * @param level the compaction level recorded for the run
+     */
+    static SortedRun open(File file, int level) throws IOException {
+        return new SortedRun(file, level);
+    }
+
+    /**
+     * Writes entries, which must be in strictly ascending key order, to a new run
+     * file and syncs it.
+     *
+     * @return the number of entries written
+     */
+    static long write(File file, Iterator<TreeObject> sorted) throws IOException {
+        List<String> blockKeys = new ArrayList<>();
+        List<Long> blockOffsets = new ArrayList<>();
+        long entries = 0;
+        FileOutputStream fileOut = new FileOutputStream(file);
+        try {
+            CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(fileOut, IO_BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(counter);
+            while (sorted.hasNext()) {
+                TreeObject obj = sorted.next();
+                if (entries % BLOCK_ENTRIES == 0) {
+                    blockKeys.add(obj.getKey());
+                    blockOffsets.add(counter.written);
+                }
+                out.writeUTF(obj.getKey());
+                out.writeLong(obj.getCount());
+                entries++;
+            }
+            long indexOffset = counter.written;
+            for (int b = 0; b < blockKeys.size(); b++) {
+                out.writeUTF(blockKeys.get(b));
+                out.writeLong(blockOffsets.get(b));
+            }
+            out.writeLong(indexOffset);
+            out.writeLong(entries);
+            out.writeInt(blockKeys.size());
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        return entries;
+    }
+
+    File getFile() { return file; }
+
+    int getLevel() { return level; }
+
+    long getEntries() { return entries; }
+
+    /**
+     * Looks a key up, reading the one block that could hold it. Safe to call from
+     * any number of threads.
+     *
+     * @return the key's count in this run, or 0 if it is not in the run
+     */
+    long search(String key) throws IOException {
+        int low = 0;
+        int high = blockKeys.length - 1;
+        int block = -1;                                           // last block whose first key is <= key
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (blockKeys[mid].compareTo(key) <= 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (block < 0) {
+            return 0;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate((int) (blockOffsets[block + 1] - blockOffsets[block]));
+        read(bytes, blockOffsets[block]);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.array()));
+        while (in.available() > 0) {
+            int cmp = in.readUTF().compareTo(key);
+            long count = in.readLong();
+            if (cmp == 0) {
+                return count;
+            } else if (cmp > 0) {
+                break;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the entries in key order, streamed from the file. The stream is closed
+     * once the last entry has been returned.
+     */
+    Iterator<TreeObject> iterator() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+        if (entries == 0) {
+            in.close();
+        }
+        return new Iterator<TreeObject>() {
+            private long remaining = entries;
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            public TreeObject next() {
+                if (remaining == 0) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    TreeObject obj = new TreeObject(in.readUTF(), in.readLong());
+                    if (--remaining == 0) {
+                        in.close();
+                    }
+                    return obj;
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Error reading sorted run " + file + ": " + e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of sorted run " + file);
+            }
+        }
+        ((Buffer) buffer).flip();
+    }
+
+    /**
+     * Tracks the file offset of a stream written from the start of a file.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long written;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+        }
+    }
+}
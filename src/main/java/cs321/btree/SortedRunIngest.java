@@ -0,0 +1,685 @@
+package cs321.btree;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Log-structured ingest into a {@link BTree} file, for logs too large or too fast to
+ * count in memory and bulk load in one go.
+ * <p>
+ * Counts go into a memtable, a hash map bounded by a number of distinct keys. A full
+ * memtable is sorted and written out as an immutable {@link SortedRun} in a single
+ * sequential pass, so ingest never waits on the tree. A background compactor merges
+ * runs: {@value #FAN_IN} runs of one level become one run of the next level, and once
+ * the runs hold as many entries as the tree, the tree and every run are merged and
+ * bulk loaded into a new tree file that replaces the old one. Every write is
+ * sequential, and each entry is rewritten a logarithmic number of times however large
+ * the tree grows.
+ * <p>
+ * A lookup adds up the key's counts in the memtable, the runs and the tree.
+ * <p>
+ * The live runs are listed in a manifest, {@code <file>.runs}, which is replaced
+ * atomically on every change and removed once everything is in the tree. Run files
+ * it does not list are leftovers of an interrupted merge and are deleted; a merged
+ * tree it names is moved into place when the files are next opened for writing.
+ * Runs left by an ingest that was closed without {@link #finish()} stay valid, and
+ * {@link #open} reads them together with the tree.
+ */
+public class SortedRunIngest implements Closeable {
+
+    /** Suffix of the manifest next to the tree file. */
+    static final String MANIFEST_SUFFIX = ".runs";
+
+    private static final String RUN_SUFFIX = ".run.";
+    private static final String MERGE_SUFFIX = ".merge";
+    private static final String MERGE_ENTRY = "merge";
+    private static final int FAN_IN = 4;
+    private static final int MAX_RUNS = 4 * FAN_IN;              // flushes wait for the compactor beyond this
+
+    private final String filename;
+    private final File manifest;
+    private final File mergeFile;
+    private final BTreeOptions options;
+    private final BTreeOptions readOptions;
+    private final double fillFactor;
+    private final int memtableKeys;
+    private final boolean readOnly;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong nextRun = new AtomicLong();
+    private final ExecutorService compactor;
+    private int degree;
+    private Map<String, Long> memtable;
+    private List<SortedRun> runs = new ArrayList<>();           // guarded by lock
+    private BTree tree;                                         // guarded by lock; null until there is a tree file
+    private Future<?> compaction;
+    private long runsWritten;
+    private volatile long treeMerges;
+
+    /**
+     * Opens the tree file for log-structured ingest, recovering the runs and any
+     * interrupted merge left next to it.
+     *
+     * @param filename     the tree file
+     * @param degree       degree for a new tree file; an existing one keeps its own
+     * @param fillFactor   fraction of each node filled when the tree is bulk loaded
+     * @param options      options for the tree files written by merges
+     * @param memtableKeys distinct keys held in memory before they are written as a run
+     * @param truncate     discard the tree file and any runs, and start empty
+     * @throws IOException if the files cannot be read or written
+     */
+    public SortedRunIngest(String filename, int degree, double fillFactor, BTreeOptions options,
+            int memtableKeys, boolean truncate) throws IOException {
+        this(filename, options, degree, fillFactor, memtableKeys, false);
+        if (truncate) {
+            deleteTreeFiles(filename);
+            deleteTreeFiles(mergeFile.getPath());
+            deleteRunFiles(new HashSet<>());
+            Files.deleteIfExists(manifest.toPath());
+        } else {
+            recover();
+        }
+        if (new File(filename).exists()) {
+            tree = BTree.open(filename, true, readOptions);
+            this.degree = tree.getDegree();
+        }
+    }
+
+    private SortedRunIngest(String filename, BTreeOptions options, int degree, double fillFactor,
+            int memtableKeys, boolean readOnly) {
+        this.filename = filename;
+        this.manifest = new File(filename + MANIFEST_SUFFIX);
+        this.mergeFile = new File(filename + MERGE_SUFFIX);
+        this.degree = degree;
+        this.fillFactor = fillFactor;
+        this.options = options;
+        this.memtableKeys = Math.max(1, memtableKeys);
+        this.readOnly = readOnly;
+        // merges walk the tree while lookups search it
+        this.readOptions = new BTreeOptions()
+                .setCache(options.isUsingCache(), options.getCacheSize())
+                .setCachePolicy(options.getCachePolicy())
+                .setStorageType(options.getStorageType())
+                .setConcurrency(Math.max(2, options.getConcurrency()));
+        this.memtable = readOnly ? null : new HashMap<>();
+        this.compactor = readOnly ? null : Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "compactor " + new File(filename).getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens a tree file and the runs not yet merged into it for lookups only. Nothing
+     * is changed on disk.
+     *
+     * @param filename the tree file
+     * @param options  options for reading the tree
+     * @return the opened files
+     * @throws IOException if the files cannot be read
+     */
+    public static SortedRunIngest open(String filename, BTreeOptions options) throws IOException {
+        SortedRunIngest ingest = new SortedRunIngest(filename, options, 0, 1.0, 1, true);
+        boolean merging = false;
+        if (ingest.manifest.exists()) {
+            for (String entry : ingest.readManifest()) {
+                if (entry.equals(MERGE_ENTRY)) {
+                    merging = true;
+                } else {
+                    ingest.runs.add(SortedRun.open(ingest.runFile(entry), runLevel(entry)));
+                }
+            }
+        }
+        // a committed merge not yet moved into place already holds the runs it removed
+        File treeFile = merging && ingest.mergeFile.exists() ? ingest.mergeFile : new File(filename);
+        if (treeFile.exists()) {
+            ingest.tree = BTree.open(treeFile.getPath(), true, ingest.readOptions);
+            ingest.degree = ingest.tree.getDegree();
+        }
+        return ingest;
+    }
+
+    /**
+     * @return true if runs not yet merged into the tree file are next to it
+     */
+    public static boolean hasRuns(String filename) {
+        return new File(filename + MANIFEST_SUFFIX).exists();
+    }
+
+    /**
+     * Adds to a key's count. Writes the memtable out as a run once it is full, and
+     * waits for the compactor if runs are piling up faster than it merges them.
+     *
+     * @throws IOException if a run cannot be written, or a background merge failed
+     */
+    public void add(String key, long count) throws IOException {
+        if (readOnly) {
+            throw new IOException("Sorted runs for " + filename + " are open read-only");
+        }
+        memtable.merge(key, count, Long::sum);
+        if (memtable.size() >= memtableKeys) {
+            flushMemtable();
+        }
+    }
+
+    /**
+     * Looks a key up in the memtable, every run and the tree. While ingesting, call
+     * this from the thread that adds keys; opened read-only, from any thread.
+     *
+     * @return the key with its total count, or null if it has never been added
+     * @throws IOException if a run or the tree cannot be read
+     */
+    public TreeObject search(String key) throws IOException {
+        long count = memtable != null ? memtable.getOrDefault(key, 0L) : 0;
+        lock.readLock().lock();
+        try {
+            for (SortedRun run : runs) {
+                count += run.search(key);
+            }
+            if (tree != null) {
+                TreeObject found = tree.search(key);
+                if (found != null) {
+                    count += found.getCount();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return count > 0 ? new TreeObject(key, count) : null;
+    }
+
+    /**
+     * Merges the memtable and every run into the tree file and removes the runs,
+     * leaving a plain tree. Creates an empty tree if nothing was ever added.
+     *
+     * @throws IOException if the merge fails
+     */
+    public void finish() throws IOException {
+        if (readOnly) {
+            throw new IOException("Sorted runs for " + filename + " are open read-only");
+        }
+        awaitCompaction();
+        List<SortedRun> inputs = new ArrayList<>(runs);
+        if (!inputs.isEmpty() || !memtable.isEmpty()) {
+            List<Map.Entry<String, Long>> entries = sortedMemtable();
+            memtable = new HashMap<>();
+            mergeIntoTree(inputs, entries.stream().map(e -> new TreeObject(e.getKey(), e.getValue())).iterator());
+        } else if (tree == null) {
+            new BTree(degree, filename, options).finishUp();
+            tree = BTree.open(filename, true, readOptions);
+        }
+    }
+
+    /**
+     * Writes what is left in the memtable as a run, waits for the compactor and
+     * closes every file. Runs still listed in the manifest are picked up the next
+     * time the files are opened.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!readOnly) {
+                flushMemtable();
+                awaitCompaction();
+            }
+        } finally {
+            if (compactor != null) {
+                compactor.shutdown();
+            }
+            lock.writeLock().lock();
+            try {
+                for (SortedRun run : runs) {
+                    run.close();
+                }
+                runs.clear();
+                if (tree != null) {
+                    tree.finishUp();
+                    tree = null;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the degree of the tree file, or of the tree a merge will create
+     */
+    public int getDegree() { return degree; }
+
+    /**
+     * @return the number of runs not yet merged into the tree
+     */
+    public int getRunCount() {
+        lock.readLock().lock();
+        try {
+            return runs.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of memtables written out as runs
+     */
+    public long getRunsWritten() { return runsWritten; }
+
+    /**
+     * @return the number of times runs were merged into a new tree file
+     */
+    public long getTreeMerges() { return treeMerges; }
+
+    // === Runs ===
+
+    private void flushMemtable() throws IOException {
+        if (memtable.isEmpty()) {
+            return;
+        }
+        File file = runFile(runName(0, nextRun.getAndIncrement()));
+        List<Map.Entry<String, Long>> entries = sortedMemtable();
+        SortedRun.write(file, entries.stream().map(e -> new TreeObject(e.getKey(), e.getValue())).iterator());
+        SortedRun run = SortedRun.open(file, 0);
+        boolean behind;
+        lock.writeLock().lock();
+        try {
+            runs.add(run);
+            writeManifest(false);
+            behind = runs.size() >= MAX_RUNS;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        memtable = new HashMap<>();
+        runsWritten++;
+        if (behind || (compaction != null && compaction.isDone())) {
+            awaitCompaction();
+        }
+        if (compaction == null) {
+            compaction = compactor.submit(() -> {
+                compact();
+                return null;
+            });
+        }
+    }
+
+    private List<Map.Entry<String, Long>> sortedMemtable() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(memtable.entrySet());
+        entries.sort(Map.Entry.comparingByKey());
+        return entries;
+    }
+
+    /**
+     * Waits for the running compaction, if any, and rethrows its failure.
+     */
+    private void awaitCompaction() throws IOException {
+        if (compaction == null) {
+            return;
+        }
+        try {
+            compaction.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the compactor");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();  // a run that could not be read
+            }
+            throw cause instanceof IOException ? (IOException) cause
+                    : new IOException("Compaction failed: " + cause.getMessage(), cause);
+        } finally {
+            compaction = null;
+        }
+    }
+
+    /**
+     * Runs on the compactor thread until there is nothing left to merge: first any
+     * level with {@value #FAN_IN} runs, then the tree once the runs are as large as it.
+     */
+    private void compact() throws IOException {
+        while (true) {
+            List<SortedRun> inputs = new ArrayList<>();
+            int level = -1;
+            lock.readLock().lock();
+            try {
+                Map<Integer, List<SortedRun>> levels = new HashMap<>();
+                long entries = 0;
+                for (SortedRun run : runs) {
+                    levels.computeIfAbsent(run.getLevel(), l -> new ArrayList<>()).add(run);
+                    entries += run.getEntries();
+                }
+                for (Map.Entry<Integer, List<SortedRun>> runsAtLevel : levels.entrySet()) {
+                    if (runsAtLevel.getValue().size() >= FAN_IN && (level < 0 || runsAtLevel.getKey() < level)) {
+                        level = runsAtLevel.getKey();
+                        inputs = runsAtLevel.getValue();
+                    }
+                }
+                if (level < 0) {
+                    if (runs.isEmpty() || entries < (tree != null ? tree.getSize() : 0)) {
+                        return;
+                    }
+                    inputs = new ArrayList<>(runs);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (level >= 0) {
+                mergeRuns(inputs, level + 1);
+            } else {
+                mergeIntoTree(inputs, null);
+            }
+        }
+    }
+
+    /**
+     * Merges runs into one run of the given level, which replaces them.
+     */
+    private void mergeRuns(List<SortedRun> inputs, int level) throws IOException {
+        String name = runName(level, nextRun.getAndIncrement());
+        List<Iterator<TreeObject>> sources = new ArrayList<>();
+        for (SortedRun run : inputs) {
+            sources.add(run.iterator());
+        }
+        SortedRun.write(runFile(name), new MergeIterator(sources));
+        SortedRun merged = SortedRun.open(runFile(name), level);
+        lock.writeLock().lock();
+        try {
+            runs.removeAll(inputs);
+            runs.add(merged);
+            writeManifest(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        deleteRuns(inputs);
+    }
+
+    /**
+     * Streams the merge of the tree, the given runs and any extra sorted entries into a
+     * bulk load of a new tree file, then moves it over the old one. The merged file is
+     * synced first; listing the merge in the manifest without its input runs is then the
+     * commit point: from then on, a crash is recovered by moving the merged file into place.
+     */
+    private void mergeIntoTree(List<SortedRun> inputs, Iterator<TreeObject> extra) throws IOException {
+        deleteTreeFiles(mergeFile.getPath());
+        List<Iterator<TreeObject>> sources = new ArrayList<>();
+        if (tree != null) {
+            sources.add(tree.iterator());
+        }
+        for (SortedRun run : inputs) {
+            sources.add(run.iterator());
+        }
+        if (extra != null) {
+            sources.add(extra);
+        }
+        BTree merged = new BTree(degree, mergeFile.getPath(), options);
+        try {
+            merged.bulkLoadSorted(new MergeIterator(sources), fillFactor);
+        } catch (UncheckedIOException e) {
+            merged.finishUp();
+            throw e.getCause();
+        }
+        if (tree != null) {
+            merged.setLogOffset(tree.getLogOffset());
+        }
+        merged.finishUp();
+        sync(mergeFile);                                // the runs go once the manifest names it
+        File index = new File(mergeFile.getPath() + BTree.COUNT_INDEX_SUFFIX);
+        if (index.exists()) {
+            sync(index);
+        }
+
+        lock.writeLock().lock();
+        try {
+            runs.removeAll(inputs);
+            writeManifest(true);
+            if (tree != null) {
+                tree.finishUp();
+            }
+            installMerge();
+            tree = BTree.open(filename, true, readOptions);
+            writeManifest(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        deleteRuns(inputs);
+        treeMerges++;
+    }
+
+    /**
+     * Moves a merged tree file, and its count index if it has one, over the tree file.
+     */
+    private void installMerge() throws IOException {
+        File index = new File(mergeFile.getPath() + BTree.COUNT_INDEX_SUFFIX);
+        if (mergeFile.exists()) {
+            if (!index.exists()) {
+                Files.deleteIfExists(new File(filename + BTree.COUNT_INDEX_SUFFIX).toPath());
+            }
+            move(mergeFile, new File(filename));
+        }
+        if (index.exists()) {
+            move(index, new File(filename + BTree.COUNT_INDEX_SUFFIX));
+        }
+    }
+
+    private void deleteRuns(List<SortedRun> inputs) throws IOException {
+        for (SortedRun run : inputs) {
+            run.close();
+            Files.deleteIfExists(run.getFile().toPath());
+        }
+    }
+
+    // === Manifest and recovery ===
+
+    /**
+     * Finishes a merge that was committed but not moved into place, deletes files
+     * the manifest does not list, and opens the runs it does.
+     */
+    private void recover() throws IOException {
+        Set<String> listed = new HashSet<>();
+        boolean merging = false;
+        if (manifest.exists()) {
+            for (String entry : readManifest()) {
+                if (entry.equals(MERGE_ENTRY)) {
+                    merging = true;
+                } else {
+                    listed.add(entry);
+                }
+            }
+        }
+        if (merging) {
+            installMerge();
+        } else {
+            deleteTreeFiles(mergeFile.getPath());
+        }
+        deleteRunFiles(listed);
+        long last = -1;
+        for (String name : listed) {
+            runs.add(SortedRun.open(runFile(name), runLevel(name)));
+            last = Math.max(last, Long.parseLong(name.substring(name.lastIndexOf('.') + 1)));
+        }
+        nextRun.set(last + 1);
+        writeManifest(false);
+    }
+
+    private List<String> readManifest() throws IOException {
+        List<String> entries = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    entries.add(line);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the manifest with one listing the current runs, and a pending merge
+     * if there is one. The manifest is removed when there is nothing to list.
+     */
+    private void writeManifest(boolean merging) throws IOException {
+        if (runs.isEmpty() && !merging) {
+            Files.deleteIfExists(manifest.toPath());
+            return;
+        }
+        File next = new File(manifest.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(next);
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(fileOut, StandardCharsets.UTF_8))) {
+            if (merging) {
+                out.println(MERGE_ENTRY);
+            }
+            for (SortedRun run : runs) {
+                out.println(run.getFile().getName());
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        move(next, manifest);
+    }
+
+    /**
+     * Deletes the run files next to the tree file that are not in the given set.
+     */
+    private void deleteRunFiles(Set<String> keep) throws IOException {
+        File tree = new File(filename).getAbsoluteFile();
+        String prefix = tree.getName() + RUN_SUFFIX;
+        File[] files = tree.getParentFile().listFiles((dir, name) -> name.startsWith(prefix));
+        if (files != null) {
+            for (File file : files) {
+                if (!keep.contains(file.getName())) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes a tree file together with the count index and log that go with it.
+     */
+    private static void deleteTreeFiles(String treeFile) throws IOException {
+        Files.deleteIfExists(new File(treeFile).toPath());
+        Files.deleteIfExists(new File(treeFile + BTree.COUNT_INDEX_SUFFIX).toPath());
+        Files.deleteIfExists(new File(treeFile + LoggedNodeStorage.LOG_SUFFIX).toPath());
+    }
+
+    private String runName(int level, long sequence) {
+        return new File(filename).getName() + RUN_SUFFIX + level + "." + sequence;
+    }
+
+    private File runFile(String name) {
+        return new File(new File(filename).getAbsoluteFile().getParentFile(), name);
+    }
+
+    private static int runLevel(String name) {
+        String[] parts = name.split("\\.");
+        return Integer.parseInt(parts[parts.length - 2]);
+    }
+
+    /**
+     * Renames a file over another, and syncs the directory so the rename survives a crash.
+     */
+    private static void move(File from, File to) throws IOException {
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(to.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Forces a file's contents to disk.
+     */
+    private static void sync(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Forces a directory's entries to disk. Some platforms cannot open a directory as
+     * a channel; there the rename is left to the file system.
+     */
+    private static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported on this platform
+        }
+    }
+
+    /**
+     * Merges iterators that each return keys in ascending order into one ascending
+     * sequence, adding up the counts of a key found in more than one.
+     */
+    private static final class MergeIterator implements Iterator<TreeObject> {
+
+        private static final class Head {
+            final TreeObject obj;
+            final Iterator<TreeObject> source;
+
+            Head(TreeObject obj, Iterator<TreeObject> source) {
+                this.obj = obj;
+                this.source = source;
+            }
+        }
+
+        private final PriorityQueue<Head> heads = new PriorityQueue<>((a, b) -> a.obj.compareTo(b.obj));
+
+        MergeIterator(List<Iterator<TreeObject>> sources) {
+            for (Iterator<TreeObject> source : sources) {
+                advance(source);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public TreeObject next() {
+            if (heads.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Head head = heads.poll();
+            String key = head.obj.getKey();
+            long count = head.obj.getCount();
+            advance(head.source);
+            while (!heads.isEmpty() && heads.peek().obj.getKey().equals(key)) {
+                Head same = heads.poll();
+                count += same.obj.getCount();
+                advance(same.source);
+            }
+            return new TreeObject(key, count);
+        }
+
+        private void advance(Iterator<TreeObject> source) {
+            if (source.hasNext()) {
+                heads.add(new Head(source.next(), source));
+            }
+        }
+    }
+}
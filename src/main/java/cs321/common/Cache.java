@@ -1,113 +1,279 @@
 package cs321.common;
 
+import java.util.HashMap;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.LongAdder;
 
 
 
 // Project 1 implementation of a webcache refactored for b-tree usage.
+// Entries are indexed by a HashMap for O(1) lookup; which entry to evict
+// is delegated to a pluggable EvictionPolicy. The entries may be split over
+// several lock stripes so that concurrent readers can share one cache.
 
 public class Cache<K, V extends KeyInterface<K>> {
-    private final LinkedList<V> cache;
+
+    /**
+     * Eviction policies selectable by name.
+     */
+    public enum Policy {
+        LRU("lru"), CLOCK("clock"), TWO_Q("2q"), TINY_LFU("tinylfu");
+
+        private final String cliName;
+
+        Policy(String cliName) {
+            this.cliName = cliName;
+        }
+
+        /**
+         * Looks up a policy by its command line name.
+         *
+         * @param name one of lru, clock, 2q, tinylfu
+         * @return the policy, or null if the name is unknown
+         */
+        public static Policy fromName(String name) {
+            for (Policy policy : values()) {
+                if (policy.cliName.equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+            return null;
+        }
+
+        <K> EvictionPolicy<K> create(int capacity) {
+            switch (this) {
+                case CLOCK:
+                    return new ClockPolicy<>(capacity);
+                case TWO_Q:
+                    return new TwoQueuePolicy<>(capacity);
+                case TINY_LFU:
+                    return new TinyLfuPolicy<>(capacity);
+                default:
+                    return new LruPolicy<>();
+            }
+        }
+    }
+
+    private final Segment<K, V>[] segments;
     private final int maxSize;
-    private int calls;
-    private int hits;
+    private final String policyName;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder hits = new LongAdder();
 
     public Cache(int maxSize) {
-        this.cache = new LinkedList<>();
+        this(maxSize, Policy.LRU);
+    }
+
+    public Cache(int maxSize, Policy policy) {
+        this(maxSize, policy, 1);
+    }
+
+    public Cache(int maxSize, EvictionPolicy<K> policy) {
+        this.maxSize = maxSize;
+        this.policyName = policy.getName();
+        this.segments = newSegments(1);
+        this.segments[0] = new Segment<>(maxSize, policy);
+    }
+
+    /**
+     * Creates a lock-striped cache. Keys are spread over {@code stripes} segments,
+     * each with its own lock, map and eviction policy, so threads working on
+     * different keys rarely contend. The capacity is divided between the segments.
+     *
+     * @param maxSize total number of entries
+     * @param policy  eviction policy used by every segment
+     * @param stripes number of segments, at least 1
+     */
+    public Cache(int maxSize, Policy policy, int stripes) {
+        stripes = Math.max(1, Math.min(stripes, Math.max(1, maxSize)));
         this.maxSize = maxSize;
-        this.calls = 0;
-        this.hits = 0;
+        this.segments = newSegments(stripes);
+        for (int i = 0; i < stripes; i++) {
+            int capacity = maxSize / stripes + (i < maxSize % stripes ? 1 : 0);
+            segments[i] = new Segment<>(capacity, policy.<K>create(capacity));
+        }
+        this.policyName = segments[0].policy.getName();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V extends KeyInterface<K>> Segment<K, V>[] newSegments(int count) {
+        return (Segment<K, V>[]) new Segment<?, ?>[count];
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        if (segments.length == 1) {
+            return segments[0];
+        }
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
     }
 
     /**
-     * Returns the object associated with the key, if present. Moves it to the front.
+     * Returns the object associated with the key, if present, and records the access.
      */
     public V get(K key) {
-        calls += 1;
-        for (int i = 0; i < cache.size(); i++) {
-            V value = cache.get(i);
-            if (value.getKey().equals(key)) {
-                cache.remove(i);
-                cache.addFirst(value);
-                hits += 1;
-                return value;
+        calls.increment();
+        Segment<K, V> segment = segmentFor(key);
+        V value;
+        synchronized (segment) {
+            value = segment.map.get(key);
+            if (value != null) {
+                segment.policy.onHit(key);
+            } else {
+                segment.policy.onMiss(key);
             }
         }
-        return null;
+        if (value != null) {
+            hits.increment();
+        }
+        return value;
     }
 
     /**
      * Adds a value to the cache. If it's a duplicate, replaces the old one.
-     * If the cache is full, removes the least recently used.
+     * If the cache is full, the policy picks a victim to evict, or may refuse to
+     * admit the new value.
+     *
+     * @return the value that left the cache (the evicted victim, or the new value
+     *         itself if it was not admitted), or null if nothing left
      */
     public V add(V value) {
-        for (int i = 0; i < cache.size(); i++) {
-            if (cache.get(i).getKey().equals(value.getKey())) {
-                cache.remove(i);
-                break;
-            }
+        K key = value.getKey();
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.add(key, value);
         }
-        cache.addFirst(value);
-        if (cache.size() > maxSize) {
-            return cache.removeLast(); // evict LRU
-        }
-        return null;
     }
 
     /**
      * Removes a cached item by its key.
      */
     public V remove(K key) {
-        for (int i = 0; i < cache.size(); i++) {
-            V value = cache.get(i);
-            if (value.getKey().equals(key)) {
-                cache.remove(i);
-                return value;
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            V value = segment.map.remove(key);
+            if (value != null) {
+                segment.policy.onRemove(key);
             }
+            return value;
         }
-        return null;
     }
 
     /**
      * Clears the cache.
      */
     public void clear() {
-        cache.clear();
-        calls = 0;
-        hits = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.map.clear();
+                segment.policy.clear();
+            }
+        }
+        calls.reset();
+        hits.reset();
     }
 
     /**
      * Returns a map copy of the cache for compatibility.
      */
     public LinkedHashMap<K, V> getCachedNodes() {
-        LinkedHashMap<K, V> map = new LinkedHashMap<>();
-        for (V item : cache) {
-            map.put(item.getKey(), item);
+        LinkedHashMap<K, V> copy = new LinkedHashMap<>();
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                copy.putAll(segment.map);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the number of cached entries.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
         }
-        return map;
+        return size;
+    }
+
+    /**
+     * Returns the name of the eviction policy.
+     */
+    public String getPolicyName() {
+        return policyName;
+    }
+
+    /**
+     * Returns the number of lock stripes.
+     */
+    public int getStripes() {
+        return segments.length;
     }
 
     /**
      * Returns the cache hit rate as a percentage.
      */
     public double getCacheHitPercent() {
-        return calls == 0 ? 0 : ((double) hits / calls) * 100.0;
+        long total = calls.sum();
+        return total == 0 ? 0 : ((double) hits.sum() / total) * 100.0;
     }
 
     @Override
     public String toString() {
+        long calls = this.calls.sum();
+        long hits = this.hits.sum();
         double hitRatio = (calls == 0) ? 0 : ((double) hits / calls) * 100;
         return String.format(
             "~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~\n" +
             "Cache with %d entries has been created\n" +
             "~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~\n" +
+            "Eviction policy:                   %s\n" +
             "Total number of references:        %d\n" +
             "Total number of cache hits:        %d\n" +
             "Cache hit percent:                 %.2f%%\n",
-            maxSize, calls, hits, hitRatio
+            maxSize, policyName, calls, hits, hitRatio
         );
     }
-    
+
+    /**
+     * One lock stripe: a map and the policy that orders its entries. Callers hold
+     * the segment's monitor.
+     */
+    private static final class Segment<K, V extends KeyInterface<K>> {
+        final HashMap<K, V> map = new HashMap<>();
+        final EvictionPolicy<K> policy;
+        final int capacity;
+
+        Segment(int capacity, EvictionPolicy<K> policy) {
+            this.capacity = capacity;
+            this.policy = policy;
+        }
+
+        V add(K key, V value) {
+            if (map.containsKey(key)) {
+                map.put(key, value);
+                policy.onHit(key);
+                return null;
+            }
+            if (capacity <= 0) {
+                return value;
+            }
+            V evicted = null;
+            if (map.size() >= capacity) {
+                K victim = policy.victim();
+                if (!policy.admit(key, victim)) {
+                    return value;
+                }
+                evicted = map.remove(victim);
+                policy.onEvict(victim);
+            }
+            map.put(key, value);
+            policy.onInsert(key);
+            return evicted;
+        }
+    }
 }
@@ -0,0 +1,87 @@
+package cs321.common;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * CLOCK (second chance) eviction. Keys sit in a ring of slots with a reference
+ * bit that a hit sets; the hand clears set bits as it sweeps and evicts the first
+ * key whose bit is already clear.
+ */
+public class ClockPolicy<K> implements EvictionPolicy<K> {
+
+    private final Object[] slots;
+    private final boolean[] referenced;
+    private final HashMap<K, Integer> slotOf = new HashMap<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int used;
+    private int hand;
+
+    public ClockPolicy(int capacity) {
+        slots = new Object[Math.max(1, capacity)];
+        referenced = new boolean[slots.length];
+    }
+
+    @Override
+    public String getName() {
+        return "CLOCK";
+    }
+
+    @Override
+    public void onHit(K key) {
+        Integer slot = slotOf.get(key);
+        if (slot != null) {
+            referenced[slot] = true;
+        }
+    }
+
+    @Override
+    public void onInsert(K key) {
+        int slot = freeSlots.isEmpty() ? used++ : freeSlots.pop();
+        slots[slot] = key;
+        referenced[slot] = true;
+        slotOf.put(key, slot);
+    }
+
+    @Override
+    public void onRemove(K key) {
+        Integer slot = slotOf.remove(key);
+        if (slot != null) {
+            slots[slot] = null;
+            referenced[slot] = false;
+            freeSlots.push(slot);
+        }
+    }
+
+    @Override
+    public void onEvict(K key) {
+        onRemove(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public K victim() {
+        while (true) {
+            if (hand >= used) {
+                hand = 0;
+            }
+            if (slots[hand] != null) {
+                if (!referenced[hand]) {
+                    return (K) slots[hand];
+                }
+                referenced[hand] = false;
+            }
+            hand++;
+        }
+    }
+
+    @Override
+    public void clear() {
+        java.util.Arrays.fill(slots, null);
+        java.util.Arrays.fill(referenced, false);
+        slotOf.clear();
+        freeSlots.clear();
+        used = 0;
+        hand = 0;
+    }
+}
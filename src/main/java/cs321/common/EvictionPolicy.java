@@ -0,0 +1,62 @@
+package cs321.common;
+
+/**
+ * Decides which entry a {@link Cache} evicts when it is full, and optionally
+ * whether a new entry is worth admitting at all. The cache owns the entries;
+ * a policy only tracks keys and is told about every hit, miss, insert and removal.
+ */
+public interface EvictionPolicy<K> {
+
+    /**
+     * Returns a short name for reports.
+     */
+    String getName();
+
+    /**
+     * A cached key was looked up.
+     */
+    void onHit(K key);
+
+    /**
+     * A key that is not cached was looked up.
+     */
+    default void onMiss(K key) {
+    }
+
+    /**
+     * A new key entered the cache.
+     */
+    void onInsert(K key);
+
+    /**
+     * A key was removed from the cache by the caller, not by eviction.
+     */
+    void onRemove(K key);
+
+    /**
+     * A key chosen by {@link #victim()} was evicted.
+     */
+    void onEvict(K key);
+
+    /**
+     * Chooses the key to evict next from a full cache. The key stays cached until
+     * {@link #onEvict(Object)} is called.
+     */
+    K victim();
+
+    /**
+     * Decides whether a new key may replace the chosen victim.
+     *
+     * @param candidate the key being added
+     * @param victim    the key that would be evicted for it
+     * @return true to admit the candidate, false to keep the victim
+     */
+    default boolean admit(K candidate, K victim) {
+        return true;
+    }
+
+    /**
+     * Forgets all keys.
+     */
+    void clear();
+}
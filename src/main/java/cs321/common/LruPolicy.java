@@ -0,0 +1,46 @@
+package cs321.common;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Least recently used eviction, backed by an access-ordered LinkedHashMap.
+ */
+public class LruPolicy<K> implements EvictionPolicy<K> {
+
+    private final LinkedHashMap<K, Boolean> order = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public String getName() {
+        return "LRU";
+    }
+
+    @Override
+    public void onHit(K key) {
+        order.get(key);
+    }
+
+    @Override
+    public void onInsert(K key) {
+        order.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public void onRemove(K key) {
+        order.remove(key);
+    }
+
+    @Override
+    public void onEvict(K key) {
+        order.remove(key);
+    }
+
+    @Override
+    public K victim() {
+        return order.keySet().iterator().next();
+    }
+
+    @Override
+    public void clear() {
+        order.clear();
+    }
+}
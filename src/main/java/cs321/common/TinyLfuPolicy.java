@@ -0,0 +1,90 @@
+package cs321.common;
+
+/**
+ * LRU eviction behind a TinyLFU admission filter (Einziger, Friedman and Manes).
+ * Every lookup, hit or miss, is counted in a count-min sketch whose counters are
+ * halved periodically so old popularity fades. A new key only replaces the LRU
+ * victim if it has been requested more often, which keeps one-off keys from
+ * flushing a cache of hot ones.
+ */
+public class TinyLfuPolicy<K> extends LruPolicy<K> {
+
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+
+    private final int[] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    public TinyLfuPolicy(int capacity) {
+        int width = Integer.highestOneBit(Math.max(16, capacity * 4) - 1) << 1;
+        counters = new int[DEPTH * width];
+        mask = width - 1;
+        sampleSize = 10 * Math.max(16, capacity);
+    }
+
+    @Override
+    public String getName() {
+        return "TinyLFU";
+    }
+
+    @Override
+    public void onHit(K key) {
+        super.onHit(key);
+        increment(key);
+    }
+
+    @Override
+    public void onMiss(K key) {
+        increment(key);
+    }
+
+    @Override
+    public boolean admit(K candidate, K victim) {
+        return frequency(candidate) > frequency(victim);
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        java.util.Arrays.fill(counters, 0);
+        additions = 0;
+    }
+
+    /**
+     * Estimates how often a key has been requested recently.
+     */
+    int frequency(K key) {
+        int hash = spread(key.hashCode());
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters[index(hash, row)]);
+        }
+        return min;
+    }
+
+    private void increment(K key) {
+        int hash = spread(key.hashCode());
+        for (int row = 0; row < DEPTH; row++) {
+            counters[index(hash, row)]++;
+        }
+        if (++additions >= sampleSize) {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] >>>= 1;
+            }
+            additions /= 2;
+        }
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+        return row * (mask + 1) + ((h ^ (h >>> 16)) & mask);
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45D9F3B;
+        return hash ^ (hash >>> 16);
+    }
+}
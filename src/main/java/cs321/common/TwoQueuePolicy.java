@@ -0,0 +1,80 @@
+package cs321.common;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * 2Q eviction (Johnson and Shasha). New keys enter a FIFO probation queue (A1in);
+ * keys evicted from it are remembered in a ghost queue (A1out), and a key that is
+ * seen again while remembered is promoted to the main LRU queue (Am). One-off
+ * accesses such as a scan therefore never displace the frequently used keys in Am.
+ */
+public class TwoQueuePolicy<K> implements EvictionPolicy<K> {
+
+    private final int probationLimit;
+    private final int ghostLimit;
+    private final LinkedHashSet<K> probation = new LinkedHashSet<>();
+    private final LinkedHashSet<K> ghosts = new LinkedHashSet<>();
+    private final LinkedHashMap<K, Boolean> main = new LinkedHashMap<>(16, 0.75f, true);
+
+    public TwoQueuePolicy(int capacity) {
+        this.probationLimit = Math.max(1, capacity / 4);
+        this.ghostLimit = Math.max(1, capacity / 2);
+    }
+
+    @Override
+    public String getName() {
+        return "2Q";
+    }
+
+    @Override
+    public void onHit(K key) {
+        // hits in A1in are deliberately ignored; Am is LRU
+        main.get(key);
+    }
+
+    @Override
+    public void onInsert(K key) {
+        if (ghosts.remove(key)) {
+            main.put(key, Boolean.TRUE);
+        } else {
+            probation.add(key);
+        }
+        // trim here rather than in onEvict: the cache evicts before it inserts, so
+        // the key being inserted must still be remembered when it arrives
+        if (ghosts.size() > ghostLimit) {
+            ghosts.remove(ghosts.iterator().next());
+        }
+    }
+
+    @Override
+    public void onRemove(K key) {
+        if (!probation.remove(key)) {
+            main.remove(key);
+        }
+    }
+
+    @Override
+    public void onEvict(K key) {
+        if (probation.remove(key)) {
+            ghosts.add(key);
+        } else {
+            main.remove(key);
+        }
+    }
+
+    @Override
+    public K victim() {
+        if (probation.size() >= probationLimit || main.isEmpty()) {
+            return probation.iterator().next();
+        }
+        return main.keySet().iterator().next();
+    }
+
+    @Override
+    public void clear() {
+        probation.clear();
+        ghosts.clear();
+        main.clear();
+    }
+}
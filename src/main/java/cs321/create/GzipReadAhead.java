@@ -0,0 +1,141 @@
+package cs321.create;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Inflates a gzip file on a thread of its own, ahead of the reader parsing it.
+ * <p>
+ * The thread fills chunks of decompressed bytes and hands them over through a
+ * bounded queue, so inflating the next chunks overlaps with parsing the current
+ * one, and stalls once the reader falls {@value #QUEUE_CHUNKS} chunks behind. The
+ * reader gives each chunk back when it asks for the next, and the thread fills it
+ * again, so the same few buffers are used for the whole file.
+ */
+final class GzipReadAhead {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int QUEUE_CHUNKS = 4;
+    private static final int INPUT_BUFFER_SIZE = 1 << 16;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final InputStream input;
+    private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+    private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(QUEUE_CHUNKS + 2);
+    private final Thread thread;
+    private volatile IOException failure;
+    private ByteBuffer current;
+    private boolean ended;
+
+    /**
+     * Opens the file, reads its gzip header and starts inflating it.
+     *
+     * @throws IOException if the file cannot be opened or is not in gzip format
+     */
+    GzipReadAhead(String filename) throws IOException {
+        FileInputStream file = new FileInputStream(filename);
+        try {
+            this.input = new GZIPInputStream(file, INPUT_BUFFER_SIZE);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        for (int i = 0; i < QUEUE_CHUNKS + 2; i++) {
+            free.add(new byte[CHUNK_SIZE]);
+        }
+        this.thread = new Thread(this::inflate, "gunzip " + new File(filename).getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return true if the file starts with the gzip magic number
+     */
+    static boolean isGzip(String filename) throws IOException {
+        try (InputStream in = new FileInputStream(filename)) {
+            return in.read() == 0x1f && in.read() == 0x8b;
+        }
+    }
+
+    /**
+     * Returns the next chunk of decompressed bytes, waiting for the thread if it has
+     * none ready. The chunk returned before this one is given back to be refilled.
+     *
+     * @return the chunk, or null at the end of the file
+     * @throws IOException if the file could not be read or inflated
+     */
+    ByteBuffer next() throws IOException {
+        if (current != null) {
+            free.add(current.array());
+            current = null;
+        }
+        if (ended) {
+            return null;
+        }
+        ByteBuffer chunk;
+        try {
+            chunk = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the gzip reader");
+        }
+        if (chunk == END) {
+            ended = true;
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+        current = chunk;
+        return chunk;
+    }
+
+    /**
+     * Stops the thread and closes the file.
+     */
+    void close() throws IOException {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        input.close();
+    }
+
+    private void inflate() {
+        try {
+            while (true) {
+                byte[] chunk = free.take();
+                int length = 0;
+                int n = 0;
+                while (length < chunk.length && (n = input.read(chunk, length, chunk.length - length)) > 0) {
+                    length += n;
+                }
+                if (length > 0) {
+                    filled.put(ByteBuffer.wrap(chunk, 0, length));
+                }
+                if (n < 0) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            return;                                                 // closed by the reader
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException("Cannot inflate gzip log: " + e.getMessage(), e);
+        }
+        try {
+            filled.put(END);
+        } catch (InterruptedException e) {
+            // closed by the reader
+        }
+    }
+}
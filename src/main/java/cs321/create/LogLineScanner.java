@@ -0,0 +1,439 @@
+package cs321.create;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Extracts the keys of each tree type from an SSH log line in a single pass over
+ * its characters, without splitting it or running regular expressions. An ASCII
+ * line is scanned as the raw bytes read from the log, with no decoding at all.
+ * <p>
+ * The line is taken as whitespace-separated fields, with the event in the third
+ * field and the user name in the fourth. Each tree type first checks the event, so
+ * a line that none of the types want is rejected after the first four fields. Only
+ * then is the line scanned for the time, the first {@code d+/d+ d+:d+:d+} date and
+ * time, and for the first IPv4 address, four dot-separated runs of one to three
+ * digits not touching a letter, digit or underscore. These are the same fields the
+ * earlier {@code split} and {@code Pattern} parse found, and the keys are identical.
+ * <p>
+ * Nothing is allocated but the strings of the keys returned.
+ */
+final class LogLineScanner {
+
+    private static final int ACCEPTED_IP = 0;
+    private static final int ACCEPTED_TIME = 1;
+    private static final int INVALID_IP = 2;
+    private static final int INVALID_TIME = 3;
+    private static final int FAILED_IP = 4;
+    private static final int FAILED_TIME = 5;
+    private static final int REVERSE_IP = 6;
+    private static final int REVERSE_TIME = 7;
+    private static final int USER_IP = 8;
+    private static final int UNKNOWN = -1;
+
+    private static final char[] ACCEPTED = "Accepted".toCharArray();
+    private static final char[] INVALID = "Invalid".toCharArray();
+    private static final char[] FAILED = "Failed".toCharArray();
+    private static final char[] INVALID_USER = "Invalid user".toCharArray();
+    private static final char[] FAILED_PASSWORD = "Failed password".toCharArray();
+
+    private final int[] types;
+
+    // the line being scanned, as ASCII bytes or as characters, and what has been found in it
+    private byte[] bytes;
+    private char[] chars;
+    private int length;
+    private int eventStart;
+    private int eventEnd;
+    private int userStart;
+    private int userEnd;
+    private int timeStart;                                    // -1 if the line has no time
+    private int ipStart;                                      // -1 if the line has no address
+    private int ipEnd;
+    private int thirdOctet;                                   // start of the third and fourth numbers
+    private char[] keyChars = new char[64];                   // where a key is put together
+    private byte[] keyBytes = new byte[64];
+
+    /**
+     * @param treeTypes the tree types to extract keys for, in the order keys are returned
+     */
+    LogLineScanner(String[] treeTypes) {
+        types = new int[treeTypes.length];
+        for (int i = 0; i < treeTypes.length; i++) {
+            types[i] = typeCode(treeTypes[i]);
+        }
+    }
+
+    /**
+     * Scans a line and stores its key for each tree type, or null where the line has
+     * none.
+     *
+     * @param chars  the line's characters, without the line terminator
+     * @param length number of characters in the line
+     * @param keys   receives one key per tree type
+     * @return true if the line has a key for at least one tree type
+     */
+    boolean scan(char[] chars, int length, String[] keys) {
+        this.bytes = null;
+        this.chars = chars;
+        this.length = length;
+        return scan(keys);
+    }
+
+    /**
+     * Scans a line of ASCII bytes, which is the same as scanning the characters they
+     * decode to, and stores its key for each tree type, or null where the line has none.
+     *
+     * @param ascii  the line's bytes, without the line terminator, none of them negative
+     * @param length number of bytes in the line
+     * @param keys   receives one key per tree type
+     * @return true if the line has a key for at least one tree type
+     */
+    boolean scan(byte[] ascii, int length, String[] keys) {
+        this.bytes = ascii;
+        this.chars = null;
+        this.length = length;
+        return scan(keys);
+    }
+
+    private boolean scan(String[] keys) {
+        if (!findFields()) {
+            return false;
+        }
+        boolean accepted = eventIs(ACCEPTED);
+        int invalid = 0;                                      // 0 unknown, 1 yes, -1 no
+        int failed = 0;
+        boolean wanted = false;
+        for (int type : types) {
+            switch (type) {
+                case ACCEPTED_IP:
+                case ACCEPTED_TIME:
+                case USER_IP:
+                    wanted |= accepted;
+                    break;
+                case INVALID_IP:
+                case INVALID_TIME:
+                    if (invalid == 0) {
+                        invalid = eventIs(INVALID) || contains(INVALID_USER) ? 1 : -1;
+                    }
+                    wanted |= invalid > 0;
+                    break;
+                case FAILED_IP:
+                case FAILED_TIME:
+                    if (failed == 0) {
+                        failed = eventIs(FAILED) || contains(FAILED_PASSWORD) ? 1 : -1;
+                    }
+                    wanted |= failed > 0;
+                    break;
+                case REVERSE_IP:
+                case REVERSE_TIME:
+                    wanted = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (!wanted) {
+            return false;
+        }
+
+        findTime();
+        findAddress();
+        boolean ip = ipStart >= 0;
+        boolean time = timeStart >= 0;
+        int timeEnd = timeStart + 5;
+        boolean found = false;
+        for (int i = 0; i < types.length; i++) {
+            String key = null;
+            switch (types[i]) {
+                case ACCEPTED_IP:
+                    key = accepted && ip ? key("", ipStart, ipEnd) : null;
+                    break;
+                case ACCEPTED_TIME:
+                    key = accepted && time ? key("Accepted-", timeStart, timeEnd) : null;
+                    break;
+                case INVALID_IP:
+                    key = invalid > 0 && ip ? key("Invalid-", ipStart, ipEnd) : null;
+                    break;
+                case INVALID_TIME:
+                    key = invalid > 0 && time ? key("Invalid-", timeStart, timeEnd) : null;
+                    break;
+                case FAILED_IP:
+                    key = failed > 0 && ip ? key("*****-", ipStart, ipEnd) : null;
+                    break;
+                case FAILED_TIME:
+                    key = failed > 0 && time ? key("Failed-", timeStart, timeEnd) : null;
+                    break;
+                case REVERSE_IP:
+                    key = ip ? key(".", thirdOctet, ipEnd, "-", ipStart, ipEnd) : null;
+                    break;
+                case REVERSE_TIME:
+                    key = ip && time ? key("Address-", timeStart, timeEnd) : null;
+                    break;
+                case USER_IP:
+                    key = accepted && ip ? key("", userStart, userEnd, "-", ipStart, ipEnd) : null;
+                    break;
+                default:
+                    break;
+            }
+            keys[i] = key;
+            found |= key != null;
+        }
+        return found;
+    }
+
+    /**
+     * Finds the third and fourth fields, as splitting on runs of whitespace would:
+     * leading whitespace makes an empty first field.
+     *
+     * @return false if the line has fewer than four fields
+     */
+    private boolean findFields() {
+        int i = 0;
+        int field = 0;
+        if (length > 0 && isSpace(charAt(0))) {
+            field = 1;                                        // the empty leading field
+            while (i < length && isSpace(charAt(i))) {
+                i++;
+            }
+        }
+        while (i < length) {
+            int start = i;
+            while (i < length && !isSpace(charAt(i))) {
+                i++;
+            }
+            if (field == 2) {
+                eventStart = start;
+                eventEnd = i;
+            } else if (field == 3) {
+                userStart = start;
+                userEnd = i;
+                return true;
+            }
+            field++;
+            while (i < length && isSpace(charAt(i))) {
+                i++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the first date and time, {@code d+/d+ d+:d+:d+}, and keeps the start of
+     * the time if it is at least five characters long.
+     */
+    private void findTime() {
+        timeStart = -1;
+        for (int slash = 1; slash < length; slash++) {
+            if (charAt(slash) != '/' || !isDigit(charAt(slash - 1))) {
+                continue;
+            }
+            int i = skipDigits(slash + 1);
+            if (i == slash + 1 || i == length || !isSpace(charAt(i))) {
+                continue;
+            }
+            while (i < length && isSpace(charAt(i))) {
+                i++;
+            }
+            int start = i;
+            int end = skipDigits(start);
+            if (end == start || end == length || charAt(end) != ':') {
+                continue;
+            }
+            i = skipDigits(end + 1);
+            if (i == end + 1 || i == length || charAt(i) != ':') {
+                continue;
+            }
+            end = skipDigits(i + 1);
+            if (end == i + 1) {
+                continue;
+            }
+            if (end - start >= 5) {
+                timeStart = start;
+            }
+            return;
+        }
+    }
+
+    /**
+     * Finds the first IPv4 address: four runs of one to three digits joined by dots,
+     * starting and ending at a word boundary.
+     */
+    private void findAddress() {
+        ipStart = -1;
+        for (int start = 0; start < length; start++) {
+            if (!isDigit(charAt(start)) || (start > 0 && isWordBefore(start))) {
+                continue;
+            }
+            int i = start;
+            int octet = 0;
+            while (true) {
+                int end = skipDigits(i);
+                if (end == i || end - i > 3) {
+                    break;
+                }
+                if (octet == 2) {
+                    thirdOctet = i;
+                } else if (octet == 3) {
+                    if (end == length || !isWordAt(end)) {
+                        ipStart = start;
+                        ipEnd = end;
+                        return;
+                    }
+                    break;
+                }
+                if (end == length || charAt(end) != '.') {
+                    break;
+                }
+                i = end + 1;
+                octet++;
+            }
+        }
+    }
+
+    private boolean eventIs(char[] word) {
+        if (eventEnd - eventStart != word.length) {
+            return false;
+        }
+        for (int i = 0; i < word.length; i++) {
+            if (charAt(eventStart + i) != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean contains(char[] text) {
+        char first = text[0];
+        for (int i = 0; i + text.length <= length; i++) {
+            if (charAt(i) != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < text.length && charAt(i + j) == text[j]) {
+                j++;
+            }
+            if (j == text.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private char charAt(int i) {
+        return chars != null ? chars[i] : (char) bytes[i];
+    }
+
+    private String key(String prefix, int start, int end) {
+        return key(prefix, start, end, "", end, end);
+    }
+
+    /**
+     * Builds a key from fixed text and stretches of the line, copied once into the
+     * new string.
+     */
+    private String key(String prefix, int start, int end, String separator, int start2, int end2) {
+        int length = prefix.length() + (end - start) + separator.length() + (end2 - start2);
+        if (length > keyChars.length) {
+            keyChars = new char[Math.max(keyChars.length * 2, length)];
+            keyBytes = new byte[keyChars.length];
+        }
+        int n = append(prefix, 0);
+        n = append(start, end, n);
+        n = append(separator, n);
+        n = append(start2, end2, n);
+        return chars != null ? new String(keyChars, 0, n) : new String(keyBytes, 0, n, StandardCharsets.ISO_8859_1);
+    }
+
+    private int append(String text, int n) {
+        for (int i = 0; i < text.length(); i++) {
+            n = appendChar(text.charAt(i), n);
+        }
+        return n;
+    }
+
+    private int append(int start, int end, int n) {
+        if (chars != null) {
+            System.arraycopy(chars, start, keyChars, n, end - start);
+        } else {
+            System.arraycopy(bytes, start, keyBytes, n, end - start);
+        }
+        return n + end - start;
+    }
+
+    private int appendChar(char c, int n) {
+        if (chars != null) {
+            keyChars[n] = c;
+        } else {
+            keyBytes[n] = (byte) c;                       // key text is ASCII
+        }
+        return n + 1;
+    }
+
+    private int skipDigits(int i) {
+        while (i < length && isDigit(charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // \s in java.util.regex
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /*
+     * Word characters for \b as java.util.regex has it up to Java 18: letters, digits,
+     * '_', and non-spacing marks that follow a letter or digit.
+     */
+    private boolean isWordBefore(int i) {
+        if (chars == null) {
+            return isWord(charAt(i - 1));
+        }
+        int c = Character.codePointBefore(chars, i);
+        return isWord(c) || (Character.getType(c) == Character.NON_SPACING_MARK && hasBaseCharacter(i - 1));
+    }
+
+    private boolean isWordAt(int i) {
+        if (chars == null) {
+            return isWord(charAt(i));
+        }
+        int c = Character.codePointAt(chars, i, length);
+        return isWord(c) || (Character.getType(c) == Character.NON_SPACING_MARK && hasBaseCharacter(i));
+    }
+
+    private boolean hasBaseCharacter(int i) {
+        for (int x = i; x >= 0; x--) {
+            int c = Character.codePointAt(chars, x, length);
+            if (Character.isLetterOrDigit(c)) {
+                return true;
+            }
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isWord(int c) {
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+
+    private static int typeCode(String treeType) {
+        switch (treeType) {
+            case "accepted-ip":         return ACCEPTED_IP;
+            case "accepted-time":       return ACCEPTED_TIME;
+            case "invalid-ip":          return INVALID_IP;
+            case "invalid-time":        return INVALID_TIME;
+            case "failed-ip":           return FAILED_IP;
+            case "failed-time":         return FAILED_TIME;
+            case "reverseaddress-ip":   return REVERSE_IP;
+            case "reverseaddress-time": return REVERSE_TIME;
+            case "user-ip":             return USER_IP;
+            default:                    return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package cs321.create;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts the keys of an SSH log on several threads.
+ * <p>
+ * The file is split into byte ranges, each boundary moved forward to the start of
+ * the next line. A fork-join task halves the list of ranges until it holds one,
+ * which a worker parses with its own {@link SSHFileReader} into count maps of its
+ * own, so workers share nothing while parsing. Each task then merges the maps of
+ * its two halves, the smaller into the larger, and the root returns the counts for
+ * the whole file.
+ * <p>
+ * Given a directory, such as a log and its rotated predecessors, the parser counts
+ * every file in it together, with the ranges of all files shared among the workers.
+ * A gzip-compressed file cannot be split, so it is one range, inflated on its
+ * reader's own read-ahead thread.
+ */
+public class ParallelLogParser {
+
+    private static final int MIN_CHUNK_BYTES = 1 << 20;
+    private static final int CHUNKS_PER_THREAD = 4;                 // spare ranges keep every worker busy
+
+    private final File[] files;
+    private final String[] treeTypes;
+    private final int threads;
+    private final boolean wholeLinesOnly;
+    private final boolean mapped;
+    private final long chunkBytes;
+    private long offset;
+
+    /**
+     * @param path           log file, or a directory whose files are all counted
+     * @param treeTypes      tree types to count keys for
+     * @param threads        worker threads
+     * @param wholeLinesOnly leave an unterminated last line for a later run, as
+     *                       {@link SSHFileReader#SSHFileReader(String, String, long)} does
+     * @param mapped         workers memory-map their ranges instead of reading them
+     */
+    public ParallelLogParser(String path, String[] treeTypes, int threads, boolean wholeLinesOnly,
+            boolean mapped) throws IOException {
+        this(path, treeTypes, threads, wholeLinesOnly, mapped, 0);
+    }
+
+    /**
+     * @param chunkBytes size of the ranges files are split into, or 0 to give each
+     *                   thread several ranges
+     */
+    ParallelLogParser(String path, String[] treeTypes, int threads, boolean wholeLinesOnly, boolean mapped,
+            long chunkBytes) throws IOException {
+        this.files = logFiles(new File(path));
+        if (chunkBytes == 0) {
+            long length = 0;
+            for (File file : files) {
+                length += file.length();
+            }
+            chunkBytes = Math.max(MIN_CHUNK_BYTES, length / ((long) Math.max(1, threads) * CHUNKS_PER_THREAD));
+        }
+        this.treeTypes = treeTypes.clone();
+        this.threads = Math.max(1, threads);
+        this.wholeLinesOnly = wholeLinesOnly;
+        this.mapped = mapped;
+        this.chunkBytes = Math.max(1, chunkBytes);
+    }
+
+    /**
+     * Lists the files a path stands for: the file itself, or the files of a directory
+     * in name order, leaving out hidden ones.
+     */
+    static File[] logFiles(File path) throws IOException {
+        if (!path.isDirectory()) {
+            return new File[] {path};
+        }
+        File[] files = path.listFiles(file -> file.isFile() && !file.isHidden());
+        if (files == null) {
+            throw new IOException("Cannot list log directory " + path);
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Parses the whole file, or every file of the directory.
+     *
+     * @return for each tree type, in the order given, its formatted keys and how
+     *         often each occurs
+     * @throws IOException if a file cannot be read
+     */
+    public List<Map<String, Integer>> count() throws IOException {
+        List<Range> ranges = new ArrayList<>();
+        for (File file : files) {
+            if (GzipReadAhead.isGzip(file.getPath())) {
+                ranges.add(new Range(file.getPath(), 0, Long.MAX_VALUE, true));
+                continue;
+            }
+            long[] bounds = lineBoundaries(file.getPath());
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                ranges.add(new Range(file.getPath(), bounds[i], bounds[i + 1], i + 2 == bounds.length));
+            }
+        }
+        if (ranges.isEmpty()) {
+            return emptyCounts();
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new CountTask(ranges, 0, ranges.size()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return byte offset just past the last line counted in the last file, as
+     *         {@link SSHFileReader#getOffset()}. For a directory this is an offset
+     *         into its last file in name order only, so a tree counted from a
+     *         directory cannot be appended to from it.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Splits the file into ranges of about the chunk size, moving each boundary
+     * past the next newline so every range holds whole lines.
+     *
+     * @return range starts, followed by the end of the file
+     */
+    private long[] lineBoundaries(String filename) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            long length = file.length();
+            int chunks = (int) Math.max(1, (length + chunkBytes - 1) / chunkBytes);
+            long[] bounds = new long[chunks + 1];
+            bounds[chunks] = length;
+            byte[] buffer = new byte[8192];
+            for (int c = 1; c < chunks; c++) {
+                long position = Math.max(bounds[c - 1], c * chunkBytes);
+                // the line containing the byte before the split point runs to the next newline
+                file.seek(position - 1);
+                long boundary = length;
+                int n;
+                search:
+                while ((n = file.read(buffer)) > 0) {
+                    for (int i = 0; i < n; i++) {
+                        if (buffer[i] == '\n') {
+                            boundary = file.getFilePointer() - n + i + 1;
+                            break search;
+                        }
+                    }
+                }
+                bounds[c] = boundary;
+            }
+            // a long line can swallow the next split points; drop the empty ranges
+            int distinct = 1;
+            for (int c = 1; c <= chunks; c++) {
+                if (bounds[c] > bounds[distinct - 1]) {
+                    bounds[distinct++] = bounds[c];
+                }
+            }
+            return Arrays.copyOf(bounds, Math.max(2, distinct));
+        }
+    }
+
+    /**
+     * A stretch of whole lines of one file.
+     */
+    private static final class Range {
+        final String filename;
+        final long start;
+        final long end;
+        final boolean last;                                         // ends the file
+
+        Range(String filename, long start, long end, boolean last) {
+            this.filename = filename;
+            this.start = start;
+            this.end = end;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Counts the keys of the ranges from index {@code from} up to, not including, {@code to}.
+     */
+    private final class CountTask extends RecursiveTask<List<Map<String, Integer>>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Range> ranges;
+        private final int from;
+        private final int to;
+
+        CountTask(List<Range> ranges, int from, int to) {
+            this.ranges = ranges;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Map<String, Integer>> compute() {
+            if (to - from == 1) {
+                try {
+                    return countRange(ranges.get(from), to == ranges.size());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int middle = (from + to) >>> 1;
+            CountTask right = new CountTask(ranges, middle, to);
+            right.fork();
+            List<Map<String, Integer>> counts = new CountTask(ranges, from, middle).compute();
+            List<Map<String, Integer>> rightCounts = right.join();
+            for (int i = 0; i < counts.size(); i++) {
+                Map<String, Integer> larger = counts.get(i);
+                Map<String, Integer> smaller = rightCounts.get(i);
+                if (smaller.size() > larger.size()) {
+                    Map<String, Integer> swap = larger;
+                    larger = smaller;
+                    smaller = swap;
+                }
+                for (Map.Entry<String, Integer> entry : smaller.entrySet()) {
+                    larger.merge(entry.getKey(), entry.getValue(), Integer::sum);
+                }
+                counts.set(i, larger);
+            }
+            return counts;
+        }
+    }
+
+    private List<Map<String, Integer>> emptyCounts() {
+        List<Map<String, Integer>> counts = new ArrayList<>(treeTypes.length);
+        for (int i = 0; i < treeTypes.length; i++) {
+            counts.add(new HashMap<>());
+        }
+        return counts;
+    }
+
+    /**
+     * @param lastOfAll the range ends the last file, and its end is the offset reported
+     */
+    private List<Map<String, Integer>> countRange(Range range, boolean lastOfAll) throws IOException {
+        List<Map<String, Integer>> counts = emptyCounts();
+        // only the last range of a file can end in a line that is still being written
+        SSHFileReader reader = new SSHFileReader(range.filename, treeTypes, range.start, range.end,
+            wholeLinesOnly && range.last, mapped);
+        try {
+            while (reader.hasNextKey()) {
+                String[] keys = reader.nextKeys();
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] != null) {
+                        counts.get(i).merge(SSHCreateBTree.formatKey(keys[i], treeTypes[i]), 1, Integer::sum);
+                    }
+                }
+            }
+            if (lastOfAll) {
+                offset = reader.getOffset();
+            }
+        } finally {
+            reader.close();
+        }
+        return counts;
+    }
+}
@@ -1,19 +1,22 @@
 package cs321.create;
 
 import cs321.btree.BTree;
+import cs321.btree.BTreeOptions;
+import cs321.btree.SortedRunIngest;
 import cs321.btree.TreeObject;
 import cs321.common.ParseArgumentException;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.Statement;
-import java.sql.SQLException;
+import java.io.UncheckedIOException;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * The driver class for building a BTree representation of an SSH Log file.
@@ -21,6 +24,7 @@ import java.util.Map;
 public class SSHCreateBTree {
 
     private static final int DEFAULT_DISK_BLOCK_SIZE = 4096;
+    private static final int DUMP_BUFFER_SIZE = 1 << 20;
 
     /**
      * Main method to run the BTree creation process.
@@ -35,9 +39,6 @@ public class SSHCreateBTree {
                 System.out.println(parsed);
             }
 
-            // CRITICAL: Always use 0 for file naming regardless of input
-            int filenameDegree = 0;
-            
             // Calculate optimal degree for BTree
             int btreeDegree;
             if (parsed.getDegree() == 0) {
@@ -46,60 +47,55 @@ public class SSHCreateBTree {
                 btreeDegree = parsed.getDegree();
             }
 
-            // Build filenames using fixed 0 degree
-            String btreeFilename = String.format(
-                "SSH_log.txt.ssh.btree.%s.%d",
-                parsed.getTreeType(), filenameDegree
-            );
+            String btreeFilename = btreeFilename(parsed.getTreeType());
 
             // Initialize the BTree with the calculated optimal degree
+            BTreeOptions options = new BTreeOptions()
+                .setCache(parsed.isCacheEnabled(), parsed.getCacheSize())
+                .setCachePolicy(parsed.getCachePolicy())
+                .setStorageType(parsed.getStorageType())
+                .setCountSummaries(parsed.isCountSummary())
+                .setCountIndex(parsed.isCountIndex())
+                .setKeyCounts(parsed.isKeyCounts())
+                .setWriteAheadLog(parsed.isWriteAheadLog())
+                .setInsertBuffer(parsed.getInsertBuffer())
+                // appends commit together with the log offset they reach, see appendLogToBTree
+                .setGroupCommit(Integer.MAX_VALUE, Long.MAX_VALUE);
+            if (parsed.isMultipleTypes()) {
+                buildTreeTypes(parsed, options, btreeDegree);
+                return;
+            }
+            // In append mode an existing tree keeps its degree and layout and only
+            // takes in the log lines written since it was last updated
+            boolean append = parsed.isAppend() && new File(btreeFilename).exists();
             BTree btree;
-            if (parsed.isCacheEnabled()) {
-                btree = new BTree(btreeDegree, btreeFilename, true, parsed.getCacheSize());
+            if (append) {
+                btree = BTree.open(btreeFilename, false, options);
+                btreeDegree = btree.getDegree();
+                appendLogToBTree(parsed.getSSHFileName(), parsed.getTreeType(), btree,
+                    parsed.isWriteAheadLog() ? parsed.getWalCommit() : Integer.MAX_VALUE, parsed.isMappedLog());
+            } else if (parsed.isSortedRunIngest()) {
+                long logOffset = ingestLogThroughRuns(parsed.getSSHFileName(), parsed.getTreeType(),
+                    btreeFilename, btreeDegree, parsed.getFillPercent() / 100.0, options,
+                    parsed.getMemtableSize(), parsed.isMappedLog(), parsed.getDebugLevel() == 1);
+                btree = BTree.open(btreeFilename, false, options);
+                btree.setLogOffset(logOffset);
             } else {
-                btree = new BTree(btreeDegree, btreeFilename, false, 0);
-            }
+                btree = new BTree(btreeDegree, btreeFilename, options);
 
-            // Process the SSH log file, counting frequencies
-            processLogAndCreateBTree(
-                parsed.getSSHFileName(),
-                parsed.getTreeType(),
-                btree
-            );
-
-            // Dump to text if in debug mode - use fixed 0 for the dump filename
-            if (parsed.getDebugLevel() == 1) {
-                String dumpFileName = String.format(
-                    "dump-%s.%d.txt", parsed.getTreeType(), filenameDegree
+                // Process the SSH log file, counting frequencies
+                processLogAndCreateBTree(
+                    parsed.getSSHFileName(),
+                    parsed.getTreeType(),
+                    btree,
+                    parsed.getFillPercent() / 100.0,
+                    parsed.isAppend(),
+                    parsed.getParseThreads(),
+                    parsed.isMappedLog()
                 );
-                try (PrintWriter writer = new PrintWriter(new File(dumpFileName))) {
-                    dumpBTreeToFile(btree, writer);
-                }
             }
 
-            // Dump to SQLite database if requested
-            if (parsed.useDatabase()) {
-                // Use the standard table name as required
-                String tableName = "ssh_log_data";
-                
-                // Call the provided dumpToDatabase method
-                btree.dumpToDatabase("SSHLogDB.db", tableName);
-                
-                // Ensure database has type and degree info
-                updateDatabaseWithTypeAndDegree(
-                    "SSHLogDB.db", 
-                    tableName, 
-                    parsed.getTreeType(), 
-                    filenameDegree  // Use filenameDegree for consistency
-                );
-            }
-
-            // Flush and close the BTree file
-            btree.finishUp();
-            
-            System.out.println("Successfully created B-Tree for type " + 
-                parsed.getTreeType() + " with degree " + btreeDegree + 
-                " in file " + btreeFilename);
+            finishTree(parsed, parsed.getTreeType(), btree, btreeFilename, btreeDegree, append);
 
         } catch (ParseArgumentException e) {
             printUsageAndExit("Argument error: " + e.getMessage());
@@ -107,6 +103,11 @@ public class SSHCreateBTree {
             System.err.println("I/O error: " + e.getMessage());
             e.printStackTrace();
             System.exit(1);
+        } catch (UncheckedIOException e) {
+            // a log that fails part way is not counted short
+            System.err.println("I/O error: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
         } catch (Exception e) {
             System.err.println("Fatal error: " + e.getMessage());
             e.printStackTrace();
@@ -115,232 +116,302 @@ public class SSHCreateBTree {
     }
 
     /**
-     * Process the log file, count frequencies, and insert into BTree.
+     * CRITICAL: tree files are always named with degree 0, whatever degree they use.
+     */
+    private static String btreeFilename(String treeType) {
+        return String.format("SSH_log.txt.ssh.btree.%s.0", treeType);
+    }
+
+    /**
+     * Builds a tree for each of several types from one read of the log, split over
+     * the parse threads. Each line is parsed once and its key for every type it
+     * matches is counted in that type's map; the trees are then bulk loaded one
+     * after another.
      */
-    private static void processLogAndCreateBTree(String logFilePath, String treeType, BTree btree) 
+    private static void buildTreeTypes(SSHCreateBTreeArguments parsed, BTreeOptions options, int btreeDegree)
             throws IOException {
-        Map<String, Integer> keyFrequencies = new HashMap<>();
+        String[] treeTypes = parsed.getTreeTypes();
+        ParallelLogParser parser = new ParallelLogParser(parsed.getSSHFileName(), treeTypes,
+            parsed.getParseThreads(), false, parsed.isMappedLog());
+        List<Map<String, Integer>> keyFrequencies = parser.count();
+        long logOffset = parser.getOffset();
+
+        for (int i = 0; i < treeTypes.length; i++) {
+            Map<String, Integer> counts = keyFrequencies.set(i, null);
+            System.out.println("Found " + counts.size() + " unique keys for tree type: " + treeTypes[i]);
+            BTree btree = new BTree(btreeDegree, btreeFilename(treeTypes[i]), options);
+            btree.setLogOffset(logOffset);
+            btree.bulkLoad(counts.entrySet().stream()
+                .map(entry -> new TreeObject(entry.getKey(), entry.getValue()))
+                .iterator(), parsed.getFillPercent() / 100.0);
+            finishTree(parsed, treeTypes[i], btree, btreeFilename(treeTypes[i]), btreeDegree, false);
+        }
+    }
+
+    /**
+     * Writes the debug dump and database table for a built tree if requested, closes
+     * it and reports on it.
+     */
+    private static void finishTree(SSHCreateBTreeArguments parsed, String treeType, BTree btree,
+            String btreeFilename, int btreeDegree, boolean append) throws IOException {
+        // Dump to text if in debug mode - use fixed 0 for the dump filename
+        if (parsed.getDebugLevel() == 1) {
+            String dumpFileName = String.format("dump-%s.0.txt", treeType);
+            // streamed in key order through a large buffer; memory does not grow with the tree
+            try (PrintWriter writer = new PrintWriter(
+                    new BufferedWriter(new FileWriter(dumpFileName), DUMP_BUFFER_SIZE))) {
+                btree.dumpToFile(writer);
+            }
+        }
+
+        // Dump to SQLite database if requested, one table per tree type under the
+        // name SSHSearchDatabase queries
+        if (parsed.useDatabase()) {
+            btree.dumpToDatabase("SSHLogDB.db", treeType.replace('-', '_'));
+        }
+
+        // Flush and close the BTree file
+        btree.finishUp();
+
+        if (parsed.getDebugLevel() == 1) {
+            if (btree.getCache() != null) {
+                System.out.print(btree.getCache());
+            }
+            System.out.println("Node writes: " + btree.getDiskWrites() + " of "
+                + btree.getWriteRequests() + " requested (" + btree.getWritesSaved()
+                + " saved by write-back)");
+            if (parsed.isWriteAheadLog()) {
+                System.out.println("Write-ahead log commits: " + btree.getCommits());
+            }
+        }
         
+        System.out.println("Successfully " + (append ? "updated" : "created") + " B-Tree for type " + 
+            treeType + " with degree " + btreeDegree + 
+            " in file " + btreeFilename);
+    }
+
+    /**
+     * Process the log file, count frequencies, and bulk load them into the BTree.
+     * A tree that will be appended to only takes complete lines, so a line still
+     * being written is picked up whole by the next run. With more than one parse
+     * thread, byte ranges of the log are counted in parallel, as are the files of a
+     * log directory.
+     */
+    private static void processLogAndCreateBTree(String logFilePath, String treeType, BTree btree,
+            double fillFactor, boolean growingLog, int parseThreads, boolean mappedLog) throws IOException {
         // Read each key from the log file and count frequencies
-        SSHFileReader reader = new SSHFileReader(logFilePath, treeType);
-        while (reader.hasNextKey()) {
-            String key = reader.nextKey();
-            
-            // Format key with proper prefix and clean up based on tree type
-            switch (treeType) {
-                case "accepted-ip":
-                    // Accepted-137.x.x.x (most common first three digits in top 10)
-                    if (!key.startsWith("Accepted-")) {
-                        key = "Accepted-" + key;
-                    }
-                    break;
-                    
-                case "accepted-timestamp":
-                    // Format: Accepted-HH:MM
-                    if (!key.startsWith("Accepted-")) {
-                        key = "Accepted-" + key;
-                    }
-                    break;
-                    
-                case "failed-ip":
-                    // Format: Failed-183.x.x.x (top 2 entries have 183 as first three digits)
-                    if (key.contains("*****-")) {
-                        key = key.replace("*****-", "");
-                    }
-                    if (!key.startsWith("Failed-")) {
-                        key = "Failed-" + key;
-                    }
-                    break;
-                    
-                case "failed-timestamp":
-                    // Format: Failed-HH:MM
-                    if (key.contains("*****-")) {
-                        key = key.replace("*****-", "");
-                    }
-                    if (!key.startsWith("Failed-")) {
-                        key = "Failed-" + key;
-                    }
-                    break;
-                    
-                case "invalid-ip":
-                    // Format: Invalid-x.x.x.x
-                    if (!key.startsWith("Invalid-")) {
-                        key = "Invalid-" + key;
-                    }
-                    break;
-                    
-                case "invalid-timestamp":
-                    // Invalid-XX (where XX is between 42 and 55)
-                    if (!key.startsWith("Invalid-")) {
-                        key = "Invalid-" + key;
-                    }
-                    break;
-                    
-                case "reverseaddress-ip":
-                    // The top entry is of 'reverse' type in top 25
-                    if (key.contains("-")) {
-                        String[] parts = key.split("-");
-                        if (parts.length > 1) {
-                            key = "Address-" + parts[1];
-                        } else {
-                            key = "Address-" + key;
-                        }
-                    } else if (!key.startsWith("Address-")) {
-                        key = "Address-" + key;
-                    }
-                    break;
-                    
-                case "reverseaddress-timestamp":
-                    // Format: Address-HH:MM (top entry is 11:00)
-                    if (!key.startsWith("Address-")) {
-                        key = "Address-" + key;
-                    }
-                    break;
-                    
-                case "user-ip":
-                    // Format: user-x.x.x.x (predominant user is 'root')
-                    // Keep as is, as it seems format varies based on user (root, admin, etc.)
-                    break;
-                    
-                default:
-                    // For any other tree types, keep as is
-                    break;
-            }
-            
-            // Count frequencies - increment existing count or initialize to 1
-            keyFrequencies.put(key, keyFrequencies.getOrDefault(key, 0) + 1);
+        Map<String, Integer> keyFrequencies;
+        if (parseThreads > 1 || new File(logFilePath).isDirectory()) {
+            ParallelLogParser parser = new ParallelLogParser(logFilePath, new String[] {treeType},
+                parseThreads, growingLog, mappedLog);
+            keyFrequencies = parser.count().get(0);
+            btree.setLogOffset(parser.getOffset());
+        } else {
+            SSHFileReader reader = openLog(logFilePath, treeType, 0, growingLog, mappedLog);
+            keyFrequencies = countKeys(reader, treeType);
+            btree.setLogOffset(reader.getOffset());
         }
-        reader.close();
         
         // Debug info
         System.out.println("Found " + keyFrequencies.size() + " unique keys for tree type: " + treeType);
         
-        // Insert keys into BTree with their frequencies
-        for (Map.Entry<String, Integer> entry : keyFrequencies.entrySet()) {
-            String key = entry.getKey();
-            int frequency = entry.getValue();
-            
-            // Create TreeObject with key and frequency, ensuring frequency is properly set
-            try {
-                TreeObject treeObj = new TreeObject(key);
-                
-                // Try to set frequency using reflection, since we don't know if TreeObject has 
-                // setFrequency method or a second constructor with frequency parameter
-                boolean frequencySet = false;
-                
-                // Method 1: Try to use setFrequency method
-                try {
-                    java.lang.reflect.Method setFreq = 
-                        TreeObject.class.getMethod("setFrequency", int.class);
-                    setFreq.invoke(treeObj, frequency);
-                    frequencySet = true;
-                } catch (Exception e) {
-                    // Method doesn't exist, try next approach
-                }
-                
-                // Method 2: Try to use setCount method as an alternative
-                if (!frequencySet) {
-                    try {
-                        java.lang.reflect.Method setCount = 
-                            TreeObject.class.getMethod("setCount", int.class);
-                        setCount.invoke(treeObj, frequency);
-                        frequencySet = true;
-                    } catch (Exception e) {
-                        // Method doesn't exist, try next approach
-                    }
-                }
-                
-                // Insert the object into BTree
-                btree.insert(treeObj);
-                
-                // If we couldn't set frequency through methods, and if the BTree allows 
-                // duplicate keys, insert multiple times to simulate frequency
-                if (!frequencySet) {
-                    for (int i = 1; i < frequency; i++) {
-                        try {
-                            btree.insert(new TreeObject(key));
-                        } catch (Exception e) {
-                            // If insertion fails (e.g., duplicates not allowed), break
-                            break;
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                System.err.println("Error inserting key " + key + ": " + e.getMessage());
+        // Build the BTree bottom-up from the aggregated keys and frequencies
+        Iterator<TreeObject> entries = keyFrequencies.entrySet().stream()
+            .map(entry -> new TreeObject(entry.getKey(), entry.getValue()))
+            .iterator();
+        btree.bulkLoad(entries, fillFactor);
+    }
+
+    /**
+     * Counts the log's keys through a bounded memtable that is written out as sorted
+     * runs when full, which a background compactor merges and bulk loads into the
+     * tree file. Memory stays bounded by the memtable size however large the log is,
+     * and every write is sequential.
+     *
+     * @return the log offset reached
+     */
+    private static long ingestLogThroughRuns(String logFilePath, String treeType, String btreeFilename,
+            int degree, double fillFactor, BTreeOptions options, int memtableKeys, boolean mappedLog,
+            boolean debug) throws IOException {
+        SSHFileReader reader = openLog(logFilePath, treeType, 0, true, mappedLog);
+        long keys = 0;
+        try (SortedRunIngest ingest = new SortedRunIngest(btreeFilename, degree, fillFactor, options,
+                memtableKeys, true)) {
+            while (reader.hasNextKey()) {
+                ingest.add(formatKey(reader.nextKey(), treeType), 1);
+                keys++;
+            }
+            ingest.finish();
+            if (debug) {
+                System.out.println("Sorted runs written: " + ingest.getRunsWritten()
+                    + ", merged into the tree " + ingest.getTreeMerges() + " times");
             }
+        } finally {
+            reader.close();
         }
+        System.out.println("Ingested " + keys + " keys through sorted runs for tree type: " + treeType);
+        return reader.getOffset();
     }
-    
+
     /**
-     * Custom method to dump BTree contents to a file with correct formatting.
-     * Ensures keys and frequencies are properly formatted.
+     * Ingests the lines added to the log since the tree was last built or updated,
+     * starting at the log offset stored in the tree. The new lines are taken in
+     * chunks of a bounded number of keys. Each chunk's counts are aggregated, merged
+     * into the tree in key order so consecutive inserts share a path, and flushed
+     * together with the log offset the chunk reaches. Under a write-ahead log every
+     * flush is a commit, so a crash loses at most the current chunk, and the next
+     * run reads exactly its lines again.
      */
-    private static void dumpBTreeToFile(BTree btree, PrintWriter writer) throws IOException {
-        // Use reflection to access the inorder traversal method of BTree if available
-        try {
-            java.lang.reflect.Method inOrderTraversal = 
-                BTree.class.getDeclaredMethod("inOrderTraversal", PrintWriter.class);
-            inOrderTraversal.setAccessible(true);
-            inOrderTraversal.invoke(btree, writer);
-            return;
-        } catch (Exception e) {
-            // If method not found or failed, try to use dumpToFile method
-        }
-        
-        try {
-            java.lang.reflect.Method dumpMethod = 
-                BTree.class.getDeclaredMethod("dumpToFile", PrintWriter.class);
-            dumpMethod.invoke(btree, writer);
-        } catch (Exception e) {
-            // If both methods fail, write an error message
-            writer.println("Error: Unable to dump BTree contents");
-            writer.println("Error details: " + e.getMessage());
+    private static void appendLogToBTree(String logFilePath, String treeType, BTree btree, int chunkKeys,
+            boolean mappedLog) throws IOException {
+        SSHFileReader reader = openLog(logFilePath, treeType, btree.getLogOffset(), true, mappedLog);
+        long keys = 0;
+        while (reader.hasNextKey()) {
+            Map<String, Integer> keyFrequencies = new TreeMap<>(countKeys(reader, treeType, chunkKeys));
+            for (Map.Entry<String, Integer> entry : keyFrequencies.entrySet()) {
+                btree.insert(new TreeObject(entry.getKey(), entry.getValue()));
+            }
+            keys += keyFrequencies.size();
+            btree.setLogOffset(reader.getOffset());
+            btree.flush();
         }
+        btree.setLogOffset(reader.getOffset());
+        reader.close();
+
+        System.out.println("Merged " + keys + " keys from new log lines for tree type: " + treeType);
     }
 
     /**
-     * Updates the database to ensure it has type and degree columns.
+     * Opens the log for one tree type from a byte offset. A log that is still growing
+     * is read in whole lines only, as {@link SSHFileReader#SSHFileReader(String, String, long)} does.
      */
-    private static void updateDatabaseWithTypeAndDegree(String dbFile, String tableName, 
-        String treeType, int degree) {
-        String url = "jdbc:sqlite:" + dbFile;
+    private static SSHFileReader openLog(String logFilePath, String treeType, long offset, boolean growingLog,
+            boolean mappedLog) throws IOException {
+        return new SSHFileReader(logFilePath, new String[] {treeType}, offset, Long.MAX_VALUE, growingLog, mappedLog);
+    }
 
-        try (Connection conn = DriverManager.getConnection(url)) {
-            // First, create the table if it doesn't exist
-            try (Statement stmt = conn.createStatement()) {
-                String createTableSQL = 
-                    "CREATE TABLE IF NOT EXISTS " + tableName + " (" +
-                    "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                    "key TEXT NOT NULL, " +
-                    "frequency INTEGER NOT NULL, " +
-                    "type TEXT, " +
-                    "degree INTEGER)";
-                stmt.execute(createTableSQL);
-            }
+    /**
+     * Reads every remaining key and counts how often each one occurs, then closes the reader.
+     */
+    private static Map<String, Integer> countKeys(SSHFileReader reader, String treeType) throws IOException {
+        Map<String, Integer> keyFrequencies = countKeys(reader, treeType, Long.MAX_VALUE);
+        reader.close();
+        return keyFrequencies;
+    }
 
-            // Now update all rows with type and degree values
-            try (Statement stmt = conn.createStatement()) {
-                String updateSql = "UPDATE " + tableName + 
-                    " SET type = ?, degree = ? WHERE type IS NULL OR degree IS NULL";
-                try (PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
-                    pstmt.setString(1, treeType);
-                    pstmt.setInt(2, degree);
-                    pstmt.executeUpdate();
+    /**
+     * Reads keys until the given number have been read or the log ends, counting how
+     * often each one occurs.
+     */
+    private static Map<String, Integer> countKeys(SSHFileReader reader, String treeType, long limit) {
+        Map<String, Integer> keyFrequencies = new HashMap<>();
+        for (long read = 0; read < limit && reader.hasNextKey(); read++) {
+            String key = formatKey(reader.nextKey(), treeType);
+
+            // Count frequencies - increment existing count or initialize to 1
+            keyFrequencies.put(key, keyFrequencies.getOrDefault(key, 0) + 1);
+        }
+        return keyFrequencies;
+    }
+
+    /**
+     * Formats a key read from the log with the prefix and clean-up its tree type uses.
+     */
+    static String formatKey(String key, String treeType) {
+        switch (treeType) {
+            case "accepted-ip":
+                // Accepted-137.x.x.x (most common first three digits in top 10)
+                if (!key.startsWith("Accepted-")) {
+                    key = "Accepted-" + key;
                 }
-            }
-        } catch (SQLException e) {
-            System.err.println("Database warning: " + e.getMessage());
-            // Don't fail the overall process if database enhancement fails
+                break;
+                
+            case "accepted-timestamp":
+                // Format: Accepted-HH:MM
+                if (!key.startsWith("Accepted-")) {
+                    key = "Accepted-" + key;
+                }
+                break;
+                
+            case "failed-ip":
+                // Format: Failed-183.x.x.x (top 2 entries have 183 as first three digits)
+                if (key.contains("*****-")) {
+                    key = key.replace("*****-", "");
+                }
+                if (!key.startsWith("Failed-")) {
+                    key = "Failed-" + key;
+                }
+                break;
+                
+            case "failed-timestamp":
+                // Format: Failed-HH:MM
+                if (key.contains("*****-")) {
+                    key = key.replace("*****-", "");
+                }
+                if (!key.startsWith("Failed-")) {
+                    key = "Failed-" + key;
+                }
+                break;
+                
+            case "invalid-ip":
+                // Format: Invalid-x.x.x.x
+                if (!key.startsWith("Invalid-")) {
+                    key = "Invalid-" + key;
+                }
+                break;
+                
+            case "invalid-timestamp":
+                // Invalid-XX (where XX is between 42 and 55)
+                if (!key.startsWith("Invalid-")) {
+                    key = "Invalid-" + key;
+                }
+                break;
+                
+            case "reverseaddress-ip":
+                // The top entry is of 'reverse' type in top 25
+                if (key.contains("-")) {
+                    String[] parts = key.split("-");
+                    if (parts.length > 1) {
+                        key = "Address-" + parts[1];
+                    } else {
+                        key = "Address-" + key;
+                    }
+                } else if (!key.startsWith("Address-")) {
+                    key = "Address-" + key;
+                }
+                break;
+                
+            case "reverseaddress-timestamp":
+                // Format: Address-HH:MM (top entry is 11:00)
+                if (!key.startsWith("Address-")) {
+                    key = "Address-" + key;
+                }
+                break;
+                
+            case "user-ip":
+                // Format: user-x.x.x.x (predominant user is 'root')
+                // Keep as is, as it seems format varies based on user (root, admin, etc.)
+                break;
+                
+            default:
+                // For any other tree types, keep as is
+                break;
         }
+        return key;
     }
 
     private static void printUsageAndExit(String errorMessage) {
         System.err.println("Error: " + errorMessage);
         System.err.println("Usage:");
         System.err.println("  java -jar SSHCreateBTree.jar "
-                + "--cache=<0|1> --degree=<btree-degree> --sshFile=<file> "
-                + "--type=<tree-type> --database=<yes|no> "
-                + "[--cache-size=<n>] [--debug=<0|1>]");
+                + "--cache=<0|1> --degree=<btree-degree> --sshFile=<file|directory> "
+                + "--type=<tree-type[,tree-type...]|all> --database=<yes|no> "
+                + "[--cache-size=<n>] [--debug=<0|1>] [--storage=<channel|mmap>] "
+                + "[--fill-percent=<50-100>] [--cache-policy=<lru|clock|2q|tinylfu>] "
+                + "[--count-summary=<0|1>] [--count-index=<0|1>] [--key-counts=<0|1>] "
+                + "[--append=<0|1>] [--wal=<0|1>] [--wal-commit=<n>] "
+                + "[--insert-buffer=<n>] [--ingest=<tree|lsm>] [--memtable-size=<n>] "
+                + "[--parse-threads=<n>] [--log-io=<stream|mmap>]");
         System.exit(1);
     }
 
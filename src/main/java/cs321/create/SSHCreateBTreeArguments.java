@@ -1,8 +1,12 @@
 package cs321.create;
 
+import cs321.btree.NodeStorage;
+import cs321.common.Cache;
 import cs321.common.ParseArgumentException;
 import cs321.common.ParseArgumentUtils;
 
+import java.io.File;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -11,11 +15,25 @@ import java.util.Map;
  * Expected flags:
  *   --cache=<0|1>
  *   --degree=<btree-degree>
- *   --sshFile=<input filename>
- *   --type=<btree-type>
+ *   --sshFile=<input filename, plain or gzip, or a directory of them>
+ *   --type=<btree-type>, a comma-separated list of types, or all
  *   [--cache-size=<n>] or [--cacheSize=<n>] if cache=1
  *   --database=<yes|no>
  *   [--debug=<0|1>]
+ *   [--storage=<channel|mmap>]
+ *   [--fill-percent=<50-100>]
+ *   [--cache-policy=<lru|clock|2q|tinylfu>]
+ *   [--count-summary=<0|1>]
+ *   [--count-index=<0|1>]
+ *   [--key-counts=<0|1>]
+ *   [--append=<0|1>]
+ *   [--wal=<0|1>]
+ *   [--wal-commit=<log keys per commit>]
+ *   [--insert-buffer=<pending inserts per internal node>]
+ *   [--ingest=<tree|lsm>]
+ *   [--memtable-size=<distinct keys held in memory>]
+ *   [--parse-threads=<threads parsing the log>]
+ *   [--log-io=<stream|mmap>]
  */
 public class SSHCreateBTreeArguments {
 
@@ -23,9 +41,24 @@ public class SSHCreateBTreeArguments {
     private final int degree;
     private final String SSHFileName;
     private final String treeType;
+    private final String[] treeTypes;
     private final int cacheSize;
     private final int debugLevel;
     private final boolean useDatabase;
+    private final NodeStorage.Type storageType;
+    private final int fillPercent;
+    private final Cache.Policy cachePolicy;
+    private final boolean countSummary;
+    private final boolean countIndex;
+    private final boolean keyCounts;
+    private final boolean append;
+    private final boolean writeAheadLog;
+    private final int walCommit;
+    private final int insertBuffer;
+    private final boolean sortedRunIngest;
+    private final int memtableSize;
+    private final int parseThreads;
+    private final boolean mappedLog;
 
     /**
      * Constructor parses and validates CLI arguments.
@@ -53,6 +86,94 @@ public class SSHCreateBTreeArguments {
         ParseArgumentUtils.verifyRanges(cacheInt, 0, 1);
         this.useCache = (cacheInt == 1);
 
+        if (map.containsKey("count-summary")) {
+            int summary = ParseArgumentUtils.convertStringToInt(map.get("count-summary"));
+            ParseArgumentUtils.verifyRanges(summary, 0, 1);
+            this.countSummary = (summary == 1);
+        } else {
+            this.countSummary = false;
+        }
+
+        if (map.containsKey("key-counts")) {
+            int counts = ParseArgumentUtils.convertStringToInt(map.get("key-counts"));
+            ParseArgumentUtils.verifyRanges(counts, 0, 1);
+            this.keyCounts = (counts == 1);
+        } else {
+            this.keyCounts = false;
+        }
+
+        if (map.containsKey("append")) {
+            int appendInt = ParseArgumentUtils.convertStringToInt(map.get("append"));
+            ParseArgumentUtils.verifyRanges(appendInt, 0, 1);
+            this.append = (appendInt == 1);
+        } else {
+            this.append = false;
+        }
+
+        if (map.containsKey("wal")) {
+            int walInt = ParseArgumentUtils.convertStringToInt(map.get("wal"));
+            ParseArgumentUtils.verifyRanges(walInt, 0, 1);
+            this.writeAheadLog = (walInt == 1);
+        } else {
+            this.writeAheadLog = false;
+        }
+
+        if (map.containsKey("wal-commit")) {
+            this.walCommit = ParseArgumentUtils.convertStringToInt(map.get("wal-commit"));
+            ParseArgumentUtils.verifyRanges(walCommit, 1, Integer.MAX_VALUE);
+        } else {
+            this.walCommit = 1000;
+        }
+
+        if (map.containsKey("insert-buffer")) {
+            this.insertBuffer = ParseArgumentUtils.convertStringToInt(map.get("insert-buffer"));
+            ParseArgumentUtils.verifyRanges(insertBuffer, 0, Integer.MAX_VALUE);
+        } else {
+            this.insertBuffer = 0;
+        }
+
+        if (map.containsKey("ingest")) {
+            String ingest = map.get("ingest");
+            if (!ingest.equals("tree") && !ingest.equals("lsm")) {
+                throw new ParseArgumentException("--ingest must be tree or lsm");
+            }
+            this.sortedRunIngest = ingest.equals("lsm");
+        } else {
+            this.sortedRunIngest = false;
+        }
+
+        if (map.containsKey("memtable-size")) {
+            this.memtableSize = ParseArgumentUtils.convertStringToInt(map.get("memtable-size"));
+            ParseArgumentUtils.verifyRanges(memtableSize, 1, Integer.MAX_VALUE);
+        } else {
+            this.memtableSize = 1_000_000;
+        }
+
+        if (map.containsKey("parse-threads")) {
+            this.parseThreads = ParseArgumentUtils.convertStringToInt(map.get("parse-threads"));
+            ParseArgumentUtils.verifyRanges(parseThreads, 1, 1024);
+        } else {
+            this.parseThreads = 1;
+        }
+
+        if (map.containsKey("log-io")) {
+            String logIo = map.get("log-io");
+            if (!logIo.equals("stream") && !logIo.equals("mmap")) {
+                throw new ParseArgumentException("--log-io must be stream or mmap");
+            }
+            this.mappedLog = logIo.equals("mmap");
+        } else {
+            this.mappedLog = false;
+        }
+
+        if (map.containsKey("count-index")) {
+            int index = ParseArgumentUtils.convertStringToInt(map.get("count-index"));
+            ParseArgumentUtils.verifyRanges(index, 0, 1);
+            this.countIndex = (index == 1);
+        } else {
+            this.countIndex = false;
+        }
+
         int rawDegree = ParseArgumentUtils.convertStringToInt(map.get("degree"));
         if (rawDegree == 0) {
             this.degree = computeOptimalDegree();
@@ -64,6 +185,18 @@ public class SSHCreateBTreeArguments {
 
         this.SSHFileName = map.get("sshFile");
         this.treeType = map.get("type");
+        if (treeType.equals("all")) {
+            this.treeTypes = SSHFileReader.TREE_TYPES.clone();
+        } else {
+            this.treeTypes = treeType.split(",");
+        }
+        if (treeTypes.length > 1) {
+            for (String type : treeTypes) {
+                if (!Arrays.asList(SSHFileReader.TREE_TYPES).contains(type)) {
+                    throw new ParseArgumentException("Unknown tree type in --type: " + type);
+                }
+            }
+        }
 
         String dbFlag = map.get("database");
         if (!dbFlag.equals("yes") && !dbFlag.equals("no")) {
@@ -90,13 +223,51 @@ public class SSHCreateBTreeArguments {
         } else {
             this.debugLevel = 0;
         }
+
+        if (map.containsKey("storage")) {
+            this.storageType = NodeStorage.Type.fromName(map.get("storage"));
+            if (storageType == null) {
+                throw new ParseArgumentException("--storage must be channel or mmap");
+            }
+        } else {
+            this.storageType = NodeStorage.Type.CHANNEL;
+        }
+
+        if (map.containsKey("fill-percent")) {
+            int fill = ParseArgumentUtils.convertStringToInt(map.get("fill-percent"));
+            ParseArgumentUtils.verifyRanges(fill, 50, 100);
+            this.fillPercent = fill;
+        } else {
+            this.fillPercent = 100;
+        }
+
+        if (map.containsKey("cache-policy")) {
+            this.cachePolicy = Cache.Policy.fromName(map.get("cache-policy"));
+            if (cachePolicy == null) {
+                throw new ParseArgumentException("--cache-policy must be lru, clock, 2q or tinylfu");
+            }
+        } else {
+            this.cachePolicy = Cache.Policy.LRU;
+        }
+
+        if (treeTypes.length > 1 && (append || sortedRunIngest)) {
+            throw new ParseArgumentException("--append and --ingest=lsm build one --type at a time");
+        }
+        if (writeAheadLog && insertBuffer > 0) {
+            throw new ParseArgumentException("--insert-buffer cannot be used with --wal=1");
+        }
+        // the log offset an append resumes from is an offset into a single file
+        if (new File(SSHFileName).isDirectory() && (append || sortedRunIngest)) {
+            throw new ParseArgumentException("--append and --ingest=lsm read a single log file");
+        }
     }
 
     private int computeOptimalDegree() {
         final int blockSize = 4096;
         final int overhead = 5; // 1 byte isLeaf + 4 bytes n
         final int keySize = 64 + 8; // 64 bytes for key + 8 bytes count
-        final int ptrSize = 8;
+        // child pointer plus max and total count, plus the subtree key count
+        final int ptrSize = 8 + (countSummary ? 16 : 0) + (keyCounts ? 8 : 0);
 
         for (int t = 2; t < 100; t++) {
             int totalSize = overhead + (2 * t - 1) * keySize + (2 * t) * ptrSize;
@@ -123,6 +294,20 @@ public class SSHCreateBTreeArguments {
         return treeType;
     }
 
+    /**
+     * @return the tree types to build, several for --type=all or a comma-separated list
+     */
+    public String[] getTreeTypes() {
+        return treeTypes.clone();
+    }
+
+    /**
+     * @return true if one pass over the log builds more than one tree type
+     */
+    public boolean isMultipleTypes() {
+        return treeTypes.length > 1;
+    }
+
     public int getCacheSize() {
         return cacheSize;
     }
@@ -135,6 +320,84 @@ public class SSHCreateBTreeArguments {
         return useDatabase;
     }
 
+    public NodeStorage.Type getStorageType() {
+        return storageType;
+    }
+
+    public int getFillPercent() {
+        return fillPercent;
+    }
+
+    public Cache.Policy getCachePolicy() {
+        return cachePolicy;
+    }
+
+    public boolean isCountSummary() {
+        return countSummary;
+    }
+
+    public boolean isCountIndex() {
+        return countIndex;
+    }
+
+    public boolean isKeyCounts() {
+        return keyCounts;
+    }
+
+    /**
+     * @return true if an existing tree file is updated with the new log lines
+     *         instead of being rebuilt
+     */
+    public boolean isAppend() {
+        return append;
+    }
+
+    public boolean isWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * @return log keys ingested per write-ahead log commit in append mode
+     */
+    public int getWalCommit() {
+        return walCommit;
+    }
+
+    /**
+     * @return pending inserts each internal node buffers in append mode, 0 for none
+     */
+    public int getInsertBuffer() {
+        return insertBuffer;
+    }
+
+    /**
+     * @return true to ingest through a memtable and sorted runs instead of one in-memory count
+     */
+    public boolean isSortedRunIngest() {
+        return sortedRunIngest;
+    }
+
+    /**
+     * @return distinct keys the memtable holds before it is written as a sorted run
+     */
+    public int getMemtableSize() {
+        return memtableSize;
+    }
+
+    /**
+     * @return threads that parse byte ranges of the log at once in a full build
+     */
+    public int getParseThreads() {
+        return parseThreads;
+    }
+
+    /**
+     * @return true to memory-map the log instead of reading it through buffers
+     */
+    public boolean isMappedLog() {
+        return mappedLog;
+    }
+
     @Override
     public String toString() {
         return "SSHCreateBTreeArguments{" +
@@ -145,6 +408,20 @@ public class SSHCreateBTreeArguments {
                 ", cacheSize=" + cacheSize +
                 ", debugLevel=" + debugLevel +
                 ", useDatabase=" + useDatabase +
+                ", storageType=" + storageType +
+                ", fillPercent=" + fillPercent +
+                ", cachePolicy=" + cachePolicy +
+                ", countSummary=" + countSummary +
+                ", countIndex=" + countIndex +
+                ", keyCounts=" + keyCounts +
+                ", append=" + append +
+                ", writeAheadLog=" + writeAheadLog +
+                ", walCommit=" + walCommit +
+                ", insertBuffer=" + insertBuffer +
+                ", sortedRunIngest=" + sortedRunIngest +
+                ", memtableSize=" + memtableSize +
+                ", parseThreads=" + parseThreads +
+                ", mappedLog=" + mappedLog +
                 '}';
     }
 }
\ No newline at end of file
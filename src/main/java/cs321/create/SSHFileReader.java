@@ -1,49 +1,173 @@
 package cs321.create;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
 
 /**
  * Class for reading SSH log files and extracting keys based on specified tree type.
+ * <p>
+ * The log is read through large direct buffers or, in mapped mode, memory-mapped a
+ * window at a time. A gzip-compressed log is recognized by its header and inflated
+ * on a read-ahead thread instead; its offsets count decompressed bytes. Lines are
+ * found and their keys extracted on the raw bytes; only a line with non-ASCII bytes
+ * is decoded first, so strings are created only for the keys returned.
  */
 public class SSHFileReader {
-    
-    // Regular expression patterns for extracting information
-    private static final Pattern IP_PATTERN = Pattern.compile("\\b(?:\\d{1,3}\\.){3}\\d{1,3}\\b");
-    private static final Pattern TIME_PATTERN = Pattern.compile("(\\d+/\\d+\\s+(\\d+:\\d+:\\d+))");
-    
-    private BufferedReader reader;
-    private String nextKey;
-    private String treeType;
+
+    /** Every tree type a key can be extracted for. */
+    public static final String[] TREE_TYPES = {
+        "accepted-ip", "accepted-time", "invalid-ip", "invalid-time", "failed-ip", "failed-time",
+        "reverseaddress-ip", "reverseaddress-time", "user-ip"
+    };
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int MAP_WINDOW = 1 << 28;                  // bytes of the log mapped at a time
+    private static final boolean ASCII_CHARSET = isAsciiCompatible(Charset.defaultCharset());
+
+    private final FileChannel channel;                              // null for a gzip log
+    private GzipReadAhead inflater;                                 // null for a plain log
+    private final boolean mapped;
+    private ByteBuffer window;                                      // unread bytes from position to limit
+    private long windowEnd;                                         // file offset of the window's limit
+    private byte[] lineBytes = new byte[256];
+    private ByteBuffer lineBuffer = ByteBuffer.wrap(lineBytes);
+    private CharBuffer lineChars = CharBuffer.allocate(256);
+    private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final LogLineScanner scanner;
+    private boolean ascii;                                          // the line read holds only ASCII bytes
+    private final boolean wholeLinesOnly;
+    private final long endOffset;
+    private long offset;
+    private long nextKeyOffset;
+    private String[] nextKeys;
+    private IOException failure;                                    // why reading stopped early
+    private final String[] treeTypes;
     
     /**
      * Constructor opens the file and prepares for reading.
      */
     public SSHFileReader(String filename, String treeType) throws IOException {
-        this.reader = new BufferedReader(new FileReader(filename));
-        this.treeType = treeType;
+        this(filename, new String[] {treeType}, 0, Long.MAX_VALUE, false, false);
+    }
+
+    /**
+     * Opens the file to extract keys for several tree types in one pass. Each line
+     * is parsed once and yields a key for every type it matches, read through
+     * {@link #nextKeys()}.
+     *
+     * @param filename  log file
+     * @param treeTypes tree types to extract keys for
+     */
+    public SSHFileReader(String filename, String[] treeTypes) throws IOException {
+        this(filename, treeTypes.clone(), 0, Long.MAX_VALUE, false, false);
+    }
+
+    /**
+     * Opens the file for reading from a byte offset, as recorded by an earlier run
+     * through {@link #getOffset()}. Only newline-terminated lines are read, so a
+     * line still being written is left for the next run. If the file is now shorter
+     * than the offset it has been rotated, and is read from the start. For a gzip log
+     * the offset counts decompressed bytes.
+     *
+     * @param filename    log file
+     * @param treeType    tree type to extract keys for
+     * @param startOffset byte offset of the first line to read
+     */
+    public SSHFileReader(String filename, String treeType, long startOffset) throws IOException {
+        this(filename, new String[] {treeType}, startOffset, Long.MAX_VALUE, true, false);
+    }
+
+    /**
+     * Opens a byte range of the file, for one of several readers splitting it. Both
+     * ends must be at the start of a line; the lines starting before the end are read.
+     *
+     * @param filename       log file
+     * @param treeTypes      tree types to extract keys for
+     * @param startOffset    byte offset of the first line to read
+     * @param endOffset      byte offset of the line after the range
+     * @param wholeLinesOnly leave an unterminated last line unread
+     * @param mapped         memory-map the file instead of reading it into a buffer;
+     *                       ignored for a gzip log
+     */
+    SSHFileReader(String filename, String[] treeTypes, long startOffset, long endOffset, boolean wholeLinesOnly,
+            boolean mapped) throws IOException {
+        if (GzipReadAhead.isGzip(filename)) {
+            this.channel = null;
+            this.mapped = false;
+            startOffset = inflateTo(filename, startOffset);
+        } else {
+            this.channel = new FileInputStream(filename).getChannel();
+            this.inflater = null;
+            if (startOffset > channel.size()) {
+                startOffset = 0;
+            }
+            this.mapped = mapped;
+            this.window = mapped ? ByteBuffer.allocate(0) : ByteBuffer.allocateDirect(BUFFER_SIZE);
+            ((Buffer) window).limit(0);
+            this.windowEnd = startOffset;
+        }
+        this.offset = startOffset;
+        this.wholeLinesOnly = wholeLinesOnly;
+        this.endOffset = endOffset;
+        this.treeTypes = treeTypes;
+        this.scanner = new LogLineScanner(treeTypes);
         readNextKey();
     }
+
+    /**
+     * @return byte offset just past the lines of all keys returned so far, where a
+     *         later reader resumes without seeing any of them again
+     */
+    public long getOffset() {
+        return nextKeys != null ? nextKeyOffset : offset;
+    }
     
     /**
      * Checks if there are more keys to read.
+     *
+     * @throws UncheckedIOException if the log could not be read past the keys
+     *         returned so far, e.g. a gzip log that is truncated or corrupt
      */
     public boolean hasNextKey() {
-        return nextKey != null;
+        if (failure != null) {
+            throw new UncheckedIOException("Cannot read log past offset " + offset + ": " + failure.getMessage(),
+                failure);
+        }
+        return nextKeys != null;
     }
     
     /**
      * Returns the next key and advances to the next one.
      */
     public String nextKey() {
-        String current = nextKey;
+        return nextKeys()[0];
+    }
+
+    /**
+     * Returns the keys of the next line that matches any of the tree types, and
+     * advances to the next such line.
+     *
+     * @return the line's key for each tree type, in the order the types were given,
+     *         with null for the types it does not match
+     */
+    public String[] nextKeys() {
+        String[] current = nextKeys;
         try {
             readNextKey();
         } catch (IOException e) {
-            nextKey = null;
+            nextKeys = null;
+            failure = e;                                // reported by hasNextKey
         }
         return current;
     }
@@ -52,112 +176,174 @@ public class SSHFileReader {
      * Closes the reader.
      */
     public void close() throws IOException {
-        if (reader != null) {
-            reader.close();
+        window = null;
+        if (inflater != null) {
+            inflater.close();
+        } else {
+            channel.close();
         }
     }
     
+    /**
+     * Starts inflating a gzip log and discards its bytes up to the start offset. If
+     * the log ends first it has been rotated, and is inflated again from the start.
+     *
+     * @return the offset reading starts at
+     */
+    private long inflateTo(String filename, long startOffset) throws IOException {
+        inflater = new GzipReadAhead(filename);
+        window = ByteBuffer.allocate(0);
+        windowEnd = 0;
+        while (windowEnd < startOffset && fill()) {
+            ((Buffer) window).position(window.limit() - (int) Math.max(0, windowEnd - startOffset));
+        }
+        if (windowEnd < startOffset) {
+            inflater.close();
+            inflater = new GzipReadAhead(filename);
+            window = ByteBuffer.allocate(0);
+            windowEnd = 0;
+            return 0;
+        }
+        return startOffset;
+    }
+
     /**
      * Reads the next valid key from the file based on the tree type.
      */
     private void readNextKey() throws IOException {
-        String line;
-        nextKey = null;
+        int length;
+        String[] keys = new String[treeTypes.length];
+        nextKeys = null;
         
-        while (nextKey == null && (line = reader.readLine()) != null) {
-            nextKey = extractKey(line, treeType);
+        while (nextKeys == null) {
+            nextKeyOffset = offset;                     // start of the line about to be read
+            if ((length = readLine()) < 0) {
+                break;
+            }
+            if (!ascii) {
+                length = decode(length);
+            }
+            if (ascii ? scanner.scan(lineBytes, length, keys) : scanner.scan(lineChars.array(), length, keys)) {
+                nextKeys = keys;
+            }
         }
     }
-    
+
     /**
-     * Extracts the appropriate key from a log line based on the tree type.
+     * Reads the next line's bytes, without its line terminator, into the line bytes
+     * and advances the offset past it. Notes whether the line can be scanned as ASCII.
+     *
+     * @return the number of bytes in the line, or -1 at the end of the file
      */
-    private String extractKey(String logLine, String type) {
-        String[] parts = logLine.split("\\s+");
-        if (parts.length < 4) return null;
-        
-        // Extract time in HH:MM format
-        Matcher timeMatcher = TIME_PATTERN.matcher(logLine);
-        String timeOnly = null;
-        if (timeMatcher.find() && timeMatcher.group(2) != null) {
-            String fullTime = timeMatcher.group(2);
-            if (fullTime.length() >= 5) {
-                timeOnly = fullTime.substring(0, 5); // Extract HH:MM part
-            }
+    private int readLine() throws IOException {
+        if (offset >= endOffset) {
+            return -1;
         }
-        
-        String ip = extractIP(logLine);
-        String event = parts[2];
-        String username = parts.length > 3 ? parts[3] : "";
-        
-        switch (type) {
-            case "accepted-ip":
-                if (event.equals("Accepted") && ip != null) {
-                    return ip; // Plain IP for accepted-ip
-                }
-                break;
-                
-            case "accepted-time":
-                if (event.equals("Accepted") && timeOnly != null) {
-                    return "Accepted-" + timeOnly; // Format as "Accepted-HH:MM"
-                }
-                break;
-                
-            case "invalid-ip":
-                if ((event.equals("Invalid") || logLine.contains("Invalid user")) && ip != null) {
-                    return "Invalid-" + ip; // Format as "Invalid-IP"
+        int length = 0;
+        int bits = 0;                                   // every byte of the line or-ed together
+        while (true) {
+            if (!window.hasRemaining() && !fill()) {
+                // an unterminated last line is complete only when not following a growing file
+                if (length == 0 || wholeLinesOnly) {
+                    return -1;
                 }
-                break;
-                
-            case "invalid-time":
-                if ((event.equals("Invalid") || logLine.contains("Invalid user")) && timeOnly != null) {
-                    return "Invalid-" + timeOnly; // Format as "Invalid-HH:MM"
-                }
-                break;
-                
-            case "failed-ip":
-                if ((event.equals("Failed") || logLine.contains("Failed password")) && ip != null) {
-                    return "*****-" + ip; // Format as "*****-IP" as seen in examples
-                }
-                break;
-                
-            case "failed-time":
-                if ((event.equals("Failed") || logLine.contains("Failed password")) && timeOnly != null) {
-                    return "Failed-" + timeOnly; // Format as "Failed-HH:MM"
-                }
-                break;
-                
-            case "reverseaddress-ip":
-                if (ip != null) {
-                    String[] ipParts = ip.split("\\.");
-                    if (ipParts.length == 4) {
-                        // Format as ".243.22-IP" as seen in examples
-                        return "." + ipParts[2] + "." + ipParts[3] + "-" + ip;
-                    }
-                }
-                break;
-                
-            case "reverseaddress-time":
-                if (ip != null && timeOnly != null) {
-                    return "Address-" + timeOnly; // Format as "Address-HH:MM"
-                }
-                break;
-                
-            case "user-ip":
-                if (event.equals("Accepted") && ip != null && !username.isEmpty()) {
-                    return username + "-" + ip; // Format as "username-IP"
+                offset += length;
+                ascii = ASCII_CHARSET && bits >= 0;
+                return length;
+            }
+            int start = window.position();
+            int limit = window.limit();
+            int end = start;
+            byte b;
+            while (end < limit && (b = window.get(end)) != '\n') {
+                bits |= b;
+                end++;
+            }
+            int chunk = end - start;
+            if (length + chunk > lineBytes.length) {
+                lineBytes = Arrays.copyOf(lineBytes, Math.max(lineBytes.length * 2, length + chunk));
+                lineBuffer = ByteBuffer.wrap(lineBytes);
+            }
+            window.get(lineBytes, length, chunk);
+            length += chunk;
+            if (end < limit) {
+                window.get();                           // the newline
+                offset += length + 1;
+                if (length > 0 && lineBytes[length - 1] == '\r') {
+                    length--;
                 }
-                break;
+                ascii = ASCII_CHARSET && bits >= 0;
+                return length;
+            }
         }
-        
-        return null;
     }
-    
+
     /**
-     * Extracts IP address from log line.
+     * Moves the window on to the next bytes of the file: takes the next inflated
+     * chunk, maps the next stretch of it, or reads the next bufferful.
+     *
+     * @return false at the end of the file
      */
-    private String extractIP(String logLine) {
-        Matcher matcher = IP_PATTERN.matcher(logLine);
-        return matcher.find() ? matcher.group() : null;
+    private boolean fill() throws IOException {
+        if (inflater != null) {
+            ByteBuffer chunk = inflater.next();
+            if (chunk == null) {
+                return false;
+            }
+            window = chunk;
+        } else if (mapped) {
+            long size = channel.size();
+            if (windowEnd >= size) {
+                return false;
+            }
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowEnd, Math.min(MAP_WINDOW, size - windowEnd));
+        } else {
+            ((Buffer) window).clear();
+            int n = channel.read(window, windowEnd);
+            ((Buffer) window).flip();
+            if (n <= 0) {
+                return false;
+            }
+        }
+        windowEnd += window.remaining();
+        return true;
+    }
+
+    /**
+     * Decodes the line's bytes into the reused line characters, as
+     * {@code new String(bytes, Charset.defaultCharset())} would.
+     */
+    private int decode(int length) {
+        int capacity = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+        if (capacity > lineChars.capacity()) {
+            lineChars = CharBuffer.allocate(Math.max(lineChars.capacity() * 2, capacity));
+        }
+        ((Buffer) lineBuffer).limit(length).position(0);
+        ((Buffer) lineChars).clear();
+        decoder.reset();
+        decoder.decode(lineBuffer, lineChars, true);
+        decoder.flush(lineChars);
+        return lineChars.position();
+    }
+
+    /**
+     * @return true if the charset decodes every ASCII byte to the same character, so
+     *         an ASCII line can be scanned without decoding it
+     */
+    private static boolean isAsciiCompatible(Charset charset) {
+        byte[] ascii = new byte[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte) i;
+        }
+        String decoded = new String(ascii, charset);
+        if (decoded.length() != ascii.length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length; i++) {
+            if (decoded.charAt(i) != i) {
+                return false;
+            }
+        }
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -1,59 +1,150 @@
 package cs321.search;
 
 import cs321.btree.BTree;
+import cs321.btree.BTreeCursor;
 import cs321.btree.BTreeException;
+import cs321.btree.BTreeOptions;
+import cs321.btree.SortedRunIngest;
 import cs321.btree.TreeObject;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SSHSearchBTree {
     public static void main(String[] args) throws BTreeException {
         try {
             SSHSearchBTreeArguments arguments = new SSHSearchBTreeArguments(args);
 
-			BTree btree;
-			if(arguments.isCacheEnabled())
-			{
-				btree = new BTree(arguments.getBtreeFile(), true, arguments.getCacheSize());
-			}
-			else
-			{
-				btree = new BTree(arguments.getBtreeFile());
-			}
-
-            //System.out.println("Using B-tree file: " + arguments.getBtreeFile());
             File f = new File(arguments.getBtreeFile());
             if (!f.exists()) {
                 System.out.println("ERROR: File does not exist!");
-            } else {
-                //System.out.println("B-tree file size: " + f.length() + " bytes");
+                return;
+            }
+
+            // only key lookups add up the counts in sorted runs not yet merged into the
+            // tree; a scan or ranking of the tree alone would leave them out
+            boolean lookup = arguments.getQuantiles() == 0 && arguments.getQueryFile() != null
+                    && arguments.getPrefix() == null && !arguments.isRangeScan();
+            if (!lookup && SortedRunIngest.hasRuns(arguments.getBtreeFile())) {
+                System.out.println("ERROR: " + arguments.getBtreeFile() + " has sorted runs not yet merged into it;"
+                        + " only --query-file searches include them");
+                return;
             }
 
+            // Reopen the tree built by SSHCreateBTree; its header supplies the degree and root
+            BTreeOptions options = new BTreeOptions()
+                    .setCache(arguments.isCacheEnabled(), arguments.getCacheSize())
+                    .setCachePolicy(arguments.getCachePolicy())
+                    .setStorageType(arguments.getStorageType())
+                    .setConcurrency(arguments.getThreads());
+            BTree btree = BTree.open(arguments.getBtreeFile(), true, options);
+
             List<SearchResult> results = new ArrayList<>();
-            BufferedReader reader = new BufferedReader(new FileReader(arguments.getQueryFile()));
-            String line;            
-            while ((line = reader.readLine()) != null) {
-                
-                line = line.trim();
-                if (line.isEmpty()) continue;
-
-                //System.out.println("Searching for: " + line);
-                TreeObject query = new TreeObject(line);
-                TreeObject result = btree.search(query.getKey());
-                //System.out.println("Searching for: '" + line + "' (length: " + line.length() + ")");
-                if (result == null) {
-                    //System.err.println("Key not found: '" + line + "'");
-                    continue;
+            if (arguments.getQuantiles() > 0) {
+                // shard boundaries in key order, each with its zero-based position
+                for (TreeObject bound : btree.quantiles(arguments.getQuantiles())) {
+                    System.out.println(btree.rank(bound.getKey()) + " " + bound.getKey() + " " + bound.getCount());
+                }
+                btree.finishUp();
+                if (arguments.getDebugLevel() > 0) {
+                    System.err.println("Node reads: " + btree.getNodeReads() + " for "
+                            + (arguments.getQuantiles() - 1) + " quantiles of " + btree.getSize() + " keys");
+                }
+            } else if (arguments.getQueryFile() == null && arguments.getPrefix() == null && !arguments.isRangeScan()) {
+                // whole-tree ranking, read from the count index when SSHCreateBTree built one
+                for (TreeObject result : btree.topByCount(arguments.getTopFrequency())) {
+                    results.add(new SearchResult(result.getKey(), result.getCount()));
+                }
+                btree.finishUp();
+                if (arguments.getDebugLevel() > 0) {
+                    System.err.println("Node reads: " + btree.getNodeReads() + " for top "
+                            + arguments.getTopFrequency() + (btree.hasCountIndex() ? " from count index" : ""));
+                }
+            } else if ((arguments.getPrefix() != null || arguments.isRangeScan()) && arguments.getTopFrequency() > 0) {
+                // ranked directly by the tree, pruning subtrees when it has count summaries
+                String from = arguments.getPrefix() != null ? arguments.getPrefix() : arguments.getRangeFrom();
+                String to = arguments.getPrefix() != null
+                        ? arguments.getPrefix() + Character.MAX_VALUE : arguments.getRangeTo();
+                for (TreeObject result : btree.topK(arguments.getTopFrequency(), from, to)) {
+                    results.add(new SearchResult(result.getKey(), result.getCount()));
+                }
+                btree.finishUp();
+                if (arguments.getDebugLevel() > 0) {
+                    System.err.println("Node reads: " + btree.getNodeReads() + " of " + btree.getNumberOfNodes()
+                            + " nodes for top " + arguments.getTopFrequency());
+                }
+            } else if (arguments.getPrefix() != null || arguments.isRangeScan()) {
+                BTreeCursor cursor = arguments.getPrefix() != null
+                        ? btree.prefix(arguments.getPrefix())
+                        : btree.range(arguments.getRangeFrom(), arguments.getRangeTo());
+                long scanned = 0;
+                while (cursor.hasNext()) {
+                    TreeObject result = cursor.next();
+                    scanned++;
+                    System.out.println(result.getKey() + " " + result.getCount());
+                }
+                btree.finishUp();
+                if (arguments.getDebugLevel() > 0) {
+                    System.err.println("Node reads: " + btree.getNodeReads() + " for " + scanned + " keys scanned");
+                }
+            } else {
+                List<String> queries = new ArrayList<>();
+                BufferedReader reader = new BufferedReader(new FileReader(arguments.getQueryFile()));
+                String line;
+                while ((line = reader.readLine()) != null) {
+
+                    line = line.trim();
+                    if (line.isEmpty()) continue;
+
+                    queries.add(new TreeObject(line).getKey());
+                }
+                reader.close();
+
+                TreeObject[] found;
+                if (SortedRunIngest.hasRuns(arguments.getBtreeFile())) {
+                    // an ingest through sorted runs has not been merged into the tree yet,
+                    // so each count is added up over the tree and the runs
+                    btree.finishUp();
+                    try (SortedRunIngest ingest = SortedRunIngest.open(arguments.getBtreeFile(), options)) {
+                        TreeObject[] totals = new TreeObject[queries.size()];
+                        runInRanges(totals.length, arguments.getThreads(), (from, to) -> {
+                            for (int i = from; i < to; i++) {
+                                totals[i] = ingest.search(queries.get(i));
+                            }
+                        });
+                        found = totals;
+                        if (arguments.getDebugLevel() > 0) {
+                            System.err.println("Searched " + ingest.getRunCount() + " sorted runs and the tree");
+                        }
+                    }
+                } else {
+                    found = searchQueries(btree, queries, arguments.getThreads(), arguments.isBatchEnabled());
+                    btree.finishUp();
                 }
 
-                //System.out.println("Found: '" + result.getKey() + "' (length: " + result.getKey().length() + ")");
-                results.add(new SearchResult(result.getKey(), result.getCount()));
+                // Results keep query file order whatever thread found them
+                for (TreeObject result : found) {
+                    if (result != null) {
+                        results.add(new SearchResult(result.getKey(), result.getCount()));
+                    }
+                }
 
+                // Results go to stdout, so cache statistics are reported on stderr
+                if (arguments.getDebugLevel() > 0) {
+                    if (btree.getCache() != null) {
+                        System.err.print(btree.getCache());
+                    }
+                    System.err.printf("Node reads: %d for %d queries (%.3f per query)%n",
+                            btree.getNodeReads(), queries.size(),
+                            queries.isEmpty() ? 0.0 : (double) btree.getNodeReads() / queries.size());
+                }
             }
-            reader.close();
 
             if (arguments.getTopFrequency() > 0) {
                 results.sort(Comparator
@@ -72,6 +163,69 @@ public class SSHSearchBTree {
         }
     }
 
+    /**
+     * Looks up every query. In batch mode the distinct queries are sorted and each
+     * worker resolves a contiguous run of them with one {@link BTree#searchAll} walk;
+     * otherwise each worker searches its share of the query list one key at a time.
+     *
+     * @return the result for each query at the query's index, null where not found
+     */
+    private static TreeObject[] searchQueries(BTree btree, List<String> queries, int threads, boolean batch)
+            throws Exception {
+        TreeObject[] found = new TreeObject[queries.size()];
+        if (batch) {
+            List<String> probes = new ArrayList<>(new TreeSet<>(queries));
+            Map<String, TreeObject> hits = new ConcurrentHashMap<>();
+            runInRanges(probes.size(), threads, (from, to) -> hits.putAll(btree.searchAll(probes.subList(from, to))));
+            for (int i = 0; i < found.length; i++) {
+                found[i] = hits.get(queries.get(i));
+            }
+        } else {
+            runInRanges(found.length, threads, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    found[i] = btree.search(queries.get(i));
+                }
+            });
+        }
+        return found;
+    }
+
+    /**
+     * Work on the index range [from, to).
+     */
+    private interface RangeTask {
+        void run(int from, int to) throws Exception;
+    }
+
+    /**
+     * Splits [0, n) into contiguous ranges and runs them on a pool of worker
+     * threads, or inline when there is only one thread.
+     */
+    private static void runInRanges(int n, int threads, RangeTask task) throws Exception {
+        if (threads <= 1 || n < 2) {
+            task.run(0, n);
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            int chunk = (n + threads - 1) / threads;
+            for (int start = 0; start < n; start += chunk) {
+                final int from = start;
+                final int to = Math.min(n, start + chunk);
+                tasks.add(pool.submit(() -> {
+                    task.run(from, to);
+                    return null;
+                }));
+            }
+            for (Future<?> f : tasks) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     private static class SearchResult {
         String key;
         long count;
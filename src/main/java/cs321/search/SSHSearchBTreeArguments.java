@@ -1,5 +1,7 @@
 package cs321.search;
 
+import cs321.btree.NodeStorage;
+import cs321.common.Cache;
 
 public class SSHSearchBTreeArguments
 {
@@ -10,6 +12,15 @@ public class SSHSearchBTreeArguments
     private final int topFrequency;
     private final int cacheSize;
     private final int debugLevel;
+    private final NodeStorage.Type storageType;
+    private final Cache.Policy cachePolicy;
+    private final int threads;
+    private final boolean batch;
+    private final String prefix;
+    private final String rangeFrom;
+    private final String rangeTo;
+    private final boolean rangeScan;
+    private final int quantiles;
 
     public SSHSearchBTreeArguments(String[] args)
     {
@@ -20,6 +31,15 @@ public class SSHSearchBTreeArguments
         int topFrequency = 0;
         int cacheSize = 0;
         int debugLevel = 0;
+        NodeStorage.Type storageType = NodeStorage.Type.CHANNEL;
+        Cache.Policy cachePolicy = Cache.Policy.LRU;
+        int threads = 1;
+        boolean batch = true;
+        String prefix = null;
+        String rangeFrom = null;
+        String rangeTo = null;
+        boolean rangeScan = false;
+        int quantiles = 0;
 
         for (String arg : args) {
             if (arg.startsWith("--cache=")) {
@@ -36,10 +56,49 @@ public class SSHSearchBTreeArguments
                 cacheSize = Integer.parseInt(arg.split("=")[1]);
             } else if (arg.startsWith("--debug=")) {
                 debugLevel = Integer.parseInt(arg.split("=")[1]);
+            } else if (arg.startsWith("--storage=")) {
+                storageType = NodeStorage.Type.fromName(arg.split("=")[1]);
+                if (storageType == null) {
+                    throw new IllegalArgumentException("--storage must be channel or mmap");
+                }
+            } else if (arg.startsWith("--cache-policy=")) {
+                cachePolicy = Cache.Policy.fromName(arg.split("=")[1]);
+                if (cachePolicy == null) {
+                    throw new IllegalArgumentException("--cache-policy must be lru, clock, 2q or tinylfu");
+                }
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.split("=")[1]);
+                if (threads < 1) {
+                    throw new IllegalArgumentException("--threads must be at least 1");
+                }
+            } else if (arg.startsWith("--batch=")) {
+                batch = arg.split("=")[1].equals("1");
+            } else if (arg.startsWith("--quantiles=")) {
+                quantiles = Integer.parseInt(arg.split("=")[1]);
+                if (quantiles < 2) {
+                    throw new IllegalArgumentException("--quantiles must be at least 2");
+                }
+            } else if (arg.startsWith("--prefix=")) {
+                prefix = arg.substring("--prefix=".length());
+            } else if (arg.startsWith("--range=")) {
+                // from,to with either side left empty for an open bound
+                String[] bounds = arg.substring("--range=".length()).split(",", -1);
+                if (bounds.length != 2) {
+                    throw new IllegalArgumentException("--range must be <from>,<to>");
+                }
+                rangeFrom = bounds[0].isEmpty() ? null : bounds[0];
+                rangeTo = bounds[1].isEmpty() ? null : bounds[1];
+                rangeScan = true;
             }
         }
 
-        if (degree < 0 || btreeFilename == null || queryFilename == null) {
+        if (prefix != null && rangeScan) {
+            throw new IllegalArgumentException("--prefix and --range cannot be combined");
+        }
+        boolean scan = prefix != null || rangeScan;
+        // with no query file, --top-frequency ranks the whole tree
+        if (degree < 0 || btreeFilename == null
+                || (queryFilename == null && !scan && topFrequency <= 0 && quantiles == 0)) {
             throw new IllegalArgumentException("Missing required arguments");
         }
 
@@ -50,6 +109,15 @@ public class SSHSearchBTreeArguments
         this.topFrequency = topFrequency;
         this.cacheSize = cacheSize;
         this.debugLevel = debugLevel;
+        this.storageType = storageType;
+        this.cachePolicy = cachePolicy;
+        this.threads = threads;
+        this.batch = batch;
+        this.prefix = prefix;
+        this.rangeFrom = rangeFrom;
+        this.rangeTo = rangeTo;
+        this.rangeScan = rangeScan;
+        this.quantiles = quantiles;
     }
 
     public boolean isCacheEnabled() {
@@ -79,4 +147,55 @@ public class SSHSearchBTreeArguments
     public int getDebugLevel() {
         return debugLevel;
     }
+
+    public NodeStorage.Type getStorageType() {
+        return storageType;
+    }
+
+    public Cache.Policy getCachePolicy() {
+        return cachePolicy;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public boolean isBatchEnabled() {
+        return batch;
+    }
+
+    /**
+     * @return the prefix to scan for, or null
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return true if a --range scan was requested
+     */
+    public boolean isRangeScan() {
+        return rangeScan;
+    }
+
+    /**
+     * @return the inclusive lower bound of the range, or null if open
+     */
+    public String getRangeFrom() {
+        return rangeFrom;
+    }
+
+    /**
+     * @return the inclusive upper bound of the range, or null if open
+     */
+    public String getRangeTo() {
+        return rangeTo;
+    }
+
+    /**
+     * @return the number of equal parts to split the key space into, or 0
+     */
+    public int getQuantiles() {
+        return quantiles;
+    }
 }
\ No newline at end of file
@@ -1,14 +1,37 @@
 package cs321.btree;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
-
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cs321.common.Cache;
 import org.junit.After;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -448,6 +471,1275 @@ public class BTreeTest {
     }
 
 
+    /**
+     * Tests that a tree written with finishUp() can be reopened from its header
+     * with the same degree, size, height, node count and contents.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testReopenRestoresState() throws BTreeException, IOException {
+
+        BTree b = new BTree(3, testFilename);
+
+        String[] input = new String[500];
+
+        for (int i = 0; i < 500; i++) {
+            input[i] = i + "";
+            b.insert(new TreeObject(i + ""));
+        }
+        b.insert(new TreeObject("250"));
+
+        long expectedNodes = b.getNumberOfNodes();
+        int expectedHeight = b.getHeight();
+        b.finishUp();
+
+        BTree reopened = BTree.open(testFilename, true, false, 0);
+
+        assertEquals(3, reopened.getDegree());
+        assertEquals(500, reopened.getSize());
+        assertEquals(expectedHeight, reopened.getHeight());
+        assertEquals(expectedNodes, reopened.getNumberOfNodes());
+        assertEquals(2, reopened.search("250").getCount());
+
+        assertTrue(validateInserts(reopened, input));
+        reopened.finishUp();
+    }
+
+    /**
+     * Tests that a tree reopened read-write keeps growing from where it left off,
+     * and that a read-only tree rejects inserts.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testReopenReadWrite() throws BTreeException, IOException {
+
+        BTree b = new BTree(2, testFilename, true, 100);
+        for (int i = 0; i < 50; i++) {
+            b.insert(new TreeObject(i + ""));
+        }
+        b.finishUp();
+
+        BTree readWrite = BTree.open(testFilename, false, true, 100);
+        for (int i = 50; i < 100; i++) {
+            readWrite.insert(new TreeObject(i + ""));
+        }
+        readWrite.finishUp();
+
+        BTree readOnly = BTree.open(testFilename, true, false, 0);
+        assertEquals(100, readOnly.getSize());
+        assertEquals("99", readOnly.search("99").getKey());
+
+        try {
+            readOnly.insert(new TreeObject("100"));
+            fail("insert into a read-only tree should fail");
+        } catch (IOException expected) {
+            // expected
+        }
+        readOnly.finishUp();
+    }
+
+
+    /**
+     * Tests that modified nodes are only written when they leave memory or on
+     * flush, and that a flushed tree can be read by another handle.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testWriteBack() throws BTreeException, IOException {
+
+        for (boolean usingCache : new boolean[] {true, false}) {
+            BTree b = new BTree(2, testFilename, usingCache, 50);
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < 200; i++) {
+                    b.insert(new TreeObject(i + ""));
+                }
+            }
+            assertTrue(b.getDiskWrites() < b.getWriteRequests());
+            assertEquals(b.getWriteRequests() - b.getDiskWrites(), b.getWritesSaved());
+
+            b.flush();
+            long written = b.getDiskWrites();
+            b.flush();
+            assertEquals(written, b.getDiskWrites());     // nothing dirty is left
+
+            BTree reader = BTree.open(testFilename, true, false, 0);
+            assertEquals(200, reader.getSize());
+            for (int i = 0; i < 200; i++) {
+                assertEquals(5, reader.search(i + "").getCount());
+            }
+            reader.finishUp();
+            b.finishUp();
+            deleteTestFile(testFilename);
+        }
+    }
+
+
+    /**
+     * Tests that a modified node the TinyLFU cache declines to admit is held until
+     * the flush rather than written on every change.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testRejectedWritesHeld() throws BTreeException, IOException {
+
+        BTreeOptions options = new BTreeOptions().setCache(true, 4).setCachePolicy(Cache.Policy.TINY_LFU);
+        BTree b = new BTree(2, testFilename, options);
+        for (int i = 0; i < 100; i++) {
+            b.insert(new TreeObject(i + ""));
+        }
+        b.flush();
+        // read the other leaves often so the rarely read leaves lose admission
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 100; i += 2) {
+                b.search(i + "");
+            }
+        }
+        long written = b.getDiskWrites();
+        long requested = b.getWriteRequests();
+        for (int round = 0; round < 50; round++) {
+            b.insert(new TreeObject("99"));
+        }
+        assertTrue(b.getDiskWrites() - written <= (b.getWriteRequests() - requested) / 10);
+
+        b.flush();
+        BTree reader = BTree.open(testFilename, true, false, 0);
+        assertEquals(100, reader.getSize());
+        assertEquals(51, reader.search("99").getCount());
+        reader.finishUp();
+        b.finishUp();
+        deleteTestFile(testFilename);
+    }
+
+
+    /**
+     * Tests that many threads can search one read-only tree at once through
+     * either storage backend and a striped cache.
+     *
+     * @throws Exception Exception thrown when a search fails or a thread is interrupted
+     */
+    @Test
+    public void testConcurrentSearch() throws Exception {
+
+        BTree b = new BTree(3, testFilename, true, 100);
+        for (int i = 0; i < 3000; i++) {
+            b.insert(new TreeObject(i + ""));
+            b.insert(new TreeObject((i % 100) + ""));
+        }
+        b.finishUp();
+
+        for (NodeStorage.Type type : NodeStorage.Type.values()) {
+            BTreeOptions options = new BTreeOptions().setCache(true, 40).setConcurrency(8).setStorageType(type);
+            final BTree reader = BTree.open(testFilename, true, options);
+            assertEquals(32, reader.getCache().getStripes());
+
+            final AtomicInteger mismatches = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int offset = t;
+                tasks.add(pool.submit(() -> {
+                    for (int n = 0; n < 3000; n++) {
+                        int i = (n * 7 + offset * 389) % 3000;
+                        TreeObject found = reader.search(i + "");
+                        if (found == null || found.getCount() != (i < 100 ? 31 : 1)) {
+                            mismatches.incrementAndGet();
+                        }
+                        if (reader.search("x" + i) != null) {
+                            mismatches.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+            pool.shutdown();
+            assertEquals(0, mismatches.get());
+            reader.finishUp();
+        }
+    }
+
+
+    /**
+     * Tests that a batch lookup finds the same keys as one search per key and
+     * reads each node at most once.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testSearchAll() throws BTreeException, IOException {
+
+        BTree b = new BTree(2, testFilename);
+        for (int i = 0; i < 1000; i += 2) {
+            b.insert(new TreeObject(i + ""));
+            b.insert(new TreeObject((i % 10) + ""));
+        }
+        b.finishUp();
+
+        List<String> probes = new ArrayList<>();
+        Random random = new Random(321);
+        for (int i = 0; i < 3000; i++) {
+            probes.add(random.nextInt(1100) + "");
+        }
+
+        BTree reader = BTree.open(testFilename, true, false, 0);
+        Map<String, TreeObject> found = reader.searchAll(probes);
+        assertTrue(reader.getNodeReads() <= reader.getNumberOfNodes());
+        for (String probe : probes) {
+            TreeObject expected = reader.search(probe);
+            if (expected == null) {
+                assertNull(found.get(probe));
+            } else {
+                assertEquals(expected.getKey(), found.get(probe).getKey());
+                assertEquals(expected.getCount(), found.get(probe).getCount());
+            }
+        }
+        assertTrue(reader.searchAll(Collections.<String>emptyList()).isEmpty());
+        reader.finishUp();
+    }
+
+
+    /**
+     * Tests range and prefix cursors against a filtered sorted key list, including
+     * bounds that fall between keys and outside the tree.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testRangeAndPrefixCursors() throws BTreeException, IOException {
+
+        BTree b = new BTree(2, testFilename, true, 10);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 600; i += 3) {
+            keys.add("Failed-10.0." + (i / 100) + "." + (i % 100));
+            b.insert(new TreeObject(keys.get(keys.size() - 1)));
+        }
+        Collections.sort(keys);
+
+        String[][] ranges = {
+            {null, null}, {"Failed-10.0.2.", "Failed-10.0.3.5"}, {"Failed-10.0.1.3", "Failed-10.0.1.30"},
+            {"A", "B"}, {"Z", null}, {null, "Failed-10.0.0.0"}, {"Failed-10.0.4.5", "Failed-10.0.4.4"},
+        };
+        for (String[] range : ranges) {
+            List<String> expected = new ArrayList<>();
+            for (String key : keys) {
+                if ((range[0] == null || key.compareTo(range[0]) >= 0)
+                        && (range[1] == null || key.compareTo(range[1]) <= 0)) {
+                    expected.add(key);
+                }
+            }
+            assertEquals(expected, collectKeys(b.range(range[0], range[1])));
+        }
+
+        for (String prefix : new String[] {"Failed-10.0.3.", "Failed-10.0.1.2", "Failed-", "Failed-10.0.9", ""}) {
+            List<String> expected = new ArrayList<>();
+            for (String key : keys) {
+                if (key.startsWith(prefix)) {
+                    expected.add(key);
+                }
+            }
+            assertEquals(expected, collectKeys(b.prefix(prefix)));
+        }
+        b.finishUp();
+
+        BTree reader = BTree.open(testFilename, true, false, 0);
+        assertEquals(keys, collectKeys(reader.range(null, null)));
+        reader.finishUp();
+
+        BTree empty = new BTree(2, testFilename);
+        assertTrue(collectKeys(empty.range(null, null)).isEmpty());
+        empty.finishUp();
+    }
+
+    /**
+     * Test that the streamed dump of a multi-level tree with a cache, taken while
+     * modified nodes are still only in the cache, prints the same lines as the
+     * recursive in-order dump it replaced, and that iterating modifies nothing.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testIteratorDump() throws BTreeException, IOException {
+
+        BTree b = new BTree(2, testFilename, true, 10);
+        TreeMap<String, Long> expected = new TreeMap<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 3000; i++) {
+            String key = "k" + random.nextInt(800);
+            b.insert(new TreeObject(key));
+            expected.merge(key, 1L, Long::sum);
+        }
+        assertTrue(b.getHeight() >= 3);
+
+        // the lines the recursive dump printed: every key in order with its count
+        StringWriter recursive = new StringWriter();
+        PrintWriter lines = new PrintWriter(recursive);
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            lines.println(entry.getKey() + " " + entry.getValue());
+        }
+        lines.flush();
+
+        long writeRequests = b.getWriteRequests();
+        StringWriter dump = new StringWriter();
+        b.dumpToFile(new PrintWriter(dump));
+        assertEquals(recursive.toString(), dump.toString());
+        assertEquals(writeRequests, b.getWriteRequests());
+        assertEquals(expected.size(), b.getSize());
+        b.finishUp();
+
+        byte[] file = Files.readAllBytes(new File(testFilename).toPath());
+        BTree reader = BTree.open(testFilename, true, true, 10);
+        Iterator<TreeObject> keys = reader.iterator();
+        keys.next();
+        try {
+            keys.remove();
+            fail("the tree iterator removed a key");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        dump = new StringWriter();
+        reader.dumpToFile(new PrintWriter(dump));
+        assertEquals(recursive.toString(), dump.toString());
+        assertEquals(0, reader.getWriteRequests());
+        reader.finishUp();
+        assertTrue(Arrays.equals(file, Files.readAllBytes(new File(testFilename).toPath())));
+        deleteTestFile(testFilename);
+    }
+
+    /**
+     * Test that a multi-level tree exported to SQLite gives one row per key, in key
+     * order and with its count, that a second export replaces the table instead of
+     * adding to it, and that both indexes are built.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testDumpToDatabase() throws BTreeException, IOException, SQLException {
+
+        File db = File.createTempFile("btree-export", ".db");
+        BTree b = new BTree(2, testFilename, true, 10);
+        TreeMap<String, Long> expected = new TreeMap<>();
+        Random random = new Random(13);
+        for (int i = 0; i < 2000; i++) {
+            String key = "k" + random.nextInt(500);
+            b.insert(new TreeObject(key));
+            expected.merge(key, 1L, Long::sum);
+        }
+        assertTrue(b.getHeight() >= 2);
+        try {
+            b.dumpToDatabase(db.getPath(), "accepted_ip");
+            b.dumpToDatabase(db.getPath(), "accepted_ip");
+
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + db.getPath());
+                 Statement stmt = conn.createStatement()) {
+                Iterator<Map.Entry<String, Long>> entries = expected.entrySet().iterator();
+                try (ResultSet rows = stmt.executeQuery("SELECT key, frequency FROM accepted_ip ORDER BY rowid")) {
+                    while (rows.next()) {
+                        Map.Entry<String, Long> entry = entries.next();
+                        assertEquals(entry.getKey(), rows.getString(1));
+                        assertEquals((long) entry.getValue(), rows.getLong(2));
+                    }
+                }
+                assertFalse(entries.hasNext());
+                try (ResultSet count = stmt.executeQuery("SELECT COUNT(*) FROM accepted_ip")) {
+                    assertEquals(expected.size(), count.getLong(1));
+                }
+                List<String> indexes = new ArrayList<>();
+                try (ResultSet rows = stmt.executeQuery(
+                        "SELECT name FROM sqlite_master WHERE type = 'index' AND tbl_name = 'accepted_ip' ORDER BY name")) {
+                    while (rows.next()) {
+                        indexes.add(rows.getString(1));
+                    }
+                }
+                assertEquals(Arrays.asList("accepted_ip_frequency", "accepted_ip_key"), indexes);
+            }
+        } finally {
+            b.finishUp();
+            deleteTestFile(testFilename);
+            for (String suffix : new String[] {"", "-wal", "-shm"}) {
+                File file = new File(db.getPath() + suffix);
+                if (file.exists() && !file.delete()) {
+                    fail("could not delete " + file);
+                }
+            }
+        }
+    }
+
+    private static List<String> collectKeys(Iterator<TreeObject> cursor) {
+        List<String> keys = new ArrayList<>();
+        while (cursor.hasNext()) {
+            keys.add(cursor.next().getKey());
+        }
+        return keys;
+    }
+
+
+    /**
+     * Tests deletion against a sorted map through random inserts and deletes, with
+     * and without a cache, and that the tree survives a reopen.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testDelete() throws BTreeException, IOException {
+
+        for (int degree = 2; degree <= 4; degree++) {
+            for (boolean usingCache : new boolean[] {true, false}) {
+                BTree b = new BTree(degree, testFilename, usingCache, 20);
+                TreeMap<String, Long> expected = new TreeMap<>();
+                Random random = new Random(degree * 31 + (usingCache ? 1 : 0));
+                for (int step = 0; step < 4000; step++) {
+                    String key = random.nextInt(400) + "";
+                    if (random.nextInt(3) == 0) {
+                        b.delete(key);
+                        expected.remove(key);
+                    } else {
+                        b.insert(new TreeObject(key));
+                        expected.merge(key, 1L, Long::sum);
+                    }
+                }
+                for (String key : new ArrayList<>(expected.keySet())) {
+                    if (random.nextBoolean()) {
+                        b.delete(key);
+                        expected.remove(key);
+                    }
+                }
+                assertEquals(expected.size(), b.getSize());
+                assertEquals(new ArrayList<>(expected.keySet()), Arrays.asList(b.getSortedKeyArray()));
+                b.finishUp();
+
+                BTree reopened = BTree.open(testFilename, false, usingCache, 20);
+                for (int i = 0; i < 400; i++) {
+                    TreeObject found = reopened.search(i + "");
+                    Long count = expected.get(i + "");
+                    if (count == null) {
+                        assertNull(found);
+                    } else {
+                        assertEquals((long) count, found.getCount());
+                    }
+                }
+                for (String key : expected.keySet()) {
+                    reopened.delete(key);
+                }
+                reopened.delete("not there");
+                assertEquals(0, reopened.getSize());
+                assertEquals(0, reopened.getHeight());
+                assertEquals(1, reopened.getNumberOfNodes());
+                reopened.finishUp();
+                deleteTestFile(testFilename);
+            }
+        }
+    }
+
+    /**
+     * Tests that pages released by deletion are reused, also after a reopen,
+     * instead of growing the file.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testDeleteReusesPages() throws BTreeException, IOException {
+
+        BTree b = new BTree(2, testFilename);
+        for (int i = 0; i < 1000; i++) {
+            b.insert(new TreeObject(i + ""));
+        }
+        long nodes = b.getNumberOfNodes();
+        for (int i = 0; i < 1000; i += 2) {
+            b.delete(i + "");
+        }
+        assertTrue(b.getNumberOfNodes() < nodes);
+        b.finishUp();
+        long length = new File(testFilename).length();
+
+        BTree reopened = BTree.open(testFilename, false, false, 0);
+        for (int i = 0; i < 1000; i += 2) {
+            reopened.insert(new TreeObject(i + ""));
+        }
+        reopened.finishUp();
+        assertEquals(length, new File(testFilename).length());
+
+        BTree reader = BTree.open(testFilename, true, false, 0);
+        assertEquals(1000, reader.getSize());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(1, reader.search(i + "").getCount());
+        }
+        reader.finishUp();
+    }
+
+
+    /**
+     * Tests top-K over key ranges on trees with count summaries, maintained through
+     * inserts, splits and deletes, against a brute-force ranking; and that a tree
+     * without summaries gives the same answers.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testTopK() throws BTreeException, IOException {
+
+        for (boolean summaries : new boolean[] {true, false}) {
+            BTreeOptions options = new BTreeOptions().setCache(true, 15).setCountSummaries(summaries);
+            BTree b = new BTree(2, testFilename, options);
+            assertEquals(summaries, b.hasCountSummaries());
+            TreeMap<String, Long> expected = new TreeMap<>();
+            Random random = new Random(14);
+            for (int step = 0; step < 6000; step++) {
+                String key = "k" + (int) Math.sqrt(random.nextInt(250000));
+                if (random.nextInt(10) == 0) {
+                    b.delete(key);
+                    expected.remove(key);
+                } else {
+                    b.insert(new TreeObject(key));
+                    expected.merge(key, 1L, Long::sum);
+                }
+            }
+            b.finishUp();
+
+            BTree reader = BTree.open(testFilename, true, false, 0);
+            assertEquals(summaries, reader.hasCountSummaries());
+            String[][] ranges = {{null, null}, {"k1", "k3"}, {"k250", "k260"}, {"k499", null}, {"x", null}};
+            for (String[] range : ranges) {
+                for (int k : new int[] {1, 10, 25, 1000}) {
+                    List<TreeObject> all = new ArrayList<>();
+                    for (Map.Entry<String, Long> e : expected.entrySet()) {
+                        if ((range[0] == null || e.getKey().compareTo(range[0]) >= 0)
+                                && (range[1] == null || e.getKey().compareTo(range[1]) <= 0)) {
+                            all.add(new TreeObject(e.getKey(), e.getValue()));
+                        }
+                    }
+                    all.sort((x, y) -> x.getCount() != y.getCount()
+                            ? Long.compare(y.getCount(), x.getCount()) : x.getKey().compareTo(y.getKey()));
+                    List<TreeObject> top = reader.topK(k, range[0], range[1]);
+                    assertEquals(Math.min(k, all.size()), top.size());
+                    for (int i = 0; i < top.size(); i++) {
+                        assertEquals(all.get(i).getKey(), top.get(i).getKey());
+                        assertEquals(all.get(i).getCount(), top.get(i).getCount());
+                    }
+                }
+            }
+            reader.finishUp();
+            deleteTestFile(testFilename);
+        }
+    }
+
+    /**
+     * Tests that a bulk-loaded tree with count summaries answers top-K while
+     * reading only a small part of its nodes.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testTopKPrunesSubtrees() throws BTreeException, IOException {
+
+        List<TreeObject> entries = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            entries.add(new TreeObject(String.format("key%05d", i), (i * 7919L) % 10007));
+        }
+        BTree b = new BTree(3, testFilename, new BTreeOptions().setCountSummaries(true));
+        b.bulkLoad(entries.iterator());
+        b.finishUp();
+
+        BTree reader = BTree.open(testFilename, true, false, 0);
+        List<TreeObject> top = reader.topK(25, null, null);
+        assertEquals(10006, top.get(0).getCount());
+        assertTrue(reader.getNodeReads() < reader.getNumberOfNodes() / 20);
+
+        List<TreeObject> ranged = reader.topK(5, "key10000", "key10999");
+        assertEquals(5, ranged.size());
+        for (TreeObject obj : ranged) {
+            assertTrue(obj.getKey().compareTo("key10000") >= 0 && obj.getKey().compareTo("key10999") <= 0);
+        }
+        reader.finishUp();
+    }
+
+
+    /**
+     * Tests that a tree built through the memory-mapped backend can be read back
+     * through either backend.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testMappedStorage() throws BTreeException, IOException {
+
+        BTreeOptions mapped = new BTreeOptions().setStorageType(NodeStorage.Type.MAPPED);
+        BTree b = new BTree(2, testFilename, mapped);
+
+        String[] input = new String[1000];
+
+        for (int i = 0; i < 1000; i++) {
+            input[i] = i + "";
+            b.insert(new TreeObject(i + ""));
+        }
+        assertTrue(validateInserts(b, input));
+        b.finishUp();
+
+        BTree channel = BTree.open(testFilename, true, new BTreeOptions());
+        assertEquals(1000, channel.getSize());
+        assertTrue(validateInserts(channel, input));
+        channel.finishUp();
+
+        BTree reopened = BTree.open(testFilename, true, mapped);
+        assertEquals("999", reopened.search("999").getKey());
+        assertTrue(validateInserts(reopened, input));
+        reopened.finishUp();
+    }
+
+
+    /**
+     * Bulk loads shuffled keys with duplicates at several degrees and fill factors,
+     * then checks contents, merged counts, node fill and that regular inserts still
+     * work on the loaded tree.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testBulkLoad() throws BTreeException, IOException {
+
+        int[] degrees = {2, 3, 10};
+        double[] fillFactors = {0.5, 0.75, 1.0};
+
+        for (int degree : degrees) {
+            for (double fill : fillFactors) {
+                for (int n : new int[]{1, 5, 7, 100, 2000}) {
+                    ArrayList<TreeObject> entries = new ArrayList<>();
+                    String[] input = new String[n];
+                    for (int i = 0; i < n; i++) {
+                        input[i] = i + "";
+                        entries.add(new TreeObject(i + "", 1));
+                        entries.add(new TreeObject(i + "", i));
+                    }
+                    Collections.shuffle(entries, new Random(n));
+
+                    BTree b = new BTree(degree, testFilename);
+                    b.bulkLoad(entries.iterator(), fill);
+
+                    assertEquals(n, b.getSize());
+                    assertTrue(validateInserts(b, input));
+                    assertEquals(n / 2 + 1, b.search(n / 2 + "").getCount());
+
+                    b.insert(new TreeObject("new"));
+                    b.insert(new TreeObject("0"));
+                    assertEquals(n + 1, b.getSize());
+                    assertEquals(2, b.search("0").getCount());
+                    assertEquals(1, b.search("new").getCount());
+                    b.finishUp();
+
+                    BTree reopened = BTree.open(testFilename, true, false, 0);
+                    assertEquals(n + 1, reopened.getSize());
+                    assertEquals(b.getHeight(), reopened.getHeight());
+                    assertEquals(b.getNumberOfNodes(), reopened.getNumberOfNodes());
+                    reopened.finishUp();
+                    deleteTestFile(testFilename);
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams sorted keys into a bulk load at several degrees, fill factors and sizes,
+     * including sizes that leave the right edge nodes nearly empty, and checks that
+     * the tree holds the same keys, counts and summaries as a regular bulk load, keeps
+     * within the B-Tree bounds on height and node count, and takes regular inserts.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testBulkLoadSorted() throws BTreeException, IOException {
+
+        int[] degrees = {2, 3, 10};
+        double[] fillFactors = {0.5, 1.0};
+        BTreeOptions options = new BTreeOptions().setCache(true, 8).setCountSummaries(true).setKeyCounts(true);
+        String otherFilename = testFilename + ".other";
+
+        for (int degree : degrees) {
+            for (double fill : fillFactors) {
+                for (int n : new int[]{1, 2, 3, 4, 5, 6, 7, 8, 20, 100, 2000}) {
+                    ArrayList<TreeObject> entries = new ArrayList<>();
+                    for (int i = 0; i < n; i++) {
+                        entries.add(new TreeObject(String.format("k%05d", i), 1 + (i * 7919L) % 101));
+                    }
+
+                    BTree b = new BTree(degree, testFilename, options);
+                    b.bulkLoadSorted(entries.iterator(), fill);
+                    BTree expected = new BTree(degree, otherFilename, options);
+                    expected.bulkLoad(entries.iterator(), fill);
+
+                    assertEquals(n, b.getSize());
+                    assertTrue(b.getHeight() <= Math.log((n + 1) / 2.0) / Math.log(degree) + 1e-9);
+                    assertTrue(b.getNumberOfNodes() <= 1 + (n - 1) / (degree - 1));
+                    Iterator<TreeObject> keys = b.iterator();
+                    for (TreeObject obj : expected) {
+                        TreeObject actual = keys.next();
+                        assertEquals(obj.getKey(), actual.getKey());
+                        assertEquals(obj.getCount(), actual.getCount());
+                    }
+                    assertFalse(keys.hasNext());
+                    for (int i = 0; i < n; i += 1 + n / 10) {
+                        String key = String.format("k%05d", i);
+                        assertEquals(i, b.rank(key));
+                        assertEquals(key, b.select(i).getKey());
+                        assertEquals(entries.get(i).getCount(), b.search(key).getCount());
+                    }
+                    assertEquals(collectKeys(expected.topK(5, null, null).iterator()),
+                            collectKeys(b.topK(5, null, null).iterator()));
+                    expected.finishUp();
+                    deleteTestFile(otherFilename);
+
+                    b.finishUp();
+                    b = BTree.open(testFilename, false, options);
+                    assertEquals(n, b.getSize());
+                    b.insert(new TreeObject("k"));
+                    b.insert(new TreeObject("k00000"));
+                    b.finishUp();
+                    BTree reopened = BTree.open(testFilename, true, false, 0);
+                    assertEquals(n + 1, reopened.getSize());
+                    assertEquals(2, reopened.search("k00000").getCount());
+                    assertTrue(validateSearchTreeProperty(reopened));
+                    reopened.finishUp();
+                    deleteTestFile(testFilename);
+                }
+            }
+        }
+
+        BTree b = new BTree(2, testFilename);
+        try {
+            b.bulkLoadSorted(Arrays.asList(new TreeObject("b"), new TreeObject("a")).iterator(), 1.0);
+            fail("keys out of order were loaded");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        b.finishUp();
+        deleteTestFile(testFilename);
+    }
+
+    /**
+     * A full bulk load of 2t-1 keys per node gives the minimum number of nodes.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testBulkLoadFullNodes() throws BTreeException, IOException {
+
+        BTree b = new BTree(2, testFilename);
+
+        ArrayList<TreeObject> entries = new ArrayList<>();
+        for (char c = 'A'; c <= 'O'; c++) {
+            entries.add(new TreeObject(c + ""));
+        }
+        b.bulkLoad(entries.iterator());
+
+        // 15 keys: 4 full leaves of 3 keys and a root holding the 3 separators
+        assertEquals(15, b.getSize());
+        assertEquals(1, b.getHeight());
+        assertEquals(5, b.getNumberOfNodes());
+        assertEquals("H", b.search("H").getKey());
+    }
+
+
+    /**
+     * Searches nodes read from disk for present keys, keys that are prefixes or
+     * extensions of stored keys, keys outside the stored range and keys longer than
+     * the 64 bytes a key slot holds.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testSearchFromDiskPages() throws BTreeException, IOException {
+
+        BTree b = new BTree(2, testFilename);
+
+        for (int i = 10; i < 1000; i += 3) {
+            b.insert(new TreeObject("Failed-" + i));
+            b.insert(new TreeObject("Failed-" + i));
+        }
+        b.finishUp();
+
+        BTree reopened = BTree.open(testFilename, true, false, 0);
+        for (int i = 10; i < 1000; i++) {
+            TreeObject found = reopened.search("Failed-" + i);
+            if ((i - 10) % 3 == 0) {
+                assertEquals("Failed-" + i, found.getKey());
+                assertEquals(2, found.getCount());
+            } else {
+                assertNull(found);
+            }
+        }
+        assertNull(reopened.search(""));
+        assertNull(reopened.search("Failed-"));
+        assertNull(reopened.search("Failed-100 "));
+        assertNull(reopened.search("Failed-1000"));
+        assertNull(reopened.search("Z"));
+
+        StringBuilder longKey = new StringBuilder("Failed-997");
+        while (longKey.length() <= 64) {
+            longKey.append('0');
+        }
+        assertNull(reopened.search(longKey.toString()));
+        reopened.finishUp();
+    }
+
+
+    /**
+     * Builds and searches a tree through a small cache with each eviction policy.
+     *
+     * @throws BTreeException Exception thrown when BTree encounters an unexpected problem
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testCachePolicies() throws BTreeException, IOException {
+
+        for (Cache.Policy policy : Cache.Policy.values()) {
+            BTreeOptions options = new BTreeOptions().setCache(true, 20).setCachePolicy(policy);
+            BTree b = new BTree(2, testFilename, options);
+
+            String[] input = new String[2000];
+            for (int i = 0; i < 2000; i++) {
+                input[i] = i + "";
+                b.insert(new TreeObject(i + ""));
+                b.insert(new TreeObject((i / 2) + ""));
+            }
+            assertTrue(validateInserts(b, input));
+            assertEquals(3, b.search("500").getCount());
+            b.finishUp();
+
+            BTree reopened = BTree.open(testFilename, true, options);
+            for (int i = 0; i < 2000; i++) {
+                assertEquals(i < 1000 ? 3 : 1, reopened.search(i + "").getCount());
+            }
+            assertTrue(reopened.getCache().getCacheHitPercent() > 0);
+            reopened.finishUp();
+            deleteTestFile(testFilename);
+        }
+    }
+
+
+    /**
+     * Test that the count index built on finishUp returns the same ranking as a
+     * full sort, that closing a modified tree without the option removes it, and
+     * that a key too long to share the key slot with the count is refused.
+     */
+    @Test
+    public void testCountIndex() throws BTreeException, IOException {
+
+        String indexFilename = testFilename + ".count";
+        BTree b = new BTree(3, testFilename, new BTreeOptions().setCountIndex(true));
+        TreeMap<String, Long> expected = new TreeMap<>();
+        Random random = new Random(15);
+        for (int step = 0; step < 5000; step++) {
+            String key = "k" + (int) Math.sqrt(random.nextInt(90000));
+            b.insert(new TreeObject(key));
+            expected.merge(key, 1L, Long::sum);
+        }
+        b.finishUp();
+        assertTrue(new File(indexFilename).exists());
+
+        List<TreeObject> all = new ArrayList<>();
+        for (Map.Entry<String, Long> e : expected.entrySet()) {
+            all.add(new TreeObject(e.getKey(), e.getValue()));
+        }
+        all.sort((x, y) -> x.getCount() != y.getCount()
+                ? Long.compare(y.getCount(), x.getCount()) : x.getKey().compareTo(y.getKey()));
+
+        BTree reader = BTree.open(testFilename, true, false, 0);
+        assertTrue(reader.hasCountIndex());
+        for (int n : new int[] {1, 25, all.size() + 10}) {
+            List<TreeObject> top = reader.topByCount(n);
+            assertEquals(Math.min(n, all.size()), top.size());
+            for (int i = 0; i < top.size(); i++) {
+                assertEquals(all.get(i).getKey(), top.get(i).getKey());
+                assertEquals(all.get(i).getCount(), top.get(i).getCount());
+            }
+        }
+        reader.finishUp();
+
+        // a later change without the option leaves no stale index behind
+        BTree writer = BTree.open(testFilename, false, false, 0);
+        writer.insert(new TreeObject("k0"));
+        writer.finishUp();
+        assertFalse(new File(indexFilename).exists());
+        deleteTestFile(testFilename);
+
+        // a key of 54 bytes fits beside the count prefix; one of 55 to 64 bytes does not
+        StringBuilder longKey = new StringBuilder();
+        while (longKey.length() < 54) {
+            longKey.append('k');
+        }
+        b = new BTree(3, testFilename, new BTreeOptions().setCountIndex(true));
+        b.insert(new TreeObject(longKey.toString()));
+        b.insert(new TreeObject("k0"));
+        b.insert(new TreeObject(longKey.toString()));
+        b.finishUp();
+        reader = BTree.open(testFilename, true, false, 0);
+        assertEquals(longKey.toString(), reader.topByCount(1).get(0).getKey());
+        reader.finishUp();
+        deleteTestFile(testFilename);
+
+        for (int length = 55; length <= 64; length += 9) {
+            while (longKey.length() < length) {
+                longKey.append('k');
+            }
+            b = new BTree(3, testFilename, new BTreeOptions().setCountIndex(true));
+            b.insert(new TreeObject(longKey.toString()));
+            try {
+                b.finishUp();
+                fail("a " + length + "-byte key cannot be held by the count index");
+            } catch (IOException e) {
+                // expected
+            }
+            assertFalse(new File(indexFilename).exists());
+            reader = BTree.open(testFilename, true, false, 0);
+            assertEquals(longKey.toString(), reader.search(longKey.toString()).getKey());
+            reader.finishUp();
+            deleteTestFile(testFilename);
+        }
+    }
+
+
+    /**
+     * Test rank, select and quantiles against a sorted copy of the keys, with key
+     * counts kept through splits, deletes and a bulk load, and without them.
+     */
+    @Test
+    public void testRankAndSelect() throws BTreeException, IOException {
+
+        for (int layout = 0; layout < 3; layout++) {
+            BTreeOptions options = new BTreeOptions().setCache(true, 10)
+                    .setKeyCounts(layout > 0).setCountSummaries(layout == 2);
+            BTree b = new BTree(2, testFilename, options);
+            assertEquals(layout > 0, b.hasKeyCounts());
+            TreeMap<String, Long> expected = new TreeMap<>();
+            Random random = new Random(16);
+            for (int step = 0; step < 4000; step++) {
+                String key = "k" + random.nextInt(1500);
+                if (random.nextInt(8) == 0) {
+                    b.delete(key);
+                    expected.remove(key);
+                } else {
+                    b.insert(new TreeObject(key));
+                    expected.merge(key, 1L, Long::sum);
+                }
+            }
+            b.finishUp();
+
+            BTree reader = BTree.open(testFilename, true, false, 0);
+            assertOrderStatistics(reader, new ArrayList<>(expected.keySet()));
+            reader.finishUp();
+            deleteTestFile(testFilename);
+
+            BTree loaded = new BTree(3, testFilename, options);
+            List<TreeObject> entries = new ArrayList<>();
+            for (Map.Entry<String, Long> e : expected.entrySet()) {
+                entries.add(new TreeObject(e.getKey(), e.getValue()));
+            }
+            loaded.bulkLoad(entries.iterator(), 0.7);
+            assertOrderStatistics(loaded, new ArrayList<>(expected.keySet()));
+            loaded.finishUp();
+            deleteTestFile(testFilename);
+        }
+    }
+
+    private static void assertOrderStatistics(BTree b, List<String> sorted) throws IOException {
+        assertEquals(sorted.size(), b.getSize());
+        for (int i = 0; i < sorted.size(); i++) {
+            assertEquals(sorted.get(i), b.select(i).getKey());
+            assertEquals(i, b.rank(sorted.get(i)));
+        }
+        assertNull(b.select(sorted.size()));
+        assertEquals(0, b.rank(""));
+        assertEquals(sorted.size(), b.rank("z"));
+        assertEquals(1, b.rank(sorted.get(0) + "0"));
+        for (int n : new int[] {2, 4, 10}) {
+            List<TreeObject> bounds = b.quantiles(n);
+            assertEquals(n - 1, bounds.size());
+            for (int i = 1; i < n; i++) {
+                assertEquals(sorted.get((int) ((long) i * sorted.size() / n)), bounds.get(i - 1).getKey());
+            }
+        }
+    }
+
+
+    /**
+     * Test that inserting an existing key adds the object's count, and that the
+     * log offset survives reopening the file.
+     */
+    @Test
+    public void testInsertMergesCountsAndKeepsLogOffset() throws BTreeException, IOException {
+
+        BTree b = new BTree(2, testFilename, new BTreeOptions().setCountSummaries(true));
+        for (int i = 0; i < 100; i++) {
+            b.insert(new TreeObject("k" + i, 2));
+        }
+        b.setLogOffset(12345);
+        b.finishUp();
+
+        BTree appended = BTree.open(testFilename, false, false, 0);
+        assertEquals(12345, appended.getLogOffset());
+        for (int i = 0; i < 100; i += 2) {
+            appended.insert(new TreeObject("k" + i, 5));
+        }
+        appended.insert(new TreeObject("k100", 3));
+        appended.setLogOffset(23456);
+        appended.finishUp();
+
+        BTree reader = BTree.open(testFilename, true, false, 0);
+        assertEquals(23456, reader.getLogOffset());
+        assertEquals(101, reader.getSize());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 2 == 0 ? 7 : 2, reader.search("k" + i).getCount());
+        }
+        assertEquals(3, reader.search("k100").getCount());
+        assertEquals(7, reader.topK(1, null, null).get(0).getCount());
+        reader.finishUp();
+    }
+
+
+    /**
+     * Test that a tree abandoned without finishUp, as after a kill, is recovered from
+     * its write-ahead log to the last group commit, ignoring a torn log tail.
+     */
+    @Test
+    public void testWriteAheadLogRecovery() throws BTreeException, IOException {
+
+        for (NodeStorage.Type type : NodeStorage.Type.values()) {
+            BTreeOptions options = new BTreeOptions().setCache(true, 8).setStorageType(type)
+                    .setCountSummaries(true).setWriteAheadLog(true).setGroupCommit(100, Long.MAX_VALUE);
+            BTree crashed = new BTree(2, testFilename, options);
+            for (int i = 0; i < 1050; i++) {
+                crashed.insert(new TreeObject(String.format("k%04d", i)));
+            }
+            assertEquals(10, crashed.getCommits() - 1);
+            // never finished; a half-written record follows the last commit
+            try (FileOutputStream wal = new FileOutputStream(testFilename + ".wal", true)) {
+                wal.write(new byte[] {0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 16});
+            }
+
+            BTree recovered = BTree.open(testFilename, false, options);
+            assertEquals(1000, recovered.getSize());
+            assertNull(recovered.search("k1000"));
+            for (int i = 0; i < 1100; i++) {
+                recovered.insert(new TreeObject(String.format("k%04d", i)));
+            }
+            recovered.finishUp();
+            assertFalse(new File(testFilename + ".wal").exists());
+
+            BTree reader = BTree.open(testFilename, true, false, 0);
+            String[] keys = new String[1100];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = String.format("k%04d", i);
+                assertEquals(i < 1000 ? 2 : 1, reader.search(keys[i]).getCount());
+            }
+            assertTrue(validateInserts(reader, keys));
+            reader.finishUp();
+            deleteTestFile(testFilename);
+        }
+    }
+
+
+    /**
+     * Test that buffered inserts give the same tree contents as direct inserts,
+     * that lookups see keys still pending in the buffers without applying them, that
+     * an insert reads no nodes until a buffer fills, that the buffers save node
+     * writes, and that they are refused under a write-ahead log.
+     */
+    @Test
+    public void testInsertBuffer() throws BTreeException, IOException {
+
+        Random random = new Random(19);
+        String[] inserts = new String[5000];
+        TreeMap<String, Long> expected = new TreeMap<>();
+        for (int i = 0; i < inserts.length; i++) {
+            inserts[i] = String.format("k%04d", random.nextInt(1500));
+        }
+
+        BTree direct = new BTree(3, testFilename, new BTreeOptions().setCountSummaries(true));
+        for (String key : inserts) {
+            direct.insert(new TreeObject(key));
+        }
+        long directWrites = direct.getWriteRequests();
+        direct.finishUp();
+        deleteTestFile(testFilename);
+
+        BTree buffered = new BTree(3, testFilename,
+                new BTreeOptions().setCountSummaries(true).setInsertBuffer(8));
+        for (int i = 0; i < inserts.length; i++) {
+            buffered.insert(new TreeObject(inserts[i]));
+            expected.merge(inserts[i], 1L, Long::sum);
+            if (i % 97 == 0) {
+                String probe = inserts[random.nextInt(i + 1)];
+                assertEquals((long) expected.get(probe), buffered.search(probe).getCount());
+                assertNull(buffered.search("k9999"));
+                long writes = buffered.getWriteRequests();
+                assertTrue(buffered.getSize() <= expected.size());     // pending new keys are not counted yet
+                assertEquals(writes, buffered.getWriteRequests());
+            }
+        }
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            assertEquals((long) entry.getValue(), buffered.search(entry.getKey()).getCount());
+        }
+        assertTrue(buffered.getWriteRequests() < directWrites);
+        buffered.flush();
+        assertEquals(expected.size(), buffered.getSize());
+        long reads = buffered.getNodeReads();
+        for (int i = 0; i < 5; i++) {                    // existing keys, fewer than a bufferful
+            buffered.insert(new TreeObject(inserts[i]));
+            expected.merge(inserts[i], 1L, Long::sum);
+        }
+        assertEquals(reads, buffered.getNodeReads());
+        buffered.finishUp();
+
+        BTree reader = BTree.open(testFilename, true, false, 0);
+        assertEquals(expected.size(), reader.getSize());
+        Iterator<TreeObject> keys = reader.iterator();
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            TreeObject obj = keys.next();
+            assertEquals(entry.getKey(), obj.getKey());
+            assertEquals((long) entry.getValue(), obj.getCount());
+        }
+        assertFalse(keys.hasNext());
+        assertTrue(validateSearchTreeProperty(reader));
+        long max = Collections.max(expected.values());
+        assertEquals(max, reader.topK(1, null, null).get(0).getCount());
+        reader.finishUp();
+
+        try {
+            new BTree(3, testFilename, new BTreeOptions().setWriteAheadLog(true).setInsertBuffer(8));
+            fail("insert buffers accepted under a write-ahead log");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+
+    /**
+     * Test that counts ingested through sorted runs are found while ingesting, after
+     * the ingest is closed with runs left over, and in the tree once it is finished.
+     */
+    @Test
+    public void testSortedRunIngest() throws BTreeException, IOException {
+
+        Random random = new Random(20);
+        TreeMap<String, Long> expected = new TreeMap<>();
+        BTreeOptions options = new BTreeOptions().setCountSummaries(true);
+        SortedRunIngest ingest = new SortedRunIngest(testFilename, 3, 1.0, options, 50, true);
+        for (int i = 0; i < 3000; i++) {
+            String key = String.format("k%04d", random.nextInt(1000));
+            ingest.add(key, 1);
+            expected.merge(key, 1L, Long::sum);
+            if (i % 101 == 0) {
+                assertEquals((long) expected.get(key), ingest.search(key).getCount());
+            }
+        }
+        assertTrue(ingest.getRunsWritten() > 10);
+        // merge everything so far, so the next small run is too small to merge on its own
+        ingest.finish();
+        for (int i = 0; i < 10; i++) {
+            String key = String.format("n%04d", i);
+            ingest.add(key, 1);
+            expected.merge(key, 1L, Long::sum);
+        }
+        ingest.close();
+        assertTrue(SortedRunIngest.hasRuns(testFilename));
+
+        SortedRunIngest reader = SortedRunIngest.open(testFilename, options);
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            assertEquals((long) entry.getValue(), reader.search(entry.getKey()).getCount());
+        }
+        assertNull(reader.search("k9999"));
+        reader.close();
+
+        SortedRunIngest resumed = new SortedRunIngest(testFilename, 3, 1.0, options, 50, false);
+        for (int i = 0; i < 500; i++) {
+            String key = String.format("k%04d", random.nextInt(1200));
+            resumed.add(key, 2);
+            expected.merge(key, 2L, Long::sum);
+        }
+        resumed.finish();
+        assertEquals(0, resumed.getRunCount());
+        resumed.close();
+        assertFalse(SortedRunIngest.hasRuns(testFilename));
+
+        BTree b = BTree.open(testFilename, true, false, 0);
+        assertEquals(expected.size(), b.getSize());
+        Iterator<TreeObject> keys = b.iterator();
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            TreeObject obj = keys.next();
+            assertEquals(entry.getKey(), obj.getKey());
+            assertEquals((long) entry.getValue(), obj.getCount());
+        }
+        assertTrue(validateSearchTreeProperty(b));
+        b.finishUp();
+    }
+
+
+    /**
+     * Test that a sorted run that cannot be read fails the merge with the
+     * IOException that caused it.
+     *
+     * @throws IOException Exception thrown when testing fails due to IO errors
+     */
+    @Test
+    public void testCorruptRunFails() throws IOException {
+
+        SortedRunIngest ingest = new SortedRunIngest(testFilename, 3, 1.0, new BTreeOptions(), 50, true);
+        for (int i = 0; i < 1000; i++) {
+            ingest.add(String.format("k%04d", i), 1);
+        }
+        // a tree larger than the runs that follow keeps them from being merged into it
+        ingest.finish();
+        for (int i = 0; i < 100; i++) {
+            ingest.add(String.format("n%04d", i), 1);
+        }
+        ingest.close();
+        File[] runs = new File(".").listFiles((dir, name) -> name.startsWith(testFilename + ".run."));
+        assertTrue(runs.length > 0);
+        for (File run : runs) {
+            try (RandomAccessFile file = new RandomAccessFile(run, "rw")) {
+                file.writeShort(0xFFFF);                 // the first key now runs past the end
+            }
+        }
+
+        SortedRunIngest resumed = new SortedRunIngest(testFilename, 3, 1.0, new BTreeOptions(), 50, false);
+        try {
+            resumed.finish();
+            fail("a corrupt run was merged");
+        } catch (IOException expected) {
+            // expected
+        }
+        try {
+            resumed.close();
+        } catch (IOException expected) {
+            // the failed merge may be reported again
+        }
+        for (File file : new File(".").listFiles((dir, name) -> name.startsWith(testFilename + "."))) {
+            assertTrue(file.delete());
+        }
+    }
+
+
     /**
      * Helper method used to validate that all the keys in the BTree
      * are sorted by using an in order traversal of the tree
@@ -0,0 +1,178 @@
+package cs321.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit testing for Cache and its eviction policies.
+ */
+public class CacheTest {
+
+    /**
+     * Minimal cached value keyed by an integer.
+     */
+    private static class Item implements KeyInterface<Integer> {
+        private final int key;
+
+        Item(int key) {
+            this.key = key;
+        }
+
+        @Override
+        public Integer getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * Every policy keeps the cache within its capacity, finds what it holds and
+     * counts references and hits.
+     */
+    @Test
+    public void testAllPoliciesStayBounded() {
+        for (Cache.Policy policy : Cache.Policy.values()) {
+            Cache<Integer, Item> cache = new Cache<>(10, policy);
+            int left = 0;
+            for (int i = 0; i < 100; i++) {
+                Item evicted = cache.add(new Item(i % 37));
+                if (evicted != null) {
+                    left++;
+                }
+                assertTrue(cache.size() <= 10);
+            }
+            assertEquals(10, cache.size());
+            assertTrue(left > 0);
+
+            int found = 0;
+            for (int i = 0; i < 37; i++) {
+                if (cache.get(i) != null) {
+                    found++;
+                }
+            }
+            assertEquals(10, found);
+            assertEquals(100 * 10.0 / 37, cache.getCacheHitPercent(), 0.01);
+            assertTrue(cache.toString().contains("Total number of cache hits:        10"));
+        }
+    }
+
+    /**
+     * LRU evicts the entry that was used least recently.
+     */
+    @Test
+    public void testLruEvictsLeastRecentlyUsed() {
+        Cache<Integer, Item> cache = new Cache<>(3, Cache.Policy.LRU);
+        cache.add(new Item(1));
+        cache.add(new Item(2));
+        cache.add(new Item(3));
+        cache.get(1);
+
+        assertEquals(Integer.valueOf(2), cache.add(new Item(4)).getKey());
+        assertNotNull(cache.get(1));
+        assertNull(cache.get(2));
+    }
+
+    /**
+     * CLOCK gives a referenced entry a second chance.
+     */
+    @Test
+    public void testClockSecondChance() {
+        Cache<Integer, Item> cache = new Cache<>(3, Cache.Policy.CLOCK);
+        cache.add(new Item(1));
+        cache.add(new Item(2));
+        cache.add(new Item(3));
+
+        // all reference bits are set on insert: the hand clears them and evicts 1
+        assertEquals(Integer.valueOf(1), cache.add(new Item(4)).getKey());
+        cache.get(2);
+        // 2 was referenced again, so 3 goes next
+        assertEquals(Integer.valueOf(3), cache.add(new Item(5)).getKey());
+    }
+
+    /**
+     * 2Q keeps re-referenced entries in its main queue while a scan of one-off
+     * keys passes through the probation queue.
+     */
+    @Test
+    public void testTwoQueueResistsScans() {
+        Cache<Integer, Item> cache = new Cache<>(8, Cache.Policy.TWO_Q);
+        for (int i = 0; i < 8; i++) {
+            cache.add(new Item(i));
+        }
+        // evict 0..3 to the ghost queue and bring them back: they are promoted
+        for (int i = 100; i < 104; i++) {
+            cache.add(new Item(i));
+        }
+        for (int i = 0; i < 4; i++) {
+            cache.add(new Item(i));
+        }
+        for (int i = 1000; i < 1100; i++) {
+            cache.add(new Item(i));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(cache.get(i));
+        }
+    }
+
+    /**
+     * TinyLFU refuses to replace a frequently requested entry with a cold one.
+     */
+    @Test
+    public void testTinyLfuRejectsColdCandidates() {
+        Cache<Integer, Item> cache = new Cache<>(2, Cache.Policy.TINY_LFU);
+        Item hot = new Item(1);
+        cache.add(hot);
+        cache.add(new Item(2));
+        for (int i = 0; i < 10; i++) {
+            cache.get(1);
+            cache.get(2);
+        }
+
+        Item cold = new Item(3);
+        assertSame(cold, cache.add(cold));
+        assertNotNull(cache.get(1));
+        assertNotNull(cache.get(2));
+
+        // once requested often enough, the newcomer is admitted
+        for (int i = 0; i < 20; i++) {
+            cache.get(3);
+        }
+        assertNotNull(cache.add(new Item(3)));
+        assertNotNull(cache.get(3));
+    }
+
+    /**
+     * A striped cache stays within its total capacity and keeps its statistics
+     * exact while several threads use it.
+     *
+     * @throws InterruptedException if a worker is interrupted
+     */
+    @Test
+    public void testStripedCacheUnderConcurrency() throws InterruptedException {
+        final Cache<Integer, Item> cache = new Cache<>(64, Cache.Policy.LRU, 8);
+        assertEquals(8, cache.getStripes());
+
+        Thread[] workers = new Thread[4];
+        for (int t = 0; t < workers.length; t++) {
+            final int seed = t;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    int key = (i * 31 + seed) % 500;
+                    if (cache.get(key) == null) {
+                        cache.add(new Item(key));
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertTrue(cache.size() <= 64);
+        assertTrue(cache.toString().contains("Total number of references:        80000"));
+    }
+}
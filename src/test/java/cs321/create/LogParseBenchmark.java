@@ -0,0 +1,130 @@
+package cs321.create;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Times the key extraction of {@link LogLineScanner} against the split and regex
+ * parse it replaced, kept as {@link SSHCreateBTreeTest#regexKeys}. Both parse the
+ * same lines held in memory: the regex parse from a string decoded per line, as the
+ * old reader did, and the scanner from the raw bytes of an ASCII line, as
+ * {@link SSHFileReader} does. The figures are for parsing alone, without file I/O.
+ * <p>
+ * Usage: {@code java cs321.create.LogParseBenchmark <log file> [<tree-type[,tree-type...]|all> [rounds]]}
+ * <p>
+ * Without tree types it measures accepted-ip, failed-time, reverseaddress-ip and all
+ * nine types in turn. Each figure is the best of the rounds, after a warm-up round.
+ */
+public class LogParseBenchmark {
+
+    private interface Parse {
+        long run();                                     // lines with a key, so the work is not optimized away
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java cs321.create.LogParseBenchmark <log file>"
+                    + " [<tree-type[,tree-type...]|all> [rounds]]");
+            System.exit(1);
+        }
+        List<byte[]> lines = readLines(args[0]);
+        List<String[]> runs = new ArrayList<>();
+        if (args.length > 1) {
+            runs.add(args[1].equals("all") ? SSHFileReader.TREE_TYPES : args[1].split(","));
+        } else {
+            runs.add(new String[] {"accepted-ip"});
+            runs.add(new String[] {"failed-time"});
+            runs.add(new String[] {"reverseaddress-ip"});
+            runs.add(SSHFileReader.TREE_TYPES);
+        }
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.printf("%d lines of %s, best of %d rounds%n", lines.size(), args[0], rounds);
+        System.out.printf("%-20s %16s %16s %8s%n", "type", "regex lines/s", "scanner lines/s", "speedup");
+        for (String[] types : runs) {
+            long[] found = new long[2];
+            double before = best(rounds, lines.size(), () -> regexParse(lines, types), found, 0);
+            double after = best(rounds, lines.size(), () -> scannerParse(lines, types), found, 1);
+            String name = types.length == SSHFileReader.TREE_TYPES.length ? "all nine types" : String.join(",", types);
+            System.out.printf("%-20s %16.0f %16.0f %7.1fx%n", name, before, after, after / before);
+            if (found[0] != found[1]) {
+                System.out.println("  parses disagree: " + found[0] + " lines with keys against " + found[1]);
+            }
+        }
+    }
+
+    /**
+     * @return the log's lines, without their line terminators
+     */
+    private static List<byte[]> readLines(String filename) throws IOException {
+        byte[] log = Files.readAllBytes(Paths.get(filename));
+        List<byte[]> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= log.length; i++) {
+            if (i == log.length ? i > start : log[i] == '\n') {
+                int end = i > start && log[i - 1] == '\r' ? i - 1 : i;
+                lines.add(Arrays.copyOfRange(log, start, end));
+                start = i + 1;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return the highest rate in lines per second over the rounds, after one warm-up
+     */
+    private static double best(int rounds, int lines, Parse parse, long[] found, int slot) {
+        found[slot] = parse.run();
+        double best = 0;
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            parse.run();
+            long elapsed = System.nanoTime() - start;
+            best = Math.max(best, lines * 1e9 / Math.max(1, elapsed));
+        }
+        return best;
+    }
+
+    private static long regexParse(List<byte[]> lines, String[] types) {
+        Charset charset = Charset.defaultCharset();
+        long found = 0;
+        for (byte[] line : lines) {
+            for (String key : SSHCreateBTreeTest.regexKeys(new String(line, charset), types)) {
+                if (key != null) {
+                    found++;
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    private static long scannerParse(List<byte[]> lines, String[] types) {
+        Charset charset = Charset.defaultCharset();
+        LogLineScanner scanner = new LogLineScanner(types);
+        String[] keys = new String[types.length];
+        long found = 0;
+        for (byte[] line : lines) {
+            int bits = 0;
+            for (byte b : line) {
+                bits |= b;
+            }
+            boolean matched;
+            if (bits >= 0) {
+                matched = scanner.scan(line, line.length, keys);
+            } else {
+                String decoded = new String(line, charset);
+                matched = scanner.scan(decoded.toCharArray(), decoded.length(), keys);
+            }
+            if (matched) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
@@ -2,10 +2,431 @@ package cs321.create;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 public class SSHCreateBTreeTest
 {
+    private static final String LINE_1 = "12/10 07:56:05 Accepted root 155.115.13.180\n";
+    private static final String LINE_2 = "12/10 07:57:11 Accepted admin 10.0.0.7\n";
+    private static final String LINE_3 = "12/10 07:58:42 Accepted guest 10.0.0.8\n";
+
+    /**
+     * Test that a reader resumed from a recorded offset sees only the lines written
+     * after it, and leaves a line that is still being written for the next run.
+     */
+    @Test
+    public void testReaderResumesFromOffset() throws IOException {
+        File log = File.createTempFile("ssh-append", ".txt");
+        try {
+            write(log, LINE_1 + LINE_2 + "12/10 07:58:42 Acc", false);
+
+            SSHFileReader first = new SSHFileReader(log.getPath(), "user-ip", 0);
+            assertEquals(Arrays.asList("root-155.115.13.180", "admin-10.0.0.7"), readAll(first));
+            assertEquals((LINE_1 + LINE_2).length(), first.getOffset());
+
+            write(log, LINE_3.substring("12/10 07:58:42 Acc".length()), true);
+            SSHFileReader second = new SSHFileReader(log.getPath(), "user-ip", first.getOffset());
+            assertEquals(Arrays.asList("guest-10.0.0.8"), readAll(second));
+            assertEquals(log.length(), second.getOffset());
+
+            // a rotated log is shorter than the offset and is read from the start
+            write(log, LINE_2, false);
+            SSHFileReader rotated = new SSHFileReader(log.getPath(), "user-ip", second.getOffset());
+            assertEquals(Arrays.asList("admin-10.0.0.7"), readAll(rotated));
+        } finally {
+            if (!log.delete()) {
+                fail("could not delete " + log);
+            }
+        }
+    }
+
+    /**
+     * Test that one pass extracting every tree type yields, for each type, the same
+     * keys as a reader for that type alone.
+     */
+    @Test
+    public void testReaderExtractsSeveralTypes() throws IOException {
+        File log = File.createTempFile("ssh-types", ".txt");
+        try {
+            write(log, LINE_1
+                    + "12/10 08:01:15 Failed password for invalid user admin from 61.197.203.243\n"
+                    + "12/10 08:02:30 Invalid user oracle from 52.80.34.196\n"
+                    + "12/10 08:03:01 Received disconnect\n"
+                    + LINE_2, false);
+
+            SSHFileReader all = new SSHFileReader(log.getPath(), SSHFileReader.TREE_TYPES);
+            List<List<String>> keys = new ArrayList<>();
+            for (int i = 0; i < SSHFileReader.TREE_TYPES.length; i++) {
+                keys.add(new ArrayList<>());
+            }
+            while (all.hasNextKey()) {
+                String[] lineKeys = all.nextKeys();
+                for (int i = 0; i < lineKeys.length; i++) {
+                    if (lineKeys[i] != null) {
+                        keys.get(i).add(lineKeys[i]);
+                    }
+                }
+            }
+            all.close();
+
+            for (int i = 0; i < SSHFileReader.TREE_TYPES.length; i++) {
+                String type = SSHFileReader.TREE_TYPES[i];
+                assertEquals(type, readAll(new SSHFileReader(log.getPath(), type)), keys.get(i));
+            }
+            assertEquals(Arrays.asList("root-155.115.13.180", "admin-10.0.0.7"), keys.get(8));
+        } finally {
+            if (!log.delete()) {
+                fail("could not delete " + log);
+            }
+        }
+    }
+
+    /**
+     * Test that counting byte ranges of a log in parallel gives the same counts as
+     * one sequential reader, with split points falling inside lines, and stops
+     * before an unterminated last line when asked to.
+     */
+    @Test
+    public void testParallelParserMatchesSequential() throws IOException {
+        File log = File.createTempFile("ssh-parallel", ".txt");
+        try {
+            Random random = new Random(22);
+            String[] events = {"Accepted root", "Failed password for invalid user admin from",
+                "Invalid user oracle from", "Received disconnect from"};
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 2000; i++) {
+                text.append(String.format("12/%02d %02d:%02d:%02d %s 10.%d.%d.%d%n", 1 + random.nextInt(28),
+                    random.nextInt(24), random.nextInt(60), random.nextInt(60), events[random.nextInt(events.length)],
+                    random.nextInt(4), random.nextInt(4), random.nextInt(256)));
+            }
+            write(log, text + "12/10 08:05:00 Accepted root 10.9", false);
+
+            String[] types = SSHFileReader.TREE_TYPES;
+            for (boolean wholeLinesOnly : new boolean[] {false, true}) {
+                List<Map<String, Integer>> expected = new ArrayList<>();
+                for (String type : types) {
+                    Map<String, Integer> counts = new HashMap<>();
+                    SSHFileReader reader = wholeLinesOnly
+                        ? new SSHFileReader(log.getPath(), type, 0) : new SSHFileReader(log.getPath(), type);
+                    for (String key : readAll(reader)) {
+                        counts.merge(SSHCreateBTree.formatKey(key, type), 1, Integer::sum);
+                    }
+                    expected.add(counts);
+                }
+
+                for (boolean mapped : new boolean[] {false, true}) {
+                    ParallelLogParser parser = new ParallelLogParser(log.getPath(), types, 4, wholeLinesOnly,
+                        mapped, 997);
+                    assertEquals(expected, parser.count());
+                    assertEquals(wholeLinesOnly ? text.length() : log.length(), parser.getOffset());
+                }
+            }
+        } finally {
+            if (!log.delete()) {
+                fail("could not delete " + log);
+            }
+        }
+    }
+
+    /**
+     * Test that a memory-mapped reader returns the same keys and offsets as a
+     * buffered one, through non-ASCII and CRLF lines and a line longer than the read
+     * buffer, with or without an unterminated last line.
+     */
+    @Test
+    public void testMappedReaderMatchesStream() throws IOException {
+        File log = File.createTempFile("ssh-mapped", ".txt");
+        try {
+            StringBuilder longLine = new StringBuilder("12/10 08:04:00 Accepted long");
+            while (longLine.length() < 1_500_000) {
+                longLine.append(" 10.1.2.3");
+            }
+            String text = LINE_1
+                + "12/10 08:01:15 Accepted J\u00fcrgen 61.197.203.243\n"
+                + "12/10 08:02:30 Invalid user \u00e91.2.3.4 from 52.80.34.196\r\n"
+                + longLine + "\n"
+                + LINE_2;
+            String[] types = SSHFileReader.TREE_TYPES;
+            for (String tail : new String[] {"", "12/10 08:05:00 Accepted root 10.9.9.9"}) {
+                write(log, text + tail, false);
+                for (boolean wholeLinesOnly : new boolean[] {false, true}) {
+                    SSHFileReader stream = new SSHFileReader(log.getPath(), types, 0, Long.MAX_VALUE,
+                        wholeLinesOnly, false);
+                    SSHFileReader mapped = new SSHFileReader(log.getPath(), types, 0, Long.MAX_VALUE,
+                        wholeLinesOnly, true);
+                    while (stream.hasNextKey()) {
+                        assertEquals(stream.getOffset(), mapped.getOffset());
+                        assertEquals(Arrays.asList(stream.nextKeys()), Arrays.asList(mapped.nextKeys()));
+                    }
+                    assertEquals(false, mapped.hasNextKey());
+                    assertEquals(stream.getOffset(), mapped.getOffset());
+                    stream.close();
+                    mapped.close();
+                }
+            }
+            SSHFileReader reader = new SSHFileReader(log.getPath(), new String[] {"user-ip"}, 0, Long.MAX_VALUE,
+                false, true);
+            // the log is decoded in the platform charset
+            String user = new String("J\u00fcrgen".getBytes(StandardCharsets.UTF_8), Charset.defaultCharset());
+            assertEquals(Arrays.asList("root-155.115.13.180", user + "-61.197.203.243", "long-10.1.2.3",
+                "admin-10.0.0.7", "root-10.9.9.9"), readAll(reader));
+        } finally {
+            if (!log.delete()) {
+                fail("could not delete " + log);
+            }
+        }
+    }
+
+    /**
+     * Test that a gzip-compressed log gives the same keys and offsets as the plain
+     * one, across several inflated chunks and when resumed part way, and that a
+     * directory of plain and compressed logs is counted as their sum.
+     */
+    @Test
+    public void testGzipAndDirectoryInput() throws IOException {
+        File dir = Files.createTempDirectory("ssh-logs").toFile();
+        File plain = new File(dir, "auth.log");
+        File gzip = new File(dir, "auth.log.1.gz");
+        try {
+            Random random = new Random(25);
+            String[] events = {"Accepted root", "Failed password for invalid user admin from",
+                "Invalid user oracle from", "Received disconnect from"};
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 3_000_000) {
+                text.append(String.format("12/%02d %02d:%02d:%02d %s 10.%d.%d.%d%n", 1 + random.nextInt(28),
+                    random.nextInt(24), random.nextInt(60), random.nextInt(60), events[random.nextInt(events.length)],
+                    random.nextInt(4), random.nextInt(4), random.nextInt(256)));
+            }
+            text.append("12/10 08:05:00 Accepted root 10.9.9.9");
+            write(plain, text.toString(), false);
+            try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gzip))) {
+                out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            }
+
+            String[] types = SSHFileReader.TREE_TYPES;
+            long middle = text.indexOf("\n", text.length() / 2) + 1;
+            // an offset past the end, as after the log was rotated, reads from the start
+            for (long start : new long[] {0, middle, 2L * text.length()}) {
+                SSHFileReader expected = new SSHFileReader(plain.getPath(), types, start, Long.MAX_VALUE, true, false);
+                SSHFileReader actual = new SSHFileReader(gzip.getPath(), types, start, Long.MAX_VALUE, true, false);
+                while (expected.hasNextKey()) {
+                    assertEquals(expected.getOffset(), actual.getOffset());
+                    assertEquals(Arrays.asList(expected.nextKeys()), Arrays.asList(actual.nextKeys()));
+                }
+                assertEquals(false, actual.hasNextKey());
+                assertEquals(expected.getOffset(), actual.getOffset());
+                expected.close();
+                actual.close();
+            }
+
+            List<Map<String, Integer>> single = new ParallelLogParser(plain.getPath(), types, 1, false, false).count();
+            File empty = new File(dir, "auth.log.2");
+            write(empty, "", false);
+            List<Map<String, Integer>> all = new ParallelLogParser(dir.getPath(), types, 3, false, false, 997)
+                .count();
+            for (int i = 0; i < types.length; i++) {
+                Map<String, Integer> doubled = new HashMap<>();
+                for (Map.Entry<String, Integer> entry : single.get(i).entrySet()) {
+                    doubled.put(entry.getKey(), 2 * entry.getValue());
+                }
+                assertEquals(types[i], doubled, all.get(i));
+            }
+        } finally {
+            File[] files = dir.listFiles();
+            for (File file : files != null ? files : new File[0]) {
+                if (!file.delete()) {
+                    fail("could not delete " + file);
+                }
+            }
+            if (!dir.delete()) {
+                fail("could not delete " + dir);
+            }
+        }
+    }
+
+    /**
+     * Test that a gzip log cut off part way is reported as an error, from the reader
+     * and from the parallel parser, instead of being counted as if it ended there.
+     */
+    @Test
+    public void testTruncatedGzipFails() throws IOException {
+        File dir = Files.createTempDirectory("ssh-logs").toFile();
+        File gzip = new File(dir, "auth.log.1.gz");
+        try {
+            StringBuilder text = new StringBuilder();
+            Random random = new Random(26);
+            while (text.length() < 4_000_000) {
+                text.append(String.format("12/10 07:%02d:%02d Accepted root 10.0.%d.%d%n", random.nextInt(60),
+                    random.nextInt(60), random.nextInt(256), random.nextInt(256)));
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            try (OutputStream out = new FileOutputStream(gzip)) {
+                out.write(compressed.toByteArray(), 0, compressed.size() / 2);
+            }
+
+            SSHFileReader reader = new SSHFileReader(gzip.getPath(), "accepted-ip");
+            int keys = 0;
+            try {
+                while (reader.hasNextKey()) {
+                    reader.nextKey();
+                    keys++;
+                }
+                fail("truncated gzip log read as " + keys + " keys without an error");
+            } catch (UncheckedIOException e) {
+                // expected
+            } finally {
+                reader.close();
+            }
+
+            try {
+                new ParallelLogParser(dir.getPath(), new String[] {"accepted-ip"}, 2, false, false).count();
+                fail("truncated gzip log counted without an error");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            if (!gzip.delete() || !dir.delete()) {
+                fail("could not delete " + dir);
+            }
+        }
+    }
+
+    /**
+     * Test that the single-pass line scanner extracts the same keys as the split and
+     * regular expression parse it replaced, on real-looking lines and on random lines
+     * full of near-miss dates, times and addresses.
+     */
+    @Test
+    public void testScannerMatchesRegexParse() {
+        List<String> lines = new ArrayList<>(Arrays.asList(
+            LINE_1.trim(), "", "   ", "12/10", " 12/10 07:56:05 Accepted root 1.2.3.4",
+            "12/10 07:56:05 Accepted", "12/10 7:5:5 Accepted root 1.2.3.4",
+            "x 12/10\t\t07:56:05 Failed password for root from 01.002.3.4567 port 22",
+            "12/10 07:56:05 Invalid user a_1.2.3.4 from 1.2.3.4.5 and 9.8.7.6",
+            "12/10 07:56:05 Accepted root 1234.2.3.4 1.2.3.4a 1.2.3.4_ (5.6.7.8)",
+            "a/10 07:56:05 3/ 07:56:05 4/5 1:2 6/7 123:45:6 Received disconnect 10.0.0.1",
+            "12/10 07:56:05 Failed 1.2..3.4 1.2.3. .1.2.3.4"));
+        Random random = new Random(23);
+        String[] pieces = {" ", "  ", "\t", "/", ":", ".", "_", "a", "Z", "0", "7", "12", "345", "6789",
+            "Accepted", "Invalid", "Failed", "Invalid user", "Failed password", "10/12 ", "07:56:05", "1.2.3.4"};
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder line = new StringBuilder();
+            for (int n = random.nextInt(30); n > 0; n--) {
+                line.append(pieces[random.nextInt(pieces.length)]);
+            }
+            lines.add(line.toString());
+        }
+
+        String[] types = SSHFileReader.TREE_TYPES;
+        LogLineScanner scanner = new LogLineScanner(types);
+        String[] keys = new String[types.length];
+        for (String line : lines) {
+            String[] expected = regexKeys(line, types);
+            boolean found = false;
+            for (String key : expected) {
+                found |= key != null;
+            }
+            Arrays.fill(keys, null);
+            boolean scanned = scanner.scan(line.toCharArray(), line.length(), keys);
+            assertEquals(line, found, scanned);
+            if (found) {
+                assertEquals(line, Arrays.asList(expected), Arrays.asList(keys));
+            }
+        }
+    }
+
+    private static final Pattern TIME_PATTERN = Pattern.compile("(\\d+/\\d+\\s+(\\d+:\\d+:\\d+))");
+    private static final Pattern IP_PATTERN = Pattern.compile("\\b(?:\\d{1,3}\\.){3}\\d{1,3}\\b");
+
+    /**
+     * The key extraction the reader used before its scanner, kept as the reference
+     * and as the baseline of {@link LogParseBenchmark}. Like the old reader, it splits
+     * and matches the line once for all the tree types.
+     *
+     * @return the line's key for each tree type, null where it has none
+     */
+    static String[] regexKeys(String logLine, String[] types) {
+        String[] keys = new String[types.length];
+        String[] parts = logLine.split("\\s+");
+        if (parts.length < 4) {
+            return keys;
+        }
+        Matcher timeMatcher = TIME_PATTERN.matcher(logLine);
+        String time = timeMatcher.find() && timeMatcher.group(2).length() >= 5
+            ? timeMatcher.group(2).substring(0, 5) : null;
+        Matcher ipMatcher = IP_PATTERN.matcher(logLine);
+        String ip = ipMatcher.find() ? ipMatcher.group() : null;
+        for (int i = 0; i < types.length; i++) {
+            keys[i] = regexKey(types[i], parts, logLine, time, ip);
+        }
+        return keys;
+    }
+
+    private static String regexKey(String type, String[] parts, String logLine, String time, String ip) {
+        String event = parts[2];
+        boolean invalid = event.equals("Invalid") || logLine.contains("Invalid user");
+        boolean failed = event.equals("Failed") || logLine.contains("Failed password");
+        switch (type) {
+            case "accepted-ip":
+                return event.equals("Accepted") && ip != null ? ip : null;
+            case "accepted-time":
+                return event.equals("Accepted") && time != null ? "Accepted-" + time : null;
+            case "invalid-ip":
+                return invalid && ip != null ? "Invalid-" + ip : null;
+            case "invalid-time":
+                return invalid && time != null ? "Invalid-" + time : null;
+            case "failed-ip":
+                return failed && ip != null ? "*****-" + ip : null;
+            case "failed-time":
+                return failed && time != null ? "Failed-" + time : null;
+            case "reverseaddress-ip":
+                if (ip == null) {
+                    return null;
+                }
+                String[] octets = ip.split("\\.");
+                return "." + octets[2] + "." + octets[3] + "-" + ip;
+            case "reverseaddress-time":
+                return ip != null && time != null ? "Address-" + time : null;
+            default:
+                return event.equals("Accepted") && ip != null ? parts[3] + "-" + ip : null;
+        }
+    }
+
+    private static List<String> readAll(SSHFileReader reader) throws IOException {
+        List<String> keys = new ArrayList<>();
+        while (reader.hasNextKey()) {
+            keys.add(reader.nextKey());
+        }
+        reader.close();
+        return keys;
+    }
 
+    private static void write(File file, String text, boolean append) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, append)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
 }
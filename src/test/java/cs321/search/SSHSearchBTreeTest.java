@@ -1,10 +1,149 @@
 package cs321.search;
 
+import cs321.btree.BTree;
+import cs321.btree.BTreeOptions;
+import cs321.btree.SortedRunIngest;
+import cs321.btree.TreeObject;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
 import static org.junit.Assert.*;
 
 public class SSHSearchBTreeTest
 {
+    /**
+     * Test that lookups add up counts still in sorted runs, and that scans and
+     * rankings, which would read the tree alone, are refused while runs are pending.
+     */
+    @Test
+    public void testPendingRunsOnlyForLookups() throws IOException {
+        File dir = Files.createTempDirectory("ssh-search").toFile();
+        String tree = new File(dir, "tree.btree").getPath();
+        try {
+            BTreeOptions options = new BTreeOptions();
+            SortedRunIngest ingest = new SortedRunIngest(tree, 3, 1.0, options, 50, true);
+            for (int i = 0; i < 200; i++) {
+                ingest.add(String.format("k%03d", i % 40), 1);
+            }
+            ingest.finish();
+            ingest.add("k001", 1);
+            ingest.add("n001", 1);
+            ingest.close();
+            assertTrue(SortedRunIngest.hasRuns(tree));
+
+            File queries = new File(dir, "queries.txt");
+            try (PrintWriter out = new PrintWriter(queries, "UTF-8")) {
+                out.println("k001");
+                out.println("n001");
+                out.println("k002");
+            }
+            assertEquals("k001 6\nn001 1\nk002 5\n",
+                    runSearch("--cache=0", "--degree=0", "--btree-file=" + tree, "--query-file=" + queries));
+
+            String[][] scans = {
+                {"--top-frequency=3"}, {"--quantiles=4"}, {"--prefix=k00"}, {"--range=k001,k005"},
+                {"--prefix=k00", "--top-frequency=2"}
+            };
+            for (String[] scan : scans) {
+                String[] args = new String[scan.length + 3];
+                args[0] = "--cache=0";
+                args[1] = "--degree=0";
+                args[2] = "--btree-file=" + tree;
+                System.arraycopy(scan, 0, args, 3, scan.length);
+                assertTrue(scan[0], runSearch(args).startsWith("ERROR: "));
+            }
+        } finally {
+            File[] files = dir.listFiles();
+            for (File file : files != null ? files : new File[0]) {
+                if (!file.delete()) {
+                    fail("could not delete " + file);
+                }
+            }
+            if (!dir.delete()) {
+                fail("could not delete " + dir);
+            }
+        }
+    }
+
+    /**
+     * Test that queries split over several worker threads, one key at a time or in
+     * sorted batches, print the same results as a single thread, in query file order,
+     * with a line for every repeat of a query.
+     */
+    @Test
+    public void testThreadedQueriesKeepOrder() throws IOException {
+        File dir = Files.createTempDirectory("ssh-search").toFile();
+        String tree = new File(dir, "tree.btree").getPath();
+        try {
+            BTree btree = new BTree(3, tree, new BTreeOptions());
+            for (int i = 0; i < 500; i++) {
+                btree.insert(new TreeObject(String.format("k%03d", i), 1 + i % 13));
+            }
+            btree.finishUp();
+
+            Random random = new Random(8);
+            StringBuilder expected = new StringBuilder();
+            File queries = new File(dir, "queries.txt");
+            try (PrintWriter out = new PrintWriter(queries, "UTF-8")) {
+                for (int q = 0; q < 2000; q++) {
+                    int i = random.nextInt(q < 1000 ? 600 : 20);        // many repeats of a few keys at the end
+                    out.println(String.format("k%03d", i));
+                    if (i < 500) {
+                        expected.append(String.format("k%03d %d%n", i, 1 + i % 13));
+                    }
+                }
+            }
+            String expectedOutput = expected.toString().replace(System.lineSeparator(), "\n");
+
+            String[][] modes = {
+                {"--threads=1", "--batch=0"}, {"--threads=4", "--batch=0"}, {"--threads=4", "--batch=1"},
+                {"--threads=3", "--batch=1", "--cache=1", "--cache-size=10"}
+            };
+            for (String[] mode : modes) {
+                String[] args = new String[mode.length + 4];
+                args[0] = "--cache=0";
+                args[1] = "--degree=0";
+                args[2] = "--btree-file=" + tree;
+                args[3] = "--query-file=" + queries;
+                System.arraycopy(mode, 0, args, 4, mode.length);
+                assertEquals(Arrays.toString(mode), expectedOutput, runSearch(args));
+            }
+        } finally {
+            File[] files = dir.listFiles();
+            for (File file : files != null ? files : new File[0]) {
+                if (!file.delete()) {
+                    fail("could not delete " + file);
+                }
+            }
+            if (!dir.delete()) {
+                fail("could not delete " + dir);
+            }
+        }
+    }
 
+    /**
+     * Runs SSHSearchBTree and returns what it printed to standard output.
+     */
+    private static String runSearch(String... args) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(output, true, "UTF-8"));
+        try {
+            SSHSearchBTree.main(args);
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            System.setOut(stdout);
+        }
+        return new String(output.toByteArray(), StandardCharsets.UTF_8).replace(System.lineSeparator(), "\n");
+    }
 }